@@ -26,62 +26,59 @@ import com.github.kairyu.flop.programmer.exception.ControllerErrorException;
 import org.usb4java.Device;
 import org.usb4java.LibUsbException;
 
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Kai Ryu
  *
  */
-public class Commands extends Thread implements Runnable {
+public class Commands {
 
     private static final Log log = Log.getLog(Commands.class.getPackage().getName(), 40);
 
-    private final int delay = 100;
-    private Target target = Target.none;
-    private AtmelDevice device;
-    private boolean running;
-    private int retval;
-    private boolean quiet = false;
-    private boolean setDebug;
-    private int debug;
-    private Command command = Command.none;
-    private String getName;
-    private String hex;
-    private String segmentName;
-    private boolean force;
-    private boolean validate;
-    private boolean reset;
-
-    @Override
-    public void run() {
-        this.running = true;
-
-        while (this.running) {
-            try {
-                if (this.setDebug) {
-                    this.executeSetDebug(this.debug);
-                    this.setDebug = false;
-                }
-                else if (this.command != Command.none) {
-                    this.retval = this.executeCommand();
-                }
+    /**
+     * Receives the result of a queued command once the device is done.
+     */
+    public interface Callback {
+        void done(int result);
+    }
 
-                try {
-                    Thread.sleep(this.delay);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-                this.retval = Error.EXCEPTION_OCCURRED;
-                this.setDebug = false;
-                this.command = Command.none;
-            }
-        }
+    /**
+     * Receives the exceptions a command ran into, with the error code the
+     * command returns for them.
+     */
+    public interface ErrorListener {
+        void error(int code, String message);
     }
 
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "flop-commands");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile Target target = Target.none;
+    private volatile boolean quiet = false;
+    private volatile ProgressListener progressListener = null;
+    private volatile ErrorListener errorListener = null;
+    private AtmelDevice device;
+    private BufferOut image = null;
+    private MemoryUnit imageSegment = null;
+    private int imageInvalidCount = 0;
+
     public boolean init() {
         try {
             this.device = new AtmelDevice();
+            this.device.setProgressListener(this.progressListener);
             this.device.init();
             return true;
         }
@@ -92,6 +89,13 @@ public class Commands extends Thread implements Runnable {
     }
 
     public void uninit() {
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         this.device.uninit();
     }
 
@@ -100,8 +104,21 @@ public class Commands extends Thread implements Runnable {
     }
 
     public void setDebug(final int debug) {
-        this.debug = debug;
-        this.setDebug = true;
+        this.executeSetDebug(debug);
+    }
+
+    /**
+     * Sets the listener for the device, now or once it is created by init.
+     */
+    public void setProgressListener(final ProgressListener listener) {
+        this.progressListener = listener;
+        if (this.device != null) {
+            this.device.setProgressListener(listener);
+        }
+    }
+
+    public void setErrorListener(final ErrorListener listener) {
+        this.errorListener = listener;
     }
 
     public int setTarget(final String name) {
@@ -116,60 +133,195 @@ public class Commands extends Thread implements Runnable {
         return Error.SUCCESS;
     }
 
-    public int get(final String name) {
-        this.getName = name;
-        this.command = Command.get;
-        while (this.command != Command.none) {
-            try {
-                Thread.sleep(this.delay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    public Future<Integer> get(final String name, final Callback callback) {
+        return this.submit(Command.get, callback, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return Commands.this.executeGet(name);
             }
-        }
-        return this.retval;
+        });
     }
 
-    public int erase(final boolean force, final boolean validate) {
-        this.force = force;
-        this.validate = validate;
-        this.command = Command.erase;
-        while (this.command != Command.none) {
-            try {
-                Thread.sleep(this.delay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    public Future<Integer> erase(final boolean force, final boolean validate, final Callback callback) {
+        return this.submit(Command.erase, callback, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return Commands.this.executeErase(force, validate);
             }
-        }
-        return this.retval;
+        });
     }
 
-    public int flash(final String hex, final String segment, final boolean force, final boolean validate) {
-        this.hex = hex;
-        this.segmentName = segment;
-        this.force = force;
-        this.validate = validate;
-        this.command = Command.flash;
-        while (this.command != Command.none) {
-            try {
-                Thread.sleep(this.delay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    public Future<Integer> flash(final String hex, final String segment, final boolean force, final boolean validate,
+            final Callback callback) {
+        return this.submit(Command.flash, callback, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return Commands.this.executeFlash(hex, segment, force, validate);
+            }
+        });
+    }
+
+    public Future<Integer> launch(final boolean reset, final Callback callback) {
+        return this.submit(Command.launch, callback, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return Commands.this.executeLaunch(reset);
             }
+        });
+    }
+
+    /**
+     * Starts a new binary image for the given segment of the current target,
+     * discarding any image that has not been flashed.
+     */
+    public synchronized int beginImage(final String segment) {
+        this.image = null;
+        MemoryUnit memoryType;
+        try {
+            memoryType = MemoryUnit.getByName(segment);
+        }
+        catch (IllegalArgumentException e) {
+            this.reportError(Error.ARGUMENT_ERROR, e);
+            return Error.ARGUMENT_ERROR;
         }
-        return this.retval;
+
+        BufferOut bufferOut = new BufferOut();
+        int result = this.initBuffer(bufferOut, memoryType);
+        if (result != Error.SUCCESS) {
+            return result;
+        }
+        this.image = bufferOut;
+        this.imageSegment = memoryType;
+        this.imageInvalidCount = 0;
+        return Error.SUCCESS;
     }
 
-    public int launch(final boolean reset) {
-        this.reset = reset;
-        this.command = Command.launch;
-        while (this.command != Command.none) {
-            try {
-                Thread.sleep(this.delay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Decodes a base64 chunk straight into the image begun with beginImage,
+     * at the given absolute address.
+     */
+    public synchronized int appendImage(final int address, final String base64) {
+        if (this.image == null) {
+            return Error.BUFFER_INIT_ERROR;
+        }
+        byte[] data;
+        try {
+            data = Base64.getDecoder().decode(base64);
+        }
+        catch (IllegalArgumentException e) {
+            this.reportError(Error.ARGUMENT_ERROR, e);
+            return Error.ARGUMENT_ERROR;
+        }
+        int result = this.image.putBinary(address, data, 0, data.length);
+        if (result < 0) {
+            return Error.BUFFER_INIT_ERROR;
+        }
+        this.imageInvalidCount += result;
+        return Error.SUCCESS;
+    }
+
+    public Future<Integer> flashImage(final boolean force, final boolean validate, final Callback callback) {
+        final BufferOut bufferOut;
+        final MemoryUnit memoryType;
+        final int invalidCount;
+        synchronized (this) {
+            bufferOut = this.image;
+            memoryType = this.imageSegment;
+            invalidCount = this.imageInvalidCount;
+            this.image = null;
+        }
+        return this.submit(Command.flash, callback, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                if (bufferOut == null) {
+                    return Error.BUFFER_INIT_ERROR;
+                }
+                Commands.this.warnOutsideMemory(invalidCount, memoryType);
+                return Commands.this.executeFlash(bufferOut, memoryType, force, validate);
             }
+        });
+    }
+
+    public int flashImage(final boolean force, final boolean validate) {
+        return waitFor(this.flashImage(force, validate, null));
+    }
+
+    public int get(final String name) {
+        return waitFor(this.get(name, null));
+    }
+
+    public int erase(final boolean force, final boolean validate) {
+        return waitFor(this.erase(force, validate, null));
+    }
+
+    public int flash(final String hex, final String segment, final boolean force, final boolean validate) {
+        return waitFor(this.flash(hex, segment, force, validate, null));
+    }
+
+    public int launch(final boolean reset) {
+        return waitFor(this.launch(reset, null));
+    }
+
+    private int waitFor(final Future<Integer> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Error.EXCEPTION_OCCURRED;
+        }
+        catch (ExecutionException e) {
+            this.reportError(Error.EXCEPTION_OCCURRED, e.getCause());
+            return Error.EXCEPTION_OCCURRED;
+        }
+    }
+
+    /*
+     * Exceptions go to the error listener of the page, or to the console
+     * if there is none.
+     */
+    private void reportError(final int code, final Throwable e) {
+        log.debug("Error %d: %s", code, e);
+        final ErrorListener listener = this.errorListener;
+        if (listener == null) {
+            System.err.println(e);
+            return;
+        }
+        try {
+            listener.error(code, e.toString());
+        }
+        catch (RuntimeException f) {
+            log.debug("Error listener failed: %s", f);
         }
-        return this.retval;
+    }
+
+    /*
+     * Commands run one at a time on the executor thread, each with the
+     * device opened for it and closed again afterwards.
+     */
+    private Future<Integer> submit(final Command command, final Callback callback, final Callable<Integer> task) {
+        return this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int result;
+                try {
+                    result = Commands.this.executeCommand(command, task);
+                }
+                catch (Exception e) {
+                    Commands.this.reportError(Error.EXCEPTION_OCCURRED, e);
+                    result = Error.EXCEPTION_OCCURRED;
+                }
+                if (callback != null) {
+                    try {
+                        callback.done(result);
+                    }
+                    catch (RuntimeException e) {
+                        Commands.this.reportError(Error.EXCEPTION_OCCURRED, e);
+                    }
+                }
+                return result;
+            }
+        });
     }
 
     private int initDevice() {
@@ -184,6 +336,7 @@ public class Commands extends Thread implements Runnable {
         }
 
         this.device.setType(this.target.getDeviceType());
+        this.device.setEraseBudget(this.target.getEraseBudget());
         return 0;
     }
 
@@ -193,31 +346,16 @@ public class Commands extends Thread implements Runnable {
         }
     }
 
-    private int executeCommand() throws Exception {
+    private int executeCommand(final Command command, final Callable<Integer> task) throws Exception {
+        log.debug("Executing %s.", command);
         if (initDevice() != 0) {
-            this.command = Command.none;
             return Error.NO_DEVICE_PRESENT;
         }
         try {
-            switch (this.command) {
-                case get:
-                    return this.executeGet(this.getName);
-                case erase:
-                    return this.executeErase(this.force, this.validate);
-                case flash:
-                    return this.executeFlash(this.hex, this.segmentName, this.force, this.validate);
-                case launch:
-                    return this.executeLaunch(this.reset);
-                default:
-                    return Error.SUCCESS;
-            }
-        }
-        catch (Exception e) {
-            throw e;
+            return task.call();
         }
         finally {
             uninitDevice();
-            this.command = Command.none;
         }
     }
 
@@ -240,24 +378,19 @@ public class Commands extends Thread implements Runnable {
         }
 
         DeviceType type = this.device.getType();
-        DeviceInfo info = new DeviceInfo(type);
 
         this.device.checkSecurity();
 
-        int status = this.device.readConfig(info);
-
-        if (status != 0) {
-            log.debug("Error reading %s config information.", type);
-            System.err.println(String.format("Error reading %s config information.", type));
-            this.device.securityMessage();
-            return Error.UNSPECIFIED_ERROR;
-        }
-
         String message = get.getDescription();
         short value = 0;
 
         try {
-            value = info.getInfo(get);
+            this.device.getDeviceInfo().checkInfo(get);
+            if (get.getCommand(type) == null) {
+                System.err.println("The requested device info is unavailable.");
+                return Error.UNSPECIFIED_ERROR;
+            }
+            value = this.device.readInfo(get);
         }
         catch (ControllerErrorException e) {
             log.debug(e.getMessage());
@@ -266,7 +399,9 @@ public class Commands extends Thread implements Runnable {
         }
 
         if (value < 0) {
-            System.err.println("The requested device info is unavailable.");
+            log.debug("Error reading %s config information.", type);
+            System.err.println(String.format("Error reading %s config information.", type));
+            this.device.securityMessage();
             return Error.UNSPECIFIED_ERROR;
         }
 
@@ -318,6 +453,24 @@ public class Commands extends Thread implements Runnable {
             return Error.ARGUMENT_ERROR;
         }
 
+        // ---------- CONVERT HEX FILE TO BINARY ----------
+        BufferOut bufferOut = new BufferOut();
+        int result = this.initBuffer(bufferOut, memoryType);
+        if (result != Error.SUCCESS) {
+            return result;
+        }
+
+        result = bufferOut.readHexString(hex, this.quiet);
+        if (result < 0) {
+            log.debug("Something went wrong with creating the memory image.");
+            return Error.BUFFER_INIT_ERROR;
+        }
+        this.warnOutsideMemory(result, memoryType);
+
+        return this.executeFlash(bufferOut, memoryType, force, validate);
+    }
+
+    private int initBuffer(final BufferOut bufferOut, final MemoryUnit memoryType) {
         int memorySize;
         int pageSize;
         int targetOffset = 0;
@@ -335,7 +488,7 @@ public class Commands extends Thread implements Runnable {
                 pageSize = this.target.getEepromPageSize();
                 break;
             case user:
-                if (!this.device.getType().isType(DeviceType.ADC_AVR32)) {
+                if (!this.target.getDeviceType().isType(DeviceType.ADC_AVR32)) {
                     System.err.println("Flash User only implemented for ADC_AVR32 devices.");
                     return Error.ARGUMENT_ERROR;
                 }
@@ -349,29 +502,32 @@ public class Commands extends Thread implements Runnable {
                 break;
         }
 
-        // ---------- CONVERT HEX FILE TO BINARY ----------
-        BufferOut bufferOut = new BufferOut();
         if (bufferOut.init(memorySize, pageSize, targetOffset) != 0) {
             log.debug("ERROR initializing a buffer.");
             return Error.BUFFER_INIT_ERROR;
         }
+        return Error.SUCCESS;
+    }
 
-        int result = bufferOut.readHexString(hex, this.quiet);
-        if (result < 0) {
-            log.debug("Something went wrong with creating the memory image.");
-            return Error.BUFFER_INIT_ERROR;
-        }
-        else if (result > 0) {
-            log.debug("WARNING: File contains 0x%X bytes outside target memory.", result);
+    private void warnOutsideMemory(final int count, final MemoryUnit memoryType) {
+        if (count > 0) {
+            log.debug("WARNING: File contains 0x%X bytes outside target memory.", count);
             if (memoryType == MemoryUnit.flash) {
                 log.debug("There may be data in the user page (offset %#X).", AtmelDevice.USER_PAGE_OFFSET);
                 log.debug("Inspect the hex file or try flash-user.");
             }
-            if (!quiet) {
-                System.err.println(String.format("WARNING: 0x%X bytes are outside target memory,", result));
+            if (!this.quiet) {
+                System.err.println(String.format("WARNING: 0x%X bytes are outside target memory,", count));
                 System.err.println(" and will not be written.");
             }
         }
+    }
+
+    private int executeFlash(final BufferOut bufferOut, final MemoryUnit memoryType, final boolean force,
+            final boolean validate) {
+        if (this.device == null || !this.device.isInitialized()) {
+            return Error.INVALID_DEVICE;
+        }
 
         // TODO: implement serialize_memory_image
 
@@ -379,15 +535,17 @@ public class Commands extends Thread implements Runnable {
             bufferOut.getValidRange().set(this.target.getFlashAddressBottom(), this.target.getFlashAddressTop());
 
             final boolean suppressBootloader = true; // TODO:
-            for (int i = this.target.getBootloaderBottom(); i <= this.target.getBootloaderTop(); i++) {
-                if (bufferOut.isDataValid(i)) {
-                    if (suppressBootloader) {
-                        bufferOut.setDataInvalid(i);
-                    } else {
-                        System.err.println("Bootloader and code overlap.");
-                        System.err.println("Use --suppress-bootloader-mem to ignore");
-                        return Error.BUFFER_INIT_ERROR;
+            final AtmelRangeSet overlap = bufferOut.getDataRanges()
+                    .intersect(new AtmelRange(this.target.getBootloaderBottom(), this.target.getBootloaderTop()));
+            if (!overlap.isEmpty()) {
+                if (suppressBootloader) {
+                    for (AtmelRange range: overlap) {
+                        bufferOut.setDataInvalid(range);
                     }
+                } else {
+                    System.err.println("Bootloader and code overlap.");
+                    System.err.println("Use --suppress-bootloader-mem to ignore");
+                    return Error.BUFFER_INIT_ERROR;
                 }
             }
         }
@@ -413,6 +571,7 @@ public class Commands extends Thread implements Runnable {
         }
 
         // ---------- WRITE PROGRAM DATA ----------
+        int result;
         if (memoryType == MemoryUnit.user) {
             result = this.device.user(bufferOut);
         }
@@ -21,8 +21,10 @@ import com.github.kairyu.flop.programmer.Log;
 import com.github.kairyu.flop.programmer.atmel.AtmelDevice;
 import com.github.kairyu.flop.programmer.atmel.DeviceInfo;
 import com.github.kairyu.flop.programmer.atmel.DeviceType;
+import com.github.kairyu.flop.programmer.atmel.ProgressListener;
 import com.github.kairyu.flop.programmer.atmel.Target;
 import com.github.kairyu.flop.programmer.command.Get;
+import com.github.kairyu.flop.programmer.dfu.DfuMetrics;
 
 import netscape.javascript.JSObject;
 
@@ -30,7 +32,6 @@ import org.usb4java.Device;
 import org.usb4java.LibUsbException;
 
 import java.applet.Applet;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Kai Ryu
@@ -38,15 +39,20 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class FlopApplet extends Applet implements Error {
 
-    private Commands commands;
+    private static final long serialVersionUID = 1L;
+
+    private transient Commands commands;
+    private transient ProgressListener progressListener = null;
+    private transient Commands.ErrorListener errorListener = null;
 
     @Override
     public void start() {
         super.start();
         commands = new Commands();
+        this.commands.setProgressListener(this.progressListener);
+        this.commands.setErrorListener(this.errorListener);
         JSObject window = JSObject.getWindow(this);
         window.call("flopInit", this.commands.init());
-        new AtomicReference<Thread>(commands).get().start();
     }
 
     @Override
@@ -67,6 +73,51 @@ public class FlopApplet extends Applet implements Error {
         this.commands.setDebug(debug);
     }
 
+    /**
+     * Calls progress(phase, done, total, blocksPerSecond) on the given object
+     * while flashing and validating, and phaseStarted/phaseEnded around each
+     * phase. Pass null to stop.
+     */
+    public void setProgress(final JSObject listener) {
+        this.progressListener = (listener == null) ? null : new ProgressListener() {
+            @Override
+            public void phaseStarted(final DfuMetrics.Phase phase, final long total) {
+                listener.call("phaseStarted", phase.getName(), total);
+            }
+
+            @Override
+            public void progress(final DfuMetrics.Phase phase, final long done, final long total,
+                    final double blocksPerSecond) {
+                listener.call("progress", phase.getName(), done, total, blocksPerSecond);
+            }
+
+            @Override
+            public void phaseEnded(final DfuMetrics.Phase phase, final boolean success) {
+                listener.call("phaseEnded", phase.getName(), success);
+            }
+        };
+        if (this.commands != null) {
+            this.commands.setProgressListener(this.progressListener);
+        }
+    }
+
+    /**
+     * Calls error(code, message) on the given object when a command runs
+     * into an exception, such as a malformed image chunk or a failing
+     * callback, instead of printing it to the console. Pass null to stop.
+     */
+    public void setError(final JSObject listener) {
+        this.errorListener = (listener == null) ? null : new Commands.ErrorListener() {
+            @Override
+            public void error(final int code, final String message) {
+                listener.call("error", code, message);
+            }
+        };
+        if (this.commands != null) {
+            this.commands.setErrorListener(this.errorListener);
+        }
+    }
+
     public int setTarget(final String name) {
         return this.commands.setTarget(name);
     }
@@ -111,4 +162,57 @@ public class FlopApplet extends Applet implements Error {
         return this.commands.launch(reset);
     }
 
+    /*
+     * A binary image is sent as base64 chunks, each decoded straight into
+     * the image as it arrives, and flashed once the last chunk is in.
+     */
+    public int beginImage(final String segment) {
+        return this.commands.beginImage(segment);
+    }
+
+    public int appendImage(final int address, final String base64) {
+        return this.commands.appendImage(address, base64);
+    }
+
+    public int flashImage(final boolean force, final boolean validate) {
+        return this.commands.flashImage(force, validate);
+    }
+
+    /*
+     * The asynchronous variants return at once and call the given
+     * JavaScript function with the result when the device is done.
+     */
+    public void getAsync(final String name, final JSObject callback) {
+        this.commands.get(name, toCallback(callback));
+    }
+
+    public void eraseAsync(final boolean force, final boolean validate, final JSObject callback) {
+        this.commands.erase(force, validate, toCallback(callback));
+    }
+
+    public void flashAsync(final String hex, final String segment, final boolean force, final boolean validate,
+            final JSObject callback) {
+        this.commands.flash(hex, segment, force, validate, toCallback(callback));
+    }
+
+    public void flashImageAsync(final boolean force, final boolean validate, final JSObject callback) {
+        this.commands.flashImage(force, validate, toCallback(callback));
+    }
+
+    public void launchAsync(final boolean reset, final JSObject callback) {
+        this.commands.launch(reset, toCallback(callback));
+    }
+
+    private static Commands.Callback toCallback(final JSObject callback) {
+        if (callback == null) {
+            return null;
+        }
+        return new Commands.Callback() {
+            @Override
+            public void done(final int result) {
+                callback.call("call", null, result);
+            }
+        };
+    }
+
 }
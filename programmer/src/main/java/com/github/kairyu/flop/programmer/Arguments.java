@@ -17,7 +17,10 @@
 
 package com.github.kairyu.flop.programmer;
 
+import com.github.kairyu.flop.programmer.atmel.AtmelBuffer;
 import com.github.kairyu.flop.programmer.atmel.DeviceType;
+import com.github.kairyu.flop.programmer.atmel.ImageDigest;
+import com.github.kairyu.flop.programmer.atmel.LatencyModel;
 import com.github.kairyu.flop.programmer.atmel.MemoryUnit;
 import com.github.kairyu.flop.programmer.atmel.Target;
 import com.github.kairyu.flop.programmer.command.Command;
@@ -25,8 +28,12 @@ import com.github.kairyu.flop.programmer.command.Configure;
 import com.github.kairyu.flop.programmer.command.Get;
 import com.github.kairyu.flop.programmer.command.GetFuse;
 import com.github.kairyu.flop.programmer.command.SetFuse;
+import com.github.kairyu.flop.programmer.dfu.TransferTrace;
+import com.github.kairyu.flop.programmer.dfu.UsbScheduler;
 import com.github.kairyu.flop.programmer.exception.UnsupportedTargetException;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
@@ -43,6 +50,7 @@ import net.sourceforge.argparse4j.inf.Subparsers;
 import net.sourceforge.argparse4j.internal.HelpScreenException;
 
 import static net.sourceforge.argparse4j.impl.Arguments.storeTrue;
+import static net.sourceforge.argparse4j.impl.Arguments.range;
 import static net.sourceforge.argparse4j.impl.Arguments.storeConst;
 import static net.sourceforge.argparse4j.impl.Arguments.fileType;
 import static net.sourceforge.argparse4j.impl.Arguments.version;
@@ -70,6 +78,70 @@ public class Arguments {
         return this.debug;
     }
 
+    public String getReportFileName() {
+        return this.ns.getString("report");
+    }
+
+    public String getRecordFileName() {
+        return this.ns.getString("record");
+    }
+
+    public String getReplayFileName() {
+        return this.ns.getString("replay");
+    }
+
+    public boolean getReplayNoDelay() {
+        return this.ns.getBoolean("replay_no_delay");
+    }
+
+    public String getTraceFileName() {
+        return this.ns.getString("trace");
+    }
+
+    public boolean getTraceOnError() {
+        return this.ns.getBoolean("trace_on_error");
+    }
+
+    public int getTracePayload() {
+        return this.ns.getInt("trace_payload");
+    }
+
+    /**
+     * Returns the bus number the device was selected by, or 0 for any.
+     */
+    public int getBusNumber() {
+        int[] location = this.ns.get("bus_address");
+        return (location == null) ? 0 : location[0];
+    }
+
+    public int getDeviceAddress() {
+        int[] location = this.ns.get("bus_address");
+        return (location == null) ? 0 : location[1];
+    }
+
+    public String getPortPath() {
+        return this.ns.getString("port_path");
+    }
+
+    /**
+     * Tells whether the command is to be run on every matching device.
+     */
+    public boolean getAll() {
+        return this.ns.getBoolean("all");
+    }
+
+    public int getBulkPerHub() {
+        return this.ns.getInt("bulk_per_hub");
+    }
+
+    /**
+     * Returns the seconds after which the devices still busy are
+     * cancelled, 0 for no limit.
+     */
+    public int getTimeout() {
+        return this.ns.getInt("timeout");
+    }
+
     public Command getCommand() {
         return this.command;
     }
@@ -82,6 +154,10 @@ public class Arguments {
         return this.target;
     }
 
+    public void setTarget(final Target target) {
+        this.target = target;
+    }
+
     public String getTargetName() {
         return this.target.getName();
     }
@@ -177,6 +253,27 @@ public class Arguments {
         return MemoryUnit.valueOf(this.ns.getString("segment"));
     }
 
+    /**
+     * Returns the algorithm to hash memory read back with, or null if no
+     * digest was asked for.
+     */
+    public ImageDigest.Algorithm getDigestAlgorithm() {
+        String name = this.ns.getString("digest");
+        return (name == null) ? null : ImageDigest.Algorithm.getByName(name);
+    }
+
+    public boolean getDigestFull() {
+        return this.ns.getBoolean("full");
+    }
+
+    public String getDigestFileName() {
+        return this.ns.getString("image");
+    }
+
+    public String getReadFileName() {
+        return this.ns.getString("output");
+    }
+
     public boolean getEraseForce() {
         return this.ns.getBoolean("force");
     }
@@ -215,10 +312,71 @@ public class Arguments {
         return this.ns.getBoolean("force");
     }
 
+    public boolean getFlashResume() {
+        return this.ns.getBoolean("resume");
+    }
+
+    public String getFlashJournalDirectory() {
+        return this.ns.getString("journal");
+    }
+
+    public String getFlashSerial() {
+        return this.ns.getString("serial");
+    }
+
+    public int getFlashSerialWidth() {
+        return this.ns.getInt("serial_width");
+    }
+
+    public boolean getFlashSkipIdentical() {
+        return this.ns.getBoolean("skip_identical");
+    }
+
+    public String getFlashHistoryFileName() {
+        return this.ns.getString("history");
+    }
+
+    public int getFlashTransferSize() {
+        return this.ns.getInt("transfer_size");
+    }
+
+    public boolean getPlanErase() {
+        return this.ns.getBoolean("erase");
+    }
+
+    public LatencyModel getPlanLatencyModel() {
+        return new LatencyModel(
+                this.ns.getInt("transfer_latency"),
+                this.ns.getInt("byte_time"),
+                this.ns.getInt("program_time"),
+                this.ns.getInt("erase_time"));
+    }
+
+    public String getJobFileName() {
+        return this.ns.getString("file");
+    }
+
     public Get getGetName() {
         return Get.getByName(this.ns.getString("name"));
     }
 
+    private Arguments(final Arguments arguments) {
+        this.parser = arguments.parser;
+        this.ns = arguments.ns;
+        this.quiet = arguments.quiet;
+        this.debug = arguments.debug;
+        this.target = arguments.target;
+        this.command = arguments.command;
+    }
+
+    /**
+     * Returns a copy of the parsed arguments whose target can be set apart
+     * from this one's.
+     */
+    public Arguments copy() {
+        return new Arguments(this);
+    }
+
     public Arguments() {
         this.parser = ArgumentParsers.newArgumentParser("flop", false)
                 .version("${prog} 0.1.0");
@@ -250,6 +408,33 @@ public class Arguments {
                     }
                 })
                 .setDefault(SUPPRESS);
+        helpGroup.addArgument("--print-trace")
+                .metavar("file")
+                .help("print a transfer trace written by --trace")
+                .action(new ArgumentAction() {
+                    @Override
+                    public void run(ArgumentParser parser, Argument arg,
+                                    Map<String, Object> attrs, String flag, Object value)
+                            throws ArgumentParserException {
+                        try {
+                            TransferTrace.print((String) value, System.out);
+                        }
+                        catch (IOException e) {
+                            throw new ArgumentParserException(e.getMessage(), parser);
+                        }
+                        throw new HelpScreenException(parser);
+                    }
+
+                    @Override
+                    public void onAttach(Argument arg) {
+                    }
+
+                    @Override
+                    public boolean consumeArgument() {
+                        return true;
+                    }
+                })
+                .setDefault(SUPPRESS);
         helpGroup.addArgument("-v", "--version")
                 .help("show version information")
                 .action(version())
@@ -264,8 +449,85 @@ public class Arguments {
                 .metavar("level")
                 .help("(level is an integer specifying level of detail)")
                 .setDefault(0);
+        global.addArgument("--report")
+                .metavar("file")
+                .help("append timing and transfer counters for this run to file (CSV if it ends with .csv, JSON otherwise)");
+        MutuallyExclusiveGroup session = this.parser.addMutuallyExclusiveGroup();
+        session.addArgument("--record")
+                .metavar("file")
+                .help("save every USB transfer with its timing and response to file");
+        session.addArgument("--replay")
+                .metavar("file")
+                .help("run against the responses saved by --record instead of a device");
+        MutuallyExclusiveGroup location = this.parser.addMutuallyExclusiveGroup();
+        location.addArgument("--bus-address")
+                .metavar("bus:address")
+                .help("only use the device at this bus number and device address")
+                .type(new ArgumentType<int[]>() {
+                    @Override
+                    public int[] convert(ArgumentParser parser, Argument arg, String value)
+                            throws ArgumentParserException {
+                        String[] fields = value.split(":");
+                        try {
+                            if (fields.length == 2) {
+                                int[] location = { Integer.parseInt(fields[0]), Integer.parseInt(fields[1]) };
+                                if ((location[0] > 0) && (location[1] > 0)) {
+                                    return location;
+                                }
+                            }
+                        }
+                        catch (NumberFormatException e) {
+                        }
+                        throw new ArgumentParserException(String.format(
+                                "invalid bus:address '%s'", value), parser);
+                    }
+                });
+        location.addArgument("--port-path")
+                .metavar("path")
+                .help("only use the device plugged in at this port, e.g. 1-2.4, also after it re-enumerates")
+                .type(new ArgumentType<String>() {
+                    @Override
+                    public String convert(ArgumentParser parser, Argument arg, String value)
+                            throws ArgumentParserException {
+                        if (!value.matches("[1-9][0-9]*(-[1-9][0-9]*(\\.[1-9][0-9]*)*)?")) {
+                            throw new ArgumentParserException(String.format(
+                                    "invalid port path '%s'", value), parser);
+                        }
+                        return value;
+                    }
+                });
+        location.addArgument("--all")
+                .action(storeTrue())
+                .help("run the command on every matching device at once");
+        global.addArgument("--bulk-per-hub")
+                .type(Integer.class)
+                .choices(range(1, Integer.MAX_VALUE))
+                .metavar("n")
+                .help("with --all, let at most n devices behind the same full speed link move data at a time")
+                .setDefault(UsbScheduler.DEFAULT_BULK_PER_GROUP);
+        global.addArgument("--timeout")
+                .type(Integer.class)
+                .choices(range(0, Integer.MAX_VALUE))
+                .metavar("seconds")
+                .help("with --all, cancel the devices that are not done after this many seconds (0 for no limit)")
+                .setDefault(0);
+        global.addArgument("--replay-no-delay")
+                .action(storeTrue())
+                .help("serve replayed responses immediately instead of with the recorded latency");
+        global.addArgument("--trace")
+                .metavar("file")
+                .help("write the most recent USB transfers to file when the run ends");
+        global.addArgument("--trace-on-error")
+                .action(storeTrue())
+                .help("only write the transfer trace if the run failed");
+        global.addArgument("--trace-payload")
+                .type(Integer.class)
+                .metavar("bytes")
+                .help("number of payload bytes kept for each traced transfer")
+                .setDefault(0);
 
         this.parser.addArgument("target")
+                .help("target controller, or auto to detect it from the device")
                 .type(new ArgumentType<Target>() {
                     @Override
                     public Target convert(ArgumentParser parser, Argument arg, String value)
@@ -321,6 +583,27 @@ public class Arguments {
                 .setConst(MemoryUnit.eeprom)
                 .dest("segment")
                 .help("select eeprom");
+        read.addArgument("-o", "--output")
+                .metavar("file")
+                .help("write to file instead of stdout");
+
+        // Older names for a binary read of the whole segment
+        Subparser dump = commands.addParser("dump")
+                .help("same as read --force --bin");
+        dump.setDefault("segment", MemoryUnit.flash);
+        Subparser edump = commands.addParser("dump-eeprom")
+                .help("same as read --force --bin --eeprom");
+        edump.setDefault("segment", MemoryUnit.eeprom);
+        Subparser udump = commands.addParser("dump-user")
+                .help("same as read --force --bin --user");
+        udump.setDefault("segment", MemoryUnit.user);
+        for (Subparser parser: new Subparser[] { dump, edump, udump }) {
+            parser.setDefault("force", true);
+            parser.setDefault("bin", true);
+            parser.addArgument("-o", "--output")
+                    .metavar("file")
+                    .help("write to file instead of stdout");
+        }
 
         Subparser erase = commands.addParser("erase")
                 .help("erase memory contents if the chip is not blank");
@@ -359,11 +642,141 @@ public class Arguments {
         flash.addArgument("-B", "--suppress-bootloader-mem")
                 .action(storeTrue());
         flash.addArgument("-s", "--serial")
-                .metavar("hexdigits:offset");
+                .metavar("hexdigits:offset")
+                .help("place a serial number at offset, hexdigits may instead be\n"
+                    + "counter:file[:step], csv:file or range:first:last[:step]");
+        flash.addArgument("--serial-width")
+                .type(Integer.class)
+                .metavar("bytes")
+                .setDefault(4)
+                .help("size of numeric serial numbers (default 4)");
+        flash.addArgument("-k", "--skip-identical")
+                .action(storeTrue())
+                .help("skip programming when the device serial number was last flashed\n"
+                    + "with the same image and a spot check of the memory matches");
+        flash.addArgument("-r", "--resume")
+                .action(storeTrue())
+                .help("journal programmed blocks and continue an interrupted flash\n"
+                    + "of the same image after the last committed block");
+        flash.addArgument("--journal")
+                .metavar("directory")
+                .setDefault(System.getProperty("user.home") + File.separator + ".flop_journal")
+                .help("flash journal directory used by --resume");
+        flash.addArgument("--history")
+                .metavar("file")
+                .setDefault(System.getProperty("user.home") + File.separator + ".flop_history")
+                .help("flash history used by --skip-identical");
+        flash.addArgument("--transfer-size")
+                .type(Integer.class)
+                .metavar("bytes")
+                .setDefault(AtmelBuffer.MAX_TRANSFER_SIZE)
+                .help(String.format("largest block sent in one transfer (default %d)", AtmelBuffer.MAX_TRANSFER_SIZE));
+        flash.addArgument("--digest")
+                .choices(digestNames())
+                .metavar("algorithm")
+                .help("hash the memory read back by validation with sha256 or crc32c,\n"
+                    + "and add it to the report with the hash of the image");
         flash.addArgument("file")
                 .type(fileType().acceptSystemIn().verifyCanRead())
                 .setDefault("-");
 
+        Subparser digest = commands.addParser("digest")
+                .help("hash the memory on the device without keeping a copy of it");
+        digest.setDefault("segment", MemoryUnit.flash);
+        MutuallyExclusiveGroup digestSegment = digest.addMutuallyExclusiveGroup("memory segment");
+        digestSegment.addArgument("--flash")
+                .action(storeConst())
+                .setConst(MemoryUnit.flash)
+                .dest("segment")
+                .help("default");
+        digestSegment.addArgument("--user")
+                .action(storeConst())
+                .setConst(MemoryUnit.user)
+                .dest("segment")
+                .help("select user page");
+        digestSegment.addArgument("--eeprom")
+                .action(storeConst())
+                .setConst(MemoryUnit.eeprom)
+                .dest("segment")
+                .help("select eeprom");
+        digest.addArgument("-a", "--algorithm")
+                .choices(digestNames())
+                .setDefault(ImageDigest.Algorithm.SHA_256.getName())
+                .dest("digest")
+                .help("sha256 (default) or crc32c");
+        digest.addArgument("--full")
+                .action(storeTrue())
+                .help("hash the whole memory instead of the region the image covers");
+        digest.addArgument("image")
+                .nargs("?")
+                .type(fileType().verifyCanRead())
+                .help("hex file to compare against, its hash is reported too");
+
+        Subparser plan = commands.addParser("plan")
+                .help("list the transfers a flash would make and estimate its time, without a device");
+        plan.addArgument("-f", "--force")
+                .action(storeTrue())
+                .help("plan without the blank check");
+        plan.setDefault("segment", MemoryUnit.flash);
+        MutuallyExclusiveGroup planSegment = plan.addMutuallyExclusiveGroup("memory segment");
+        planSegment.addArgument("--flash")
+                .action(storeConst())
+                .setConst(MemoryUnit.flash)
+                .dest("segment")
+                .help("default");
+        planSegment.addArgument("--user")
+                .action(storeConst())
+                .setConst(MemoryUnit.user)
+                .dest("segment")
+                .help("select user page");
+        planSegment.addArgument("--eeprom")
+                .action(storeConst())
+                .setConst(MemoryUnit.eeprom)
+                .dest("segment")
+                .help("select eeprom");
+        plan.addArgument("-V", "--suppress-validation")
+                .action(storeTrue());
+        plan.addArgument("-B", "--suppress-bootloader-mem")
+                .action(storeTrue());
+        plan.addArgument("-e", "--erase")
+                .action(storeTrue())
+                .help("erase the chip before flashing");
+        plan.addArgument("--transfer-size")
+                .type(Integer.class)
+                .metavar("bytes")
+                .setDefault(AtmelBuffer.MAX_TRANSFER_SIZE)
+                .help(String.format("largest block sent in one transfer (default %d)", AtmelBuffer.MAX_TRANSFER_SIZE));
+        plan.addArgument("--transfer-latency")
+                .type(Integer.class)
+                .metavar("us")
+                .setDefault(LatencyModel.DEFAULT_TRANSFER_MICROS)
+                .help(String.format("round trip of one control transfer (default %d)", LatencyModel.DEFAULT_TRANSFER_MICROS));
+        plan.addArgument("--byte-time")
+                .type(Integer.class)
+                .metavar("ns")
+                .setDefault(LatencyModel.DEFAULT_BYTE_NANOS)
+                .help(String.format("time to move one byte over the bus (default %d)", LatencyModel.DEFAULT_BYTE_NANOS));
+        plan.addArgument("--program-time")
+                .type(Integer.class)
+                .metavar("us")
+                .setDefault(LatencyModel.DEFAULT_PROGRAM_MICROS)
+                .help(String.format("time to program 1 KiB (default %d)", LatencyModel.DEFAULT_PROGRAM_MICROS));
+        plan.addArgument("--erase-time")
+                .type(Integer.class)
+                .metavar("ms")
+                .setDefault(LatencyModel.DEFAULT_ERASE_MILLIS)
+                .help(String.format("time of a chip erase (default %d)", LatencyModel.DEFAULT_ERASE_MILLIS));
+        plan.setDefault("skip_identical", false);
+        plan.setDefault("resume", false);
+        plan.addArgument("file")
+                .type(fileType().acceptSystemIn().verifyCanRead())
+                .setDefault("-");
+
+        Subparser job = commands.addParser("job")
+                .help("run the commands listed in file, one per line, in a single device session");
+        job.addArgument("file")
+                .type(fileType().verifyCanRead());
+
         Subparser setsecure = commands.addParser("setsecure")
                 .help(" ");
         setsecure.addArgument("");
@@ -476,12 +889,28 @@ public class Arguments {
             case flash:
             case eflash:
             case user:
+            case plan:
                 System.err.println(String.format("   validate: %b", this.getFlashSuppressValidation()));
                 System.err.println(String.format("   hex file: %s", this.getFlashFileName()));
                 break;
             case get:
                 System.err.println(String.format("       name: %s", this.getGetName()));
                 break;
+            case job:
+                System.err.println(String.format("   job file: %s", this.getJobFileName()));
+                break;
+            case digest:
+                System.err.println(String.format("  algorithm: %s", this.getDigestAlgorithm()));
+                System.err.println(String.format("      image: %s", this.getDigestFileName()));
+                break;
+            case read:
+            case dump:
+            case edump:
+            case udump:
+                System.err.println(String.format("    segment: %s", this.getReadSegment()));
+                System.err.println(String.format("      force: %b", this.getReadForce()));
+                System.err.println(String.format("        bin: %b", this.getReadBin()));
+                break;
             case launch:
                 System.err.println(String.format("   no-reset: %b", this.getLaunchNoReset()));
             default:
@@ -490,6 +919,15 @@ public class Arguments {
         System.err.println();
     }
 
+    private static Object[] digestNames() {
+        ImageDigest.Algorithm[] algorithms = ImageDigest.Algorithm.values();
+        Object[] names = new Object[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            names[i] = algorithms[i].getName();
+        }
+        return names;
+    }
+
     private static void printTargets() {
         for (DeviceType deviceType: DeviceType.values()) {
             if (deviceType != DeviceType.NULL) {
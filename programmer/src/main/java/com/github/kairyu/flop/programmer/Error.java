@@ -32,5 +32,7 @@ public class Error {
     public static final int FLASH_WRITE_ERROR               = 6;
     public static final int VALIDATION_ERROR_IN_REGION      = 7;
     public static final int VALIDATION_ERROR_OUTSIDE_REGION = 8;
+    public static final int REPLAY_DEVIATION_ERROR          = 9;
+    public static final int CANCELLED_ERROR                 = 10;
 
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer;
+
+import com.github.kairyu.flop.programmer.dfu.DfuMetrics;
+
+/**
+ * The outcome of one {@link FlopSession.Board} operation: an error code
+ * as in {@link Error}, the value the operation produced, a message saying
+ * what went wrong, and what the operation cost.
+ *
+ * @author Kai Ryu
+ *
+ */
+public final class FlopResult<T> {
+
+    private final int code;
+    private final T value;
+    private final String message;
+    private final DfuMetrics metrics;
+
+    private FlopResult(final int code, final T value, final String message, final DfuMetrics metrics) {
+        this.code = code;
+        this.value = value;
+        this.message = message;
+        this.metrics = metrics;
+    }
+
+    static <T> FlopResult<T> success(final T value) {
+        return new FlopResult<T>(Error.SUCCESS, value, null, null);
+    }
+
+    static <T> FlopResult<T> failure(final int code, final String message) {
+        return new FlopResult<T>(code, null, message, null);
+    }
+
+    FlopResult<T> withMetrics(final DfuMetrics metrics) {
+        return new FlopResult<T>(this.code, this.value, this.message, metrics);
+    }
+
+    public boolean isSuccess() {
+        return this.code == Error.SUCCESS;
+    }
+
+    public int getCode() {
+        return this.code;
+    }
+
+    /**
+     * Returns the value produced, null if the operation failed.
+     */
+    public T getValue() {
+        return this.value;
+    }
+
+    /**
+     * Returns the reason of a failure, null on success.
+     */
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * Returns the counters collected during the operation alone.
+     */
+    public DfuMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    public String toString() {
+        return this.isSuccess() ? String.format("success: %s", this.value) :
+                String.format("error %d: %s", this.code, this.message);
+    }
+
+}
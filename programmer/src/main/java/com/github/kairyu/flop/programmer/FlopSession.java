@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer;
+
+import com.github.kairyu.flop.programmer.atmel.AtmelBuffer;
+import com.github.kairyu.flop.programmer.atmel.AtmelDevice;
+import com.github.kairyu.flop.programmer.atmel.AtmelRange;
+import com.github.kairyu.flop.programmer.atmel.BlockSink;
+import com.github.kairyu.flop.programmer.atmel.BufferIn;
+import com.github.kairyu.flop.programmer.atmel.BufferOut;
+import com.github.kairyu.flop.programmer.atmel.DeviceType;
+import com.github.kairyu.flop.programmer.atmel.EraseMode;
+import com.github.kairyu.flop.programmer.atmel.MemoryUnit;
+import com.github.kairyu.flop.programmer.atmel.Target;
+import com.github.kairyu.flop.programmer.command.Get;
+import com.github.kairyu.flop.programmer.dfu.DfuMetrics;
+import com.github.kairyu.flop.programmer.exception.ControllerErrorException;
+import com.github.kairyu.flop.programmer.exception.DfuException;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Programs devices from within another program.
+ *
+ * A session initializes libusb once and keeps the devices it has opened
+ * before, together with the USB enumeration they took, for the next
+ * board, so a station that programs board after board only pays for them
+ * once. Boards may be open on several threads at a time. Operations are
+ * quiet and report through their {@link FlopResult}.
+ *
+ * <pre>
+ * try (FlopSession session = new FlopSession()) {
+ *     try (FlopSession.Board board = session.open(Target.atmega32u4, null)) {
+ *         BufferOut image = board.newImage(MemoryUnit.flash);
+ *         image.readHexFile("firmware.hex", true);
+ *         board.erase(false);
+ *         board.flash(MemoryUnit.flash, image, false);
+ *         board.verify(MemoryUnit.flash, image);
+ *         board.launch(true);
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Kai Ryu
+ *
+ */
+public class FlopSession implements AutoCloseable {
+
+    private static final Log log = Log.getLog(FlopSession.class.getPackage().getName(), 40);
+
+    private final Context context = new Context();
+    private final Queue<AtmelDevice> idle = new ConcurrentLinkedQueue<AtmelDevice>();
+    private volatile boolean closed = false;
+
+    public FlopSession() throws LibUsbException {
+        int result = LibUsb.init(this.context);
+        if (result < 0) {
+            throw new LibUsbException("Unable to initialize libusb", result);
+        }
+    }
+
+    /**
+     * Returns the port paths of the devices of the target, or of any
+     * supported device for {@link Target#auto}.
+     */
+    public List<String> findDevices(final Target target) throws LibUsbException {
+        AtmelDevice device = this.borrow();
+        try {
+            return device.findDevices(target.getVendorId(), getProductId(target));
+        }
+        finally {
+            this.giveBack(device);
+        }
+    }
+
+    /**
+     * Opens the device of the target at portPath, or the first one found
+     * if portPath is null. {@link Target#auto} opens any supported device
+     * and detects its target.
+     *
+     * @return the open board, or null if there is no such device or its
+     *         target can't be told
+     */
+    public Board open(final Target target, final String portPath) throws LibUsbException, DfuException {
+        AtmelDevice device = this.borrow();
+        Board board = null;
+        try {
+            Device result = device.initDevice(
+                    target.getVendorId(),
+                    getProductId(target),
+                    0,
+                    0,
+                    portPath,
+                    target.getHonorInterfaceClass(),
+                    target.getInitialAbort());
+            if (result == null) {
+                log.debug("No device of %s at %s.", target, portPath);
+                return null;
+            }
+
+            Target actual = target;
+            if (target == Target.auto) {
+                actual = device.identify(Target.getByUsbId(device.getVendorId(), device.getProductId()));
+                if (actual == null) {
+                    log.debug("Can't tell the target of device 0x%04x:0x%04x, open it with an explicit target.",
+                            device.getVendorId(), device.getProductId());
+                    return null;
+                }
+            }
+            device.setType(actual.getDeviceType());
+            device.setEraseBudget(actual.getEraseBudget());
+            board = new Board(device, actual);
+            return board;
+        }
+        finally {
+            if (board == null) {
+                if (device.isInitialized()) {
+                    device.uninitDevice();
+                }
+                this.giveBack(device);
+            }
+        }
+    }
+
+    /**
+     * Releases libusb. Boards still open must be closed first.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        AtmelDevice device;
+        while ((device = this.idle.poll()) != null) {
+            device.uninit();
+        }
+        LibUsb.exit(this.context);
+    }
+
+    private static int getProductId(final Target target) {
+        return (target == Target.auto) ? AtmelDevice.ANY_PRODUCT : target.getChipId();
+    }
+
+    private AtmelDevice borrow() {
+        if (this.closed) {
+            throw new IllegalStateException("Session is closed");
+        }
+        AtmelDevice device = this.idle.poll();
+        if (device == null) {
+            device = new AtmelDevice();
+            device.init(this.context);
+        }
+        return device;
+    }
+
+    private void giveBack(final AtmelDevice device) {
+        if (this.closed) {
+            device.uninit();
+        }
+        else {
+            this.idle.add(device);
+        }
+    }
+
+    /**
+     * An open device. A board is used by one thread at a time, and not at
+     * all once closed.
+     */
+    public final class Board implements AutoCloseable {
+
+        private final AtmelDevice device;
+        private final Target target;
+        private final DfuMetrics opened;
+        private volatile boolean closed = false;
+
+        private Board(final AtmelDevice device, final Target target) {
+            this.device = device;
+            this.target = target;
+            this.opened = device.getMetrics().copy();
+        }
+
+        public Target getTarget() {
+            return this.target;
+        }
+
+        public String getSerialNumber() {
+            this.checkOpen();
+            return this.device.getSerialNumber();
+        }
+
+        public String getPortPath() {
+            this.checkOpen();
+            return this.device.getPortPath();
+        }
+
+        /**
+         * Returns the counters collected since the board was opened.
+         */
+        public DfuMetrics getMetrics() {
+            this.checkOpen();
+            return this.device.getMetrics().since(this.opened);
+        }
+
+        /**
+         * Returns an empty image of a memory segment of the target, to be
+         * filled and passed to {@link #flash} and {@link #verify}.
+         *
+         * @throws IllegalArgumentException if the target has no such segment
+         */
+        public BufferOut newImage(final MemoryUnit segment) {
+            this.checkOpen();
+            final AtmelRange range = this.getRange(segment);
+            if (range == null) {
+                throw new IllegalArgumentException(String.format("%s has no %s memory", this.target, segment));
+            }
+            final int pageSize = (segment == MemoryUnit.eeprom) ?
+                    this.target.getEepromPageSize() : this.target.getFlashPageSize();
+            final int offset = (segment == MemoryUnit.user) ? AtmelDevice.USER_PAGE_OFFSET : 0;
+            final int size = (segment == MemoryUnit.flash) ? this.target.getMemoryAddressTop() + 1 : range.getLength();
+
+            BufferOut image = new BufferOut();
+            if (image.init(size, pageSize, offset) != 0) {
+                throw new IllegalArgumentException(String.format("Can't make an image of %s memory", segment));
+            }
+            return image;
+        }
+
+        /**
+         * Erases the flash memory and checks that it is blank.
+         *
+         * @param force erase even if the memory is blank already
+         * @return whether the memory was erased
+         */
+        public FlopResult<Boolean> erase(final boolean force) {
+            return this.execute(() -> {
+                final int start = this.target.getFlashAddressBottom();
+                final int end = this.target.getFlashAddressTop();
+                if (!force && this.device.checkBlank(start, end, true) == 0) {
+                    return FlopResult.success(Boolean.FALSE);
+                }
+                if (this.device.eraseFlash(EraseMode.ERASE_BLOCK_ALL, true) != 0) {
+                    return FlopResult.failure(Error.FLASH_WRITE_ERROR, "erase failed");
+                }
+                if (this.device.checkBlank(start, end, true) != 0) {
+                    return FlopResult.failure(Error.VALIDATION_ERROR_IN_REGION, "memory is not blank after erase");
+                }
+                return FlopResult.success(Boolean.TRUE);
+            });
+        }
+
+        /**
+         * Writes an image made by {@link #newImage}. Flash images must
+         * leave the bootloader out, the user page is only written with
+         * force. The image itself is left as it was, so it can be
+         * flashed to the next board.
+         *
+         * @return the number of bytes written, with the pages padded
+         */
+        public FlopResult<Integer> flash(final MemoryUnit segment, final BufferOut caller, final boolean force) {
+            return this.execute(() -> {
+                final BufferOut image = this.copyImage(segment, caller);
+                if (image == null) {
+                    return FlopResult.failure(Error.BUFFER_INIT_ERROR, "can't copy the image");
+                }
+                if (segment == MemoryUnit.flash && !image.getDataRanges().intersect(
+                        new AtmelRange(this.target.getBootloaderBottom(), this.target.getBootloaderTop())).isEmpty()) {
+                    return FlopResult.failure(Error.BUFFER_INIT_ERROR, "image overlaps the bootloader");
+                }
+                if (!image.hasData()) {
+                    return FlopResult.failure(Error.BUFFER_INIT_ERROR, "image holds no data");
+                }
+
+                int result;
+                if (segment == MemoryUnit.user) {
+                    if (!force) {
+                        return FlopResult.failure(Error.ARGUMENT_ERROR,
+                                "writing the user page erases its configuration words and needs force");
+                    }
+                    result = this.device.user(image);
+                }
+                else {
+                    result = this.device.flash(image, (segment == MemoryUnit.eeprom), force, true);
+                }
+                if (result != 0) {
+                    return FlopResult.failure(Error.FLASH_WRITE_ERROR,
+                            String.format("writing %s memory failed (err %d)", segment, result));
+                }
+                return FlopResult.success(image.getDataLength());
+            });
+        }
+
+        /**
+         * Reads a memory segment back and compares it with an image.
+         */
+        public FlopResult<Void> verify(final MemoryUnit segment, final BufferOut caller) {
+            return this.execute(() -> {
+                final BufferOut image = this.copyImage(segment, caller);
+                if (image == null) {
+                    return FlopResult.failure(Error.BUFFER_INIT_ERROR, "can't copy the image");
+                }
+                final BufferIn readBack = new BufferIn();
+                if (readBack.init(image) != 0) {
+                    return FlopResult.failure(Error.BUFFER_INIT_ERROR, "can't make a buffer for the read back");
+                }
+                readBack.getDataRange().set(image.getValidRange());
+
+                if (this.device.readFlash(readBack, segment, true) != 0) {
+                    return FlopResult.failure(Error.FLASH_READ_ERROR, String.format("reading %s memory failed", segment));
+                }
+                final int result = this.device.validateBuffer(readBack, image, true);
+                if (result < 0) {
+                    return FlopResult.failure(Error.VALIDATION_ERROR_IN_REGION, "memory differs from the image");
+                }
+                else if (result > 0) {
+                    return FlopResult.failure(Error.VALIDATION_ERROR_OUTSIDE_REGION,
+                            "memory outside the image is not blank");
+                }
+                return FlopResult.success(null);
+            });
+        }
+
+        /**
+         * Reads a whole memory segment.
+         */
+        public FlopResult<byte[]> read(final MemoryUnit segment) {
+            return this.execute(() -> {
+                final AtmelRange range = this.getRange(segment);
+                if (range == null) {
+                    return FlopResult.failure(Error.ARGUMENT_ERROR,
+                            String.format("%s has no %s memory", this.target, segment));
+                }
+                final byte[] data = new byte[range.getLength()];
+                final int result = this.device.readFlash(range, AtmelBuffer.MAX_TRANSFER_SIZE, segment, true,
+                        new BlockSink() {
+                            @Override
+                            public int putBlock(final AtmelRange block, final ByteBuffer bytes) {
+                                bytes.duplicate().get(data, block.getStart() - range.getStart(), block.getLength());
+                                return 0;
+                            }
+                        });
+                if (result != 0) {
+                    return FlopResult.failure(Error.FLASH_READ_ERROR, String.format("reading %s memory failed", segment));
+                }
+                return FlopResult.success(data);
+            });
+        }
+
+        /**
+         * Reads a field of the device information.
+         */
+        public FlopResult<Short> getInfo(final Get get) {
+            return this.execute(() -> {
+                final DeviceType type = this.device.getType();
+                this.device.checkSecurity();
+                try {
+                    this.device.getDeviceInfo().checkInfo(get);
+                    if (get.getCommand(type) == null) {
+                        return FlopResult.failure(Error.ARGUMENT_ERROR,
+                                String.format("%s is not available on %s", get.getDescription(), type));
+                    }
+                    final short value = this.device.readInfo(get);
+                    if (value < 0) {
+                        final String security = this.device.getSecurityMessage();
+                        return FlopResult.failure(Error.DEVICE_ACCESS_ERROR,
+                                String.format("error reading %s", get.getDescription()) +
+                                ((security != null) ? ". " + security : ""));
+                    }
+                    return FlopResult.success(value);
+                }
+                catch (ControllerErrorException e) {
+                    return FlopResult.failure(Error.ARGUMENT_ERROR, e.getMessage());
+                }
+            });
+        }
+
+        /**
+         * Starts the application. The board can only be closed afterwards.
+         *
+         * @param reset start it through a reset of the controller
+         */
+        public FlopResult<Void> launch(final boolean reset) {
+            return this.execute(() -> {
+                final int result = reset ? this.device.startAppReset() : this.device.startAppNoReset();
+                if (result != 0) {
+                    return FlopResult.failure(Error.DEVICE_ACCESS_ERROR,
+                            String.format("starting the application failed (err %d)", result));
+                }
+                return FlopResult.success(null);
+            });
+        }
+
+        /**
+         * Closes the device and keeps it for the next board of the session.
+         * Closing again does nothing.
+         */
+        @Override
+        public void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                if (this.device.isInitialized()) {
+                    this.device.uninitDevice();
+                }
+            }
+            catch (LibUsbException e) {
+                log.debug("Error closing %s: %s", this.device.getPortPath(), e.getMessage());
+            }
+            FlopSession.this.giveBack(this.device);
+        }
+
+        private void checkOpen() {
+            if (this.closed) {
+                throw new IllegalStateException("Board is closed");
+            }
+        }
+
+        /*
+         * A copy of the caller's image with the valid range of the segment,
+         * as flashing pads the image and both set the valid range.
+         */
+        private BufferOut copyImage(final MemoryUnit segment, final BufferOut image) {
+            BufferOut copy = new BufferOut();
+            if (copy.copy(image) != 0) {
+                return null;
+            }
+            if (segment == MemoryUnit.flash) {
+                copy.getValidRange().set(this.target.getFlashAddressBottom(), this.target.getFlashAddressTop());
+            }
+            return copy;
+        }
+
+        private AtmelRange getRange(final MemoryUnit segment) {
+            switch (segment) {
+                case flash:
+                    return new AtmelRange(this.target.getFlashAddressBottom(), this.target.getFlashAddressTop());
+                case eeprom:
+                    return (this.target.getEepromMemorySize() == 0) ? null :
+                            new AtmelRange(0, this.target.getEepromMemorySize() - 1);
+                case user:
+                    return !this.target.getDeviceType().isType(DeviceType.ADC_AVR32) ? null :
+                            new AtmelRange(0, this.target.getFlashPageSize() - 1);
+                default:
+                    return null;
+            }
+        }
+
+        private <T> FlopResult<T> execute(final Operation<T> operation) {
+            this.checkOpen();
+            final DfuMetrics mark = this.device.getMetrics().copy();
+            this.device.clearLastError();
+            FlopResult<T> result;
+            try {
+                result = operation.run();
+            }
+            catch (LibUsbException e) {
+                result = FlopResult.failure(Error.DEVICE_ACCESS_ERROR, e.getMessage());
+            }
+            catch (DfuException e) {
+                result = FlopResult.failure(Error.DEVICE_ACCESS_ERROR, e.getMessage());
+            }
+            catch (RuntimeException e) {
+                log.debug("%s failed: %s", this.device.getPortPath(), e);
+                result = FlopResult.failure(Error.UNSPECIFIED_ERROR, e.toString());
+            }
+            if (!result.isSuccess() && this.device.getTimeoutCause() != null) {
+                // the budget that ran out says more than the step that failed
+                result = FlopResult.failure(result.getCode(), this.device.getTimeoutCause());
+            }
+            return result.withMetrics(this.device.getMetrics().since(mark));
+        }
+    }
+
+    private interface Operation<T> {
+        FlopResult<T> run();
+    }
+
+}
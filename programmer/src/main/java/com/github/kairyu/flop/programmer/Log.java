@@ -17,14 +17,26 @@
 
 package com.github.kairyu.flop.programmer;
 
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.ErrorManager;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.logging.Formatter;
-import java.util.logging.ConsoleHandler;
 
 /**
  * @author Kai Ryu
@@ -62,24 +74,201 @@ public class Log {
 
     }
 
+    /**
+     * A record tagged with the device context of the thread that logged it.
+     */
+    private static class ContextLogRecord extends LogRecord {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String context;
+
+        public ContextLogRecord(final Level level, final String message, final String context) {
+            super(level, message);
+            this.context = context;
+        }
+
+        public String getContext() {
+            return this.context;
+        }
+    }
+
     public static class LogFormatter extends Formatter {
 
         @Override
         public String format(LogRecord record) {
-            return String.format("[%1$s] %2$s.%3$s: %4$s%n",
+            String context = null;
+            if (record instanceof ContextLogRecord) {
+                context = ((ContextLogRecord) record).getContext();
+            }
+            return String.format("[%1$s] %5$s%2$s.%3$s: %4$s%n",
                     LogLevel.getByLevel(record.getLevel()),
                     record.getSourceClassName()
                         .replace(Log.class.getPackage().getName() + ".", ""),
                         //.split("\\.")[0],
                     record.getSourceMethodName(),
-                    record.getMessage()
+                    record.getMessage(),
+                    (context != null) ? "<" + context + "> " : ""
                     );
         }
     }
 
-    private static List<Log> logs = new ArrayList<Log>();
-    private static int globalDebug = 0;
+    /**
+     * Writes records from a single background thread, so logging threads
+     * only wait on a bounded queue and never on the console itself.
+     * Records queued together are formatted and written in one batch.
+     */
+    public static class AsyncHandler extends Handler {
+
+        private static final int QUEUE_SIZE = 4096;
+
+        private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(QUEUE_SIZE);
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private final Lock lock = new ReentrantLock();
+        private final Condition drained = this.lock.newCondition();
+        private final PrintStream stream;
+        private final Thread writer;
+        private volatile boolean closed = false;
+
+        public AsyncHandler(final PrintStream stream) {
+            this.stream = stream;
+            this.setFormatter(new LogFormatter());
+            this.setLevel(Level.ALL);
+            this.writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    AsyncHandler.this.write();
+                }
+            }, "flop-log");
+            this.writer.setDaemon(true);
+            this.writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    AsyncHandler.this.close();
+                }
+            }));
+        }
+
+        @Override
+        public void publish(final LogRecord record) {
+            if (this.closed || !this.isLoggable(record)) {
+                return;
+            }
+            try {
+                this.queue.put(record);
+                this.queued.incrementAndGet();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits until every record queued so far has been written.
+         */
+        @Override
+        public void flush() {
+            final long target = this.queued.get();
+            if (this.written.get() < target && Thread.currentThread() != this.writer) {
+                this.lock.lock();
+                try {
+                    while (this.written.get() < target && this.writer.isAlive()) {
+                        this.drained.await(1, TimeUnit.SECONDS);
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    this.lock.unlock();
+                }
+            }
+            this.stream.flush();
+        }
+
+        @Override
+        public void close() {
+            this.flush();
+            this.closed = true;
+        }
+
+        private void write() {
+            final List<LogRecord> batch = new ArrayList<LogRecord>();
+            final StringBuilder builder = new StringBuilder();
+            while (true) {
+                try {
+                    final LogRecord first = this.queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    this.queue.drainTo(batch);
+                    for (LogRecord record: batch) {
+                        try {
+                            builder.append(this.getFormatter().format(record));
+                        }
+                        catch (RuntimeException e) {
+                            this.reportError(null, e, ErrorManager.FORMAT_FAILURE);
+                        }
+                    }
+                    this.stream.print(builder);
+                    this.stream.flush();
+                    this.lock.lock();
+                    try {
+                        this.written.addAndGet(batch.size());
+                        this.drained.signalAll();
+                    }
+                    finally {
+                        this.lock.unlock();
+                    }
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                finally {
+                    batch.clear();
+                    builder.setLength(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stands in for System.err in the command line tool and lets the
+     * queued records out before anything printed to it directly, so
+     * messages and log records appear in the order they were made.
+     */
+    private static class OrderedStream extends PrintStream {
+
+        private final AsyncHandler handler;
+
+        public OrderedStream(final PrintStream stream, final AsyncHandler handler) {
+            super(stream, true);
+            this.handler = handler;
+        }
+
+        @Override
+        public void write(final int b) {
+            this.handler.flush();
+            super.write(b);
+        }
+
+        @Override
+        public void write(final byte[] buf, final int off, final int len) {
+            this.handler.flush();
+            super.write(buf, off, len);
+        }
+    }
+
+    private static final ConcurrentMap<String, Log> logs = new ConcurrentHashMap<String, Log>();
+    private static final InheritableThreadLocal<String> context = new InheritableThreadLocal<String>();
+    private static final StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    private static AsyncHandler handler = null;
+    private static volatile int globalDebug = 0;
     private Logger logger;
+    private volatile LogLevel level = LogLevel.DEFAULT;
     private final int debugThreshold;
     private final int traceThreshold;
     private final int msgDebugThreshold;
@@ -94,31 +283,65 @@ public class Log {
     }
 
     public static Log getLog(final String name, final int debugThreshold, final int traceThreshold, final int msgDebugThreshold) {
-        Log log = getLog(name);
+        Log log = logs.get(name);
         if (log == null) {
             log = new Log(name, debugThreshold, traceThreshold, msgDebugThreshold);
             log.setDebug(globalDebug);
-            logs.add(log);
-        }
-        return log;
-    }
-
-    private static Log getLog(final String name) {
-        for (Log log: logs) {
-            if (log.getName().equals(name)) {
-                return log;
+            Log existing = logs.putIfAbsent(name, log);
+            if (existing != null) {
+                log = existing;
             }
         }
-        return null;
+        return log;
     }
 
     public static void setGlobalDebug(final int debug) {
         globalDebug = debug;
-        for (Log log: logs) {
+        for (Log log: logs.values()) {
             log.setDebug(debug);
         }
     }
 
+    /**
+     * Tags the records logged from this thread, and threads it starts,
+     * with the device being worked on, e.g. its serial number.
+     */
+    public static void setContext(final String deviceContext) {
+        if (deviceContext == null) {
+            context.remove();
+        }
+        else {
+            context.set(deviceContext);
+        }
+    }
+
+    public static String getContext() {
+        return context.get();
+    }
+
+    public static void flush() {
+        getHandler().flush();
+    }
+
+    private static synchronized AsyncHandler getHandler() {
+        if (handler == null) {
+            handler = new AsyncHandler(System.err);
+        }
+        return handler;
+    }
+
+    /**
+     * Makes what is printed to System.err wait for the records queued
+     * before it. Only meant for programs that own the console, as every
+     * write then waits for the log to drain.
+     */
+    public static synchronized void orderStandardError() {
+        final AsyncHandler handler = getHandler();
+        if (!(System.err instanceof OrderedStream)) {
+            System.setErr(new OrderedStream(System.err, handler));
+        }
+    }
+
     public static int getGlobalDebug() {
         return globalDebug;
     }
@@ -133,9 +356,17 @@ public class Log {
 
     public Log(final String name, final int debugThreshold, final int traceThreshold, final int msgDebugThreshold) {
         this.logger = Logger.getLogger(name);
-        ConsoleHandler handler = new ConsoleHandler();
-        handler.setFormatter(new LogFormatter());
-        this.logger.addHandler(handler);
+        this.logger.setUseParentHandlers(false);
+        final AsyncHandler handler = getHandler();
+        synchronized (this.logger) {
+            boolean attached = false;
+            for (Handler h: this.logger.getHandlers()) {
+                attached |= (h == handler);
+            }
+            if (!attached) {
+                this.logger.addHandler(handler);
+            }
+        }
 
         this.debugThreshold = debugThreshold;
         this.traceThreshold = traceThreshold;
@@ -162,9 +393,23 @@ public class Log {
         }
 
         this.logger.setLevel(level.getLevel());
-        for (Handler handler: this.logger.getHandlers()) {
-            handler.setLevel(level.getLevel());
-        }
+        this.level = level;
+    }
+
+    public boolean isDebugEnabled() {
+        return this.isEnabled(LogLevel.DEBUG);
+    }
+
+    public boolean isTraceEnabled() {
+        return this.isEnabled(LogLevel.TRACE);
+    }
+
+    public boolean isMsgDebugEnabled() {
+        return this.isEnabled(LogLevel.MSG_DEBUG);
+    }
+
+    private boolean isEnabled(final LogLevel level) {
+        return level.ordinal() <= this.level.ordinal();
     }
 
     public void error(final String format, final Object... objects) {
@@ -187,9 +432,46 @@ public class Log {
         this.log(LogLevel.MSG_DEBUG, format, objects);
     }
 
+    public void debug(final Supplier<String> message) {
+        this.log(LogLevel.DEBUG, message);
+    }
+
+    public void trace(final Supplier<String> message) {
+        this.log(LogLevel.TRACE, message);
+    }
+
+    public void msgDebug(final Supplier<String> message) {
+        this.log(LogLevel.MSG_DEBUG, message);
+    }
+
     private void log(final LogLevel level, final String format, final Object... objects) {
-        StackTraceElement stackTrace = Thread.currentThread().getStackTrace()[3];
-        this.logger.logp(level.getLevel(), stackTrace.getClassName(), stackTrace.getMethodName(), String.format(format, objects));
+        if (this.isEnabled(level)) {
+            this.logp(level, String.format(format, objects));
+        }
+    }
+
+    private void log(final LogLevel level, final Supplier<String> message) {
+        if (this.isEnabled(level)) {
+            this.logp(level, message.get());
+        }
+    }
+
+    /*
+     * The caller is only looked up once a record is known to be written.
+     * Walk past the frames of this class rather than using a fixed depth,
+     * so that every overload resolves to the same caller. The walker
+     * stops at the first frame outside this class instead of capturing
+     * the whole stack.
+     */
+    private void logp(final LogLevel level, final String message) {
+        final Optional<StackWalker.StackFrame> caller = walker.walk(frames -> frames
+                .filter(frame -> frame.getDeclaringClass() != Log.class)
+                .findFirst());
+        LogRecord record = new ContextLogRecord(level.getLevel(), message, context.get());
+        record.setSourceClassName(caller.map(StackWalker.StackFrame::getClassName).orElse(null));
+        record.setSourceMethodName(caller.map(StackWalker.StackFrame::getMethodName).orElse(null));
+        record.setLoggerName(this.logger.getName());
+        this.logger.log(record);
     }
 
 }
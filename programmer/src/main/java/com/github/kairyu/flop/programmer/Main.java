@@ -18,10 +18,32 @@
 package com.github.kairyu.flop.programmer;
 
 import com.github.kairyu.flop.programmer.atmel.AtmelDevice;
+import com.github.kairyu.flop.programmer.atmel.ConsoleProgress;
+import com.github.kairyu.flop.programmer.atmel.Target;
+import com.github.kairyu.flop.programmer.command.Command;
 import com.github.kairyu.flop.programmer.command.Commands;
+import com.github.kairyu.flop.programmer.command.DeviceScope;
+import com.github.kairyu.flop.programmer.dfu.DfuMetrics;
+import com.github.kairyu.flop.programmer.dfu.RecordingTransport;
+import com.github.kairyu.flop.programmer.dfu.ReplayTransport;
+import com.github.kairyu.flop.programmer.dfu.TransferTrace;
+import com.github.kairyu.flop.programmer.dfu.UsbScheduler;
+import com.github.kairyu.flop.programmer.dfu.UsbSnapshot;
 import com.github.kairyu.flop.programmer.exception.DfuException;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.usb4java.Context;
 import org.usb4java.Device;
+import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 
 /**
@@ -30,6 +52,240 @@ import org.usb4java.LibUsbException;
  */
 public class Main {
 
+    private static final Lock reportLock = new ReentrantLock();
+
+    /*
+     * Replaces the auto target with the one the open device turns out to be.
+     */
+    private static boolean identifyTarget(final AtmelDevice device, final Arguments arguments) {
+        if (arguments.getTarget() != Target.auto) {
+            return true;
+        }
+
+        final List<Target> targets = Target.getByUsbId(device.getVendorId(), device.getProductId());
+        final Target target = device.identify(targets);
+        if (target == null) {
+            if (targets.size() > 1) {
+                System.err.println(String.format("flop: targets %s share the USB id 0x%04x:0x%04x and can't be "
+                        + "told apart, give the target instead of auto",
+                        targets, device.getVendorId(), device.getProductId()));
+            }
+            else {
+                System.err.println(String.format("flop: can't tell the target of device 0x%04x:0x%04x",
+                        device.getVendorId(), device.getProductId()));
+            }
+            return false;
+        }
+
+        if (!arguments.getQuiet()) {
+            System.err.println(String.format("Detected target %s.", target));
+        }
+        arguments.setTarget(target);
+        return true;
+    }
+
+    /*
+     * Fixes the order of the report columns, whichever ones the command fills in.
+     */
+    private static void declareReport(final AtmelDevice device, final Arguments arguments) {
+        if (arguments.getReportFileName() != null) {
+            for (String name: new String[] { "command", "target", "serial", "result",
+                    Commands.REPORT_DIGEST_ALGORITHM, Commands.REPORT_DIGEST_RANGE,
+                    Commands.REPORT_IMAGE_DIGEST, Commands.REPORT_DEVICE_DIGEST }) {
+                device.getMetrics().setAttribute(name, null);
+            }
+        }
+    }
+
+    /*
+     * Appends the run to the report, one device at a time with --all.
+     */
+    private static void writeReport(final AtmelDevice device, final Arguments arguments, final int retval) {
+        final String report = arguments.getReportFileName();
+        if (report != null) {
+            DfuMetrics metrics = device.getMetrics();
+            metrics.setAttribute("command", arguments.getCommandName());
+            metrics.setAttribute("target", arguments.getTargetName());
+            metrics.setAttribute("serial", device.getSerialNumber());
+            metrics.setAttribute("result", retval);
+            reportLock.lock();
+            try {
+                metrics.writeReport(report);
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            finally {
+                reportLock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Says which budget a device ran out of, the error code alone only
+     * tells that a transfer failed.
+     */
+    private static void printTimeout(final AtmelDevice device, final String prefix) {
+        if (device.getTimeoutCause() != null) {
+            System.err.println(String.format("flop: %s%s, giving up on the device", prefix, device.getTimeoutCause()));
+        }
+    }
+
+    private static int getProductId(final Arguments arguments) {
+        return (arguments.getTarget() == Target.auto) ? AtmelDevice.ANY_PRODUCT : arguments.getProductId();
+    }
+
+    /*
+     * Runs the command on every matching device, each as a job of one
+     * scope. Erasing and enumeration overlap freely, flashing and reading
+     * take turns on the links the devices share.
+     */
+    private static int runAll(final Arguments arguments) {
+        switch (arguments.getCommand()) {
+            case plan:
+            case read:
+            case dump:
+            case edump:
+            case udump:
+                System.err.println(String.format("flop: %s can't be used with --all", arguments.getCommandName()));
+                return Error.ARGUMENT_ERROR;
+            default:
+                break;
+        }
+        if (arguments.getRecordFileName() != null || arguments.getReplayFileName() != null ||
+                arguments.getTraceFileName() != null) {
+            System.err.println("flop: --record, --replay and --trace can't be used with --all");
+            return Error.ARGUMENT_ERROR;
+        }
+        // every job then uses the one serial source and history opened here
+        final int shared = Commands.openShared(arguments);
+        if (shared != Error.SUCCESS) {
+            return shared;
+        }
+
+        // libusb is initialized and the bus enumerated once for all the jobs
+        final Context context = new Context();
+        if (LibUsb.init(context) < 0) {
+            System.err.println("can't init libusb.");
+            return Error.DEVICE_ACCESS_ERROR;
+        }
+        final List<String> paths;
+        final List<Future<Integer>> jobs = new ArrayList<Future<Integer>>();
+        int retval;
+        AtmelDevice probe = new AtmelDevice();
+        probe.init(context);
+        try {
+            final Set<String> groups = new LinkedHashSet<String>();
+            try {
+                paths = probe.findDevices(arguments.getVendorId(), getProductId(arguments));
+                for (String path: paths) {
+                    groups.add(UsbScheduler.getGroup(probe.getSnapshot(), path));
+                }
+            }
+            catch (LibUsbException e) {
+                System.err.println(e.getMessage());
+                return Error.DEVICE_ACCESS_ERROR;
+            }
+
+            if (paths.isEmpty()) {
+                System.err.println("flop: no device present");
+                return Error.DEVICE_ACCESS_ERROR;
+            }
+            if (!arguments.getQuiet()) {
+                System.err.println(String.format("Found %d devices on %d links.", paths.size(), groups.size()));
+            }
+
+            final UsbSnapshot snapshot = probe.getSnapshot();
+            final UsbScheduler scheduler = new UsbScheduler(arguments.getBulkPerHub());
+            try (DeviceScope scope = new DeviceScope("flop", false)) {
+                for (String path: paths) {
+                    final Arguments copy = arguments.copy();
+                    jobs.add(scope.fork(() -> runDevice(copy, path, context, snapshot, scheduler)));
+                }
+                retval = scope.join(arguments.getTimeout(), TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Error.CANCELLED_ERROR;
+            }
+        }
+        finally {
+            // the scope has waited for every job to let go of the snapshot
+            probe.uninit();
+            LibUsb.exit(context);
+        }
+
+        for (int i = 0; i < jobs.size(); i++) {
+            final int result = DeviceScope.getResult(jobs.get(i));
+            if (!arguments.getQuiet() || result != Error.SUCCESS) {
+                System.err.println(String.format("%s: %s", paths.get(i),
+                        (result == Error.SUCCESS) ? "Success" :
+                        (result == Error.CANCELLED_ERROR) ? "cancelled" : "ERROR " + result));
+            }
+        }
+        return retval;
+    }
+
+    /*
+     * Opens the device at portPath, looking it up in the snapshot of the
+     * probe, and runs the command on it. The arguments are the job's own
+     * copy, as the target may be detected differently.
+     */
+    private static int runDevice(final Arguments arguments, final String portPath, final Context context,
+            final UsbSnapshot snapshot, final UsbScheduler scheduler) {
+        AtmelDevice device = new AtmelDevice();
+        device.init(context, snapshot);
+        device.setScheduler(scheduler);
+        declareReport(device, arguments);
+
+        int retval;
+        try {
+            Device result = device.initDevice(
+                    arguments.getVendorId(),
+                    getProductId(arguments),
+                    0,
+                    0,
+                    portPath,
+                    arguments.getHonorInterfaceClass(),
+                    arguments.getInitialAbort());
+            if (result == null) {
+                System.err.println(String.format("flop: %s: device is gone", portPath));
+                retval = Error.DEVICE_ACCESS_ERROR;
+            }
+            else if (!identifyTarget(device, arguments)) {
+                retval = Error.ARGUMENT_ERROR;
+            }
+            else {
+                retval = Commands.executeCommand(device, arguments);
+            }
+        }
+        catch (LibUsbException e) {
+            System.err.println(String.format("%s: %s", portPath, e.getMessage()));
+            retval = Error.DEVICE_ACCESS_ERROR;
+        }
+        catch (DfuException e) {
+            System.err.println(String.format("%s: %s", portPath, e.getMessage()));
+            retval = Error.DEVICE_ACCESS_ERROR;
+        }
+        finally {
+            try {
+                if (device.isInitialized()) {
+                    device.uninitDevice();
+                }
+            }
+            catch (Exception e) {
+                retval = Error.DEVICE_ACCESS_ERROR;
+            }
+            device.uninit();
+        }
+
+        if (retval != Error.SUCCESS) {
+            printTimeout(device, portPath + ": ");
+        }
+        writeReport(device, arguments, retval);
+        return retval;
+    }
+
     public static void main(String[] args) {
 
         int retval = Error.SUCCESS;
@@ -45,6 +301,11 @@ public class Main {
 
         final int debug = arguments.getDebug();
         Log.setGlobalDebug(debug);
+        Log.orderStandardError();
+
+        if (arguments.getAll()) {
+            System.exit(runAll(arguments));
+        }
 
         AtmelDevice device = new AtmelDevice();
         try {
@@ -59,29 +320,91 @@ public class Main {
             device.setDebug(debug);
         }
 
-        int bus_number = 0;
-        int device_address = 0;
+        if (!arguments.getQuiet()) {
+            device.setProgressListener(new ConsoleProgress(System.err));
+        }
+
+        final String trace = arguments.getTraceFileName();
+        if (trace != null && arguments.getTracePayload() > 0) {
+            device.setTrace(new TransferTrace(TransferTrace.DEFAULT_CAPACITY, arguments.getTracePayload()));
+        }
+
+        declareReport(device, arguments);
+
+        ReplayTransport replay = null;
+        RecordingTransport recording = null;
         try {
-            Device result = device.initDevice(
-                    arguments.getVendorId(),
-                    arguments.getProductId(),
-                    bus_number,
-                    device_address,
-                    arguments.getHonorInterfaceClass(),
-                    arguments.getInitialAbort());
-            if (result == null) {
-                System.err.println("flop: no device present");
-                retval = Error.DEVICE_ACCESS_ERROR;
+            if (arguments.getReplayFileName() != null) {
+                replay = new ReplayTransport(arguments.getReplayFileName(), !arguments.getReplayNoDelay());
+                device.setTransport(replay);
+            }
+            else if (arguments.getRecordFileName() != null) {
+                recording = new RecordingTransport(device.getTransport(), arguments.getRecordFileName());
+                device.setTransport(recording);
+            }
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            device.uninit();
+            System.exit(Error.ARGUMENT_ERROR);
+        }
+
+        try {
+            if (arguments.getCommand() == Command.plan) {
+                if (arguments.getTarget() == Target.auto) {
+                    System.err.println("flop: plan needs an explicit target");
+                    retval = Error.ARGUMENT_ERROR;
+                }
+                else {
+                    retval = Commands.executeCommand(device, arguments);
+                }
+            }
+            else if (replay != null) {
+                device.setUsbId(replay.getVendorId(), replay.getProductId());
+                if (device.initTransport(arguments.getInitialAbort()) != 0) {
+                    System.err.println("flop: replayed device did not become idle");
+                    retval = Error.DEVICE_ACCESS_ERROR;
+                }
+                else if (!identifyTarget(device, arguments)) {
+                    retval = Error.ARGUMENT_ERROR;
+                }
+                else {
+                    retval = Commands.executeCommand(device, arguments);
+                }
             }
             else {
-                retval = Commands.executeCommand(device, arguments);
+                Device result = device.initDevice(
+                        arguments.getVendorId(),
+                        getProductId(arguments),
+                        arguments.getBusNumber(),
+                        arguments.getDeviceAddress(),
+                        arguments.getPortPath(),
+                        arguments.getHonorInterfaceClass(),
+                        arguments.getInitialAbort());
+                if (result == null) {
+                    System.err.println("flop: no device present");
+                    retval = Error.DEVICE_ACCESS_ERROR;
+                }
+                else {
+                    if (recording != null) {
+                        recording.recordDevice(device.getVendorId(), device.getProductId());
+                    }
+                    if (!identifyTarget(device, arguments)) {
+                        retval = Error.ARGUMENT_ERROR;
+                    }
+                    else {
+                        retval = Commands.executeCommand(device, arguments);
+                    }
+                }
             }
         }
         catch (LibUsbException e) {
             System.err.println(e.getMessage());
+            retval = Error.DEVICE_ACCESS_ERROR;
         }
         catch (DfuException e) {
             System.err.println(e.getMessage());
+            retval = Error.DEVICE_ACCESS_ERROR;
         }
         finally {
             try {
@@ -95,6 +418,44 @@ public class Main {
             device.uninit();
         }
 
+        if (retval != Error.SUCCESS) {
+            printTimeout(device, "");
+        }
+
+        try {
+            device.getTransport().close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            retval = Error.UNSPECIFIED_ERROR;
+        }
+
+        if (replay != null) {
+            if (!arguments.getQuiet()) {
+                System.err.println(String.format("Replayed %d of %d recorded transfers in %d ms.",
+                        replay.getReplayedCount(), replay.getRecordedCount(),
+                        device.getMetrics().getElapsedNanos() / 1000000));
+            }
+            if (replay.getDeviations() > 0) {
+                System.err.println(String.format("flop: %d deviations from the recording, first: %s",
+                        replay.getDeviations(), replay.getFirstDeviation()));
+                if (retval == Error.SUCCESS) {
+                    retval = Error.REPLAY_DEVIATION_ERROR;
+                }
+            }
+        }
+
+        if (trace != null && (retval != Error.SUCCESS || !arguments.getTraceOnError())) {
+            try {
+                device.getTrace().dump(trace);
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+
+        writeReport(device, arguments, retval);
+
         System.exit(retval);
 
     }
@@ -24,6 +24,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * @author Kai Ryu
@@ -40,23 +42,64 @@ public abstract class AtmelBuffer {
     public static final int PAGE_SIZE         = 0x10000;
     public static final int MAX_TRANSFER_SIZE = 0x0400;
     protected static final byte BYTE_MAX      = (byte)0xff;
-    private static final byte MARK_INVALID    = 0;
-    private static final byte MARK_VALID      = 1;
     private static final int ADDRESS_MASK     = 0x7fffffff;
 
     private int totalSize;
     private int pageSize;
     private int offset;
+    private int transferSize = MAX_TRANSFER_SIZE;
     private AtmelRange dataRange;
     private AtmelRange validRange;
     private AtmelRange blockRange;
     private ByteBuffer buffer = null;
-    private ByteBuffer mark = null;
+    private BitSet mark = null;
 
     public int init(final AtmelBuffer buffer) {
+        this.transferSize = buffer.transferSize;
         return this.init(buffer.totalSize, buffer.pageSize, buffer.offset);
     }
 
+    /**
+     * Initializes this buffer as an independent copy of the template,
+     * including its data.
+     */
+    public int copy(final AtmelBuffer template) {
+        if (!template.isInitialized() || this.init(template) != 0) {
+            return -1;
+        }
+
+        this.dataRange = new AtmelRange(template.dataRange);
+        this.validRange = new AtmelRange(template.validRange);
+
+        ByteBuffer buffer = template.buffer.duplicate();
+        buffer.clear();
+        this.buffer.put(buffer).rewind();
+        this.mark = (BitSet) template.mark.clone();
+
+        return 0;
+    }
+
+    protected int share(final AtmelBuffer template) {
+        if (!template.isInitialized()) {
+            return -1;
+        }
+
+        this.totalSize = template.totalSize;
+        this.pageSize = template.pageSize;
+        this.offset = template.offset;
+        this.transferSize = template.transferSize;
+        this.dataRange = new AtmelRange(template.dataRange);
+        this.validRange = new AtmelRange(template.validRange);
+        this.blockRange = new AtmelRange();
+
+        // The data is shared read-only; the marks are copied, being small
+        // next to it, so marking here leaves the template as it was
+        this.buffer = template.buffer.asReadOnlyBuffer();
+        this.mark = (BitSet) template.mark.clone();
+
+        return 0;
+    }
+
     public int init(final int totalSize, final int pageSize, final int offset) {
         if (totalSize == 0 || pageSize == 0) {
             return -1;
@@ -70,13 +113,11 @@ public abstract class AtmelBuffer {
         this.blockRange = new AtmelRange();
 
         this.buffer = ByteBuffer.allocate(totalSize);
-        this.mark = ByteBuffer.allocate(totalSize);
+        this.mark = new BitSet(totalSize);
         while (this.buffer.hasRemaining()) {
             this.buffer.put(BYTE_MAX);
-            this.mark.put(MARK_INVALID);
         }
         this.buffer.rewind();
-        this.mark.rewind();
 
         return 0;
     }
@@ -85,6 +126,18 @@ public abstract class AtmelBuffer {
         return this.totalSize;
     }
 
+    public int getTransferSize() {
+        return this.transferSize;
+    }
+
+    public int setTransferSize(final int transferSize) {
+        if (transferSize <= 0 || transferSize > MAX_TRANSFER_SIZE) {
+            return -1;
+        }
+        this.transferSize = transferSize;
+        return 0;
+    }
+
     public int getPageSize() {
         return this.pageSize;
     }
@@ -159,20 +212,70 @@ public abstract class AtmelBuffer {
         this.dataRange.inflate(address);
     }
 
+    /**
+     * Sets every byte of the range to value and marks it as data, the
+     * same as putData on each address, in one pass.
+     */
+    public void fillData(final AtmelRange range, final byte value) {
+        if (!range.isValid()) {
+            return;
+        }
+        if (this.buffer.hasArray()) {
+            Arrays.fill(this.buffer.array(), this.buffer.arrayOffset() + range.getStart(),
+                    this.buffer.arrayOffset() + range.getEnd() + 1, value);
+        }
+        else {
+            for (int address = range.getStart(); address <= range.getEnd(); address++) {
+                this.buffer.put(address, value);
+            }
+        }
+        this.mark.set(range.getStart(), range.getEnd() + 1);
+        this.dataRange.inflate(range.getStart());
+        this.dataRange.inflate(range.getEnd());
+    }
+
     public byte getData(final int address) {
         return this.buffer.get(address);
     }
 
     public boolean isDataValid(final int address) {
-        return (this.mark.get(address) == MARK_VALID);
+        return this.mark.get(address);
     }
 
     public void setDataValid(final int address) {
-        this.mark.put(address, MARK_VALID);
+        this.mark.set(address);
     }
 
     public void setDataInvalid(final int address) {
-        this.mark.put(address,MARK_INVALID);
+        this.mark.clear(address);
+    }
+
+    public void setDataInvalid(final AtmelRange range) {
+        if (range.isValid()) {
+            this.mark.clear(range.getStart(), range.getEnd() + 1);
+        }
+    }
+
+    /**
+     * Returns the addresses that hold data, as runs.
+     */
+    public AtmelRangeSet getDataRanges() {
+        return AtmelRangeSet.of(this.mark, new AtmelRange(0, this.totalSize - 1));
+    }
+
+    /**
+     * Returns the first address from the given one that holds data, or -1.
+     */
+    protected int nextDataAddress(final int from) {
+        final int address = this.mark.nextSetBit(from);
+        return (address < this.totalSize) ? address : -1;
+    }
+
+    /**
+     * Returns the first address from the given one that holds no data.
+     */
+    protected int nextBlankAddress(final int from) {
+        return this.mark.nextClearBit(from);
     }
 
     public short getBlockPage() {
@@ -211,6 +314,16 @@ public abstract class AtmelBuffer {
         this.nextBlock();
     }
 
+    /**
+     * Stores a block read from the given address, leaving the block
+     * iteration where it is.
+     */
+    public void putBlock(final int start, final ByteBuffer blockBuffer) {
+        for (int i = 0; blockBuffer.hasRemaining(); i++) {
+            this.putData(start + i, blockBuffer.get());
+        }
+    }
+
     public boolean hasRemainingBlock() {
         return this.blockRange.isValid() && this.dataRange.contains(this.blockRange);
     }
@@ -220,6 +333,13 @@ public abstract class AtmelBuffer {
         this.getBlockRange().setEnd(this.findBlockEnd(this.getBlockRange().getStart()));
     }
 
+    public void seekBlock(final int address) {
+        this.rewindBlock();
+        while (this.hasRemainingBlock() && this.getBlockRange().getEnd() < address) {
+            this.nextBlock();
+        }
+    }
+
     private void nextBlock() {
         this.getBlockRange().setStart(this.findBlockStart(this.getBlockRange().getEnd()));
         this.getBlockRange().setEnd(this.findBlockEnd(this.getBlockRange().getStart()));
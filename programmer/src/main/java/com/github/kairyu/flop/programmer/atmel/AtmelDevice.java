@@ -20,15 +20,20 @@ package com.github.kairyu.flop.programmer.atmel;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.github.kairyu.flop.programmer.Log;
 import com.github.kairyu.flop.programmer.command.Get;
 import com.github.kairyu.flop.programmer.dfu.DfuDevice;
+import com.github.kairyu.flop.programmer.dfu.DfuMetrics;
 import com.github.kairyu.flop.programmer.exception.ControllerErrorException;
 import com.github.kairyu.flop.programmer.exception.DeviceNotInitializedException;
 import com.github.kairyu.flop.programmer.dfu.DfuStatus;
 import com.github.kairyu.flop.programmer.dfu.Errno;
 
+import org.usb4java.LibUsb;
+
 public class AtmelDevice extends DfuDevice {
 
     private final Log log = Log.getLog(AtmelDevice.class.getPackage().getName(),
@@ -40,29 +45,78 @@ public class AtmelDevice extends DfuDevice {
     private static final int PAGE_SIZE       = 0x10000;
     private static final int AVR32_CONTROL_BLOCK_SIZE = 64;
     private static final int CONTROL_BLOCK_SIZE       = 32;
-    private static final String PROGRESS_METER = "0%                            100%  ";
-    private static final String PROGRESS_START = "[";
-    private static final String PROGRESS_BAR   = ">";
-    private static final String PROGRESS_END   = "]  ";
-    private static final String PROGRESS_ERROR = " X  ";
+    private static final int BLOCK_RETRIES            = 3;
+    private static final int RETRY_BACKOFF            = 50;
+    // a block takes tens of milliseconds; this allows for slow hubs many times over
+    private static final long TRANSFER_BUDGET_BASE    = 5000;
+    private static final long TRANSFER_BUDGET_PER_KIB = 250;
+
+    public static final long DEFAULT_ERASE_BUDGET = 20000;
 
     private DeviceType type;
     private SecurityBit securityBitState;
-    private long progress;
+    private ProgressDispatcher progress = null;
+    private MemoryUnit selectedUnit = null;
+    private short selectedPage = -1;
+    private DeviceInfo info = null;
+    private long eraseBudget = DEFAULT_ERASE_BUDGET;
+    private String blockError = null;
 
     public DeviceType getType() {
         return this.type;
     }
 
     public void setType(DeviceType type) {
+        if (type != this.type) {
+            this.info = null;
+        }
         this.type = type;
     }
 
+    /**
+     * Sets how many milliseconds a chip erase may take, see
+     * {@link Target#getEraseBudget}.
+     */
+    public void setEraseBudget(final long eraseBudget) {
+        this.eraseBudget = eraseBudget;
+    }
+
+    public ProgressListener getProgressListener() {
+        return (this.progress == null) ? null : this.progress.getListener();
+    }
+
+    public void setProgressListener(final ProgressListener listener) {
+        this.setProgressListener(listener, ProgressDispatcher.DEFAULT_UPDATES_PER_SECOND);
+    }
+
+    /**
+     * Reports the progress of operations that are not run quietly to the
+     * listener, at most the given number of times per second.
+     */
+    public void setProgressListener(final ProgressListener listener, final int updatesPerSecond) {
+        if (this.progress != null) {
+            this.progress.close();
+        }
+        this.progress = (listener == null) ? null : new ProgressDispatcher(listener, updatesPerSecond);
+    }
+
     public void securityMessage() {
-        if (this.securityBitState != SecurityBit.SECURE_OFF) {
-            System.err.println(String.format("The security bit %s set", this.securityBitState.getVerb()));
-            System.err.println(String.format("Erase the device to clear temporarily."));
+        final String message = this.getSecurityMessage();
+        if (message != null) {
+            System.err.println(message);
+        }
+    }
+
+    /**
+     * Returns why reads may fail as told by the last {@link #checkSecurity},
+     * or null if the security bit is off.
+     */
+    public String getSecurityMessage() {
+        if (this.securityBitState == null || this.securityBitState == SecurityBit.SECURE_OFF) {
+            return null;
         }
+        return String.format("The security bit %s set%nErase the device to clear temporarily.",
+                this.securityBitState.getVerb());
     }
 
     public void checkSecurity() {
@@ -118,16 +172,39 @@ public class AtmelDevice extends DfuDevice {
         }
     }
 
-    private void printProgress(final AtmelBuffer buffer) {
-        if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-            while (buffer.getBlockOffset() * 32 > this.progress) {
-                System.err.print(PROGRESS_BAR);
-                this.progress += buffer.getDataLength();
-            }
+    private void startProgress(final DfuMetrics.Phase phase, final long total) {
+        if (this.progress != null) {
+            this.progress.phaseStarted(phase, total);
+            this.progress.flush();
+        }
+    }
+
+    private void updateProgress(final DfuMetrics.Phase phase, final AtmelBuffer buffer,
+            final long blocks, final long started) {
+        this.updateProgress(phase, Math.min(buffer.getBlockOffset(), buffer.getDataLength()),
+                buffer.getDataLength(), blocks, started);
+    }
+
+    private void updateProgress(final DfuMetrics.Phase phase, final long done, final long total,
+            final long blocks, final long started) {
+        if (this.progress != null) {
+            final long elapsed = System.nanoTime() - started;
+            this.progress.progress(phase, done, total, (elapsed > 0) ? blocks * 1e9 / elapsed : 0);
+        }
+    }
+
+    private void endProgress(final DfuMetrics.Phase phase, final boolean success) {
+        if (this.progress != null) {
+            this.progress.phaseEnded(phase, success);
+            this.progress.flush();
         }
     }
 
     public int validateBuffer(final BufferIn bufferIn, final BufferOut bufferOut, final boolean quiet) {
+        return this.timed(DfuMetrics.Phase.VALIDATE, () -> this.compareBuffers(bufferIn, bufferOut, quiet));
+    }
+
+    private int compareBuffers(final BufferIn bufferIn, final BufferOut bufferOut, final boolean quiet) {
         log.debug("Validating image from byte %s", bufferOut.getValidRange());
 
         int invalidDataRegion = 0;
@@ -136,8 +213,10 @@ public class AtmelDevice extends DfuDevice {
         if (!quiet) {
             System.err.println("validating...  ");
         }
-        for (int i: bufferOut.getValidRange().getArray()) {
-            if (bufferOut.isDataValid(i)) {
+        final AtmelRangeSet region = AtmelRangeSet.of(bufferOut.getValidRange());
+        final AtmelRangeSet data = bufferOut.getDataRanges().intersect(region);
+        for (AtmelRange range: data) {
+            for (int i = range.getStart(); i <= range.getEnd(); i++) {
                 if (bufferOut.getData(i) != bufferIn.getData(i)) {
                     if (invalidDataRegion == 0) {
                         if (!quiet) {
@@ -150,7 +229,9 @@ public class AtmelDevice extends DfuDevice {
                     invalidDataRegion++;
                 }
             }
-            else {
+        }
+        for (AtmelRange range: region.subtract(data)) {
+            for (int i = range.getStart(); i <= range.getEnd(); i++) {
                 if (bufferIn.getData(i) != BufferIn.BYTE_MAX) {
                     if (invalidOutsideDataRegion == 0) {
                         // TODO: debug message
@@ -175,10 +256,191 @@ public class AtmelDevice extends DfuDevice {
         return invalidDataRegion > 0 ? -invalidDataRegion : invalidOutsideDataRegion;
     }
 
+    public int spotCheck(final BufferOut bufferOut, final MemoryUnit memorySegment, final int samples) {
+        log.trace("atmel_spot_check( %s, %s, %s, %d )", this.getHandle().hashCode(), bufferOut.hashCode(), memorySegment, samples);
+
+        if (!bufferOut.hasData() || samples <= 0) {
+            return -1;
+        }
+
+        final AtmelRange dataRange = bufferOut.getDataRange();
+        final long span = Math.max(dataRange.getLength() - bufferOut.getTransferSize(), 0);
+        for (int i = 0; i < samples; i++) {
+            final int start = dataRange.getStart() + (int)(samples > 1 ? span * i / (samples - 1) : 0);
+            final int end = Math.min(start + bufferOut.getTransferSize() - 1, dataRange.getEnd());
+
+            int result = this.compareRange(bufferOut, memorySegment, new AtmelRange(start, end));
+            if (result != 0) {
+                return result;
+            }
+        }
+
+        return 0;
+    }
+
+    private int compareRange(final BufferOut bufferOut, final MemoryUnit memorySegment, final AtmelRange range) {
+        BufferIn bufferIn = new BufferIn();
+        if (bufferIn.init(bufferOut) != 0) {
+            log.debug("ERROR initializing a buffer.");
+            return -1;
+        }
+        bufferIn.getDataRange().set(range);
+
+        if (this.readFlash(bufferIn, memorySegment, true) != 0) {
+            log.debug("Could not read back %s.", range);
+            return -2;
+        }
+
+        for (AtmelRange data: bufferOut.getDataRanges().intersect(range)) {
+            for (int address = data.getStart(); address <= data.getEnd(); address++) {
+                if (bufferOut.getData(address) != bufferIn.getData(address)) {
+                    log.debug("Read back mismatch at 0x%X.", address);
+                    return 1;
+                }
+            }
+        }
+        log.debug("Read back of %s matched.", range);
+
+        return 0;
+    }
+
     public int readFuse(final Avr32Fuses info) {
         return 0;
     }
 
+    /**
+     * Returns the device info read so far in this session, shared by the
+     * commands run in it. Fields are filled in by {@link #readInfo}.
+     */
+    public DeviceInfo getDeviceInfo() {
+        if (this.info == null) {
+            this.info = new DeviceInfo(this.type);
+        }
+        return this.info;
+    }
+
+    /**
+     * Returns one field of the device info, reading only that field from
+     * the device the first time it is asked for in this session.
+     *
+     * @return the value, or a negative value if the device type has no such
+     *         field or it could not be read
+     */
+    public short readInfo(final Get get) throws ControllerErrorException {
+        log.trace("atmel_read_info( %s, %s )", this.getHandle().hashCode(), get);
+
+        final DeviceInfo info = this.getDeviceInfo();
+        if (info.hasInfo(get) && info.getInfo(get) >= 0) {
+            return info.getInfo(get);
+        }
+        info.checkInfo(get);
+
+        byte[] command = get.getCommand(this.type);
+        if (command == null) {
+            log.debug("%s is not available for %s devices.", get.getDescription(), this.type);
+            return -1;
+        }
+
+        short result = this.readCommand(command);
+        if (result >= 0) {
+            info.setInfo(get, result);
+        }
+        return result;
+    }
+
+    @Override
+    protected boolean isSupported(final int vendor, final int product) {
+        return !Target.getByUsbId(vendor, product).isEmpty();
+    }
+
+    /**
+     * Picks the target of the open device among those sharing its USB IDs.
+     *
+     * The signature bytes are only read when they can tell the candidates
+     * apart. Of targets that differ only in the size of their bootloader,
+     * the one with the largest bootloader is taken, as it leaves the most
+     * memory untouched.
+     *
+     * The signature of AVR32 and XMEGA parts can't be read yet, so targets
+     * of those families sharing USB IDs are never told apart.
+     *
+     * @return the target, or null if none or several remain
+     */
+    public Target identify(final List<Target> targets) {
+        log.trace("atmel_identify( %s, %s )", this.getHandle().hashCode(), targets);
+
+        List<Target> candidates = new ArrayList<Target>();
+        for (Target target: targets) {
+            boolean same = false;
+            for (Target candidate: candidates) {
+                same |= candidate.isSameLayout(target, false);
+            }
+            if (!same) {
+                candidates.add(target);
+            }
+        }
+
+        if (candidates.size() > 1) {
+            boolean differ = false;
+            for (Target candidate: candidates) {
+                if (candidate.getDeviceType() != candidates.get(0).getDeviceType()) {
+                    log.debug("Targets %s are of different types.", candidates);
+                    return null;
+                }
+                differ |= (candidate.getSignature() != candidates.get(0).getSignature());
+            }
+            if (differ) {
+                if (candidates.get(0).getDeviceType().isType(DeviceType.GRP_AVR32)) {
+                    log.debug("Can't read the signature of %s.", candidates);
+                    return null;
+                }
+                this.setType(candidates.get(0).getDeviceType());
+                final int signature = this.readSignature();
+                log.debug("Signature 0x%06X.", signature);
+                List<Target> matching = new ArrayList<Target>();
+                for (Target candidate: candidates) {
+                    if (signature == Target.NO_SIGNATURE || candidate.getSignature() == Target.NO_SIGNATURE ||
+                            candidate.getSignature() == signature) {
+                        matching.add(candidate);
+                    }
+                }
+                candidates = matching;
+            }
+        }
+
+        if (candidates.size() > 1) {
+            Target largest = candidates.get(0);
+            for (Target candidate: candidates) {
+                if (!candidate.isSameLayout(largest, true)) {
+                    log.debug("Can't choose between %s.", candidates);
+                    return null;
+                }
+                if (candidate.getBootloaderSize() > largest.getBootloaderSize()) {
+                    largest = candidate;
+                }
+            }
+            candidates.clear();
+            candidates.add(largest);
+        }
+
+        return (candidates.size() == 1) ? candidates.get(0) : null;
+    }
+
+    private int readSignature() {
+        try {
+            final short manufacturer = this.readInfo(Get.manufacturer);
+            final short family = this.readInfo(Get.family);
+            final short product = this.readInfo(Get.product_name);
+            if (manufacturer < 0 || family < 0 || product < 0) {
+                return Target.NO_SIGNATURE;
+            }
+            return (manufacturer << 16) | (family << 8) | product;
+        }
+        catch (ControllerErrorException e) {
+            return Target.NO_SIGNATURE;
+        }
+    }
+
     public int readConfig(final DeviceInfo info) {
         log.trace("atmel_read_config( %s, %s )", this.getHandle().hashCode(), info.hashCode());
 
@@ -190,13 +452,12 @@ public class AtmelDevice extends DfuDevice {
         int retval = 0;
 
         for (Get get: Get.values()) {
-            byte[] command = get.getCommand(this.type);
-            if (command != null) {
-                short result = this.readCommand(command);
-                if (result < 0) {
-                    retval = result;
-                }
+            if (get.getCommand(this.type) != null) {
                 try {
+                    short result = this.readInfo(get);
+                    if (result < 0) {
+                        retval = result;
+                    }
                     info.setInfo(get, result);
                 }
                 catch (ControllerErrorException e) {
@@ -209,8 +470,22 @@ public class AtmelDevice extends DfuDevice {
     }
 
     public int eraseFlash(final EraseMode mode, final boolean quiet) {
+        // the erase request and the status requests after it may be held
+        // until the erase is done, so they may take the rest of the budget
+        this.startDeadline("erase", this.eraseBudget, true);
+        try {
+            return this.timed(DfuMetrics.Phase.ERASE, () -> this.eraseChip(mode, quiet));
+        }
+        finally {
+            this.endDeadline();
+        }
+    }
+
+    private int eraseChip(final EraseMode mode, final boolean quiet) {
         log.trace("atmel_erase_flash( %s, %s )", this.getHandle().hashCode(), mode);
 
+        this.clearSession();
+
         ByteBuffer command = ByteBuffer.allocateDirect(3)
                 .put(new byte[] { 0x04, 0x00 })
                 .put(mode.getCommand());
@@ -223,24 +498,37 @@ public class AtmelDevice extends DfuDevice {
             }
         }
         if (this.download(command) != command.capacity()) {
-            if (!quiet) {
-                System.err.println("ERROR");
+            if (this.isTimedOut() && !this.isExpired()) {
+                // held past DFU_STRETCH_LIMIT, the status tells how it went
+                log.debug("CMD_ERASE request held, polling status.");
+            }
+            else {
+                if (!quiet) {
+                    System.err.println("ERROR");
+                }
+                log.debug("dfu_download failed");
+                return -2;
             }
-            log.debug("dfu_download failed");
-            return -2;
         }
 
-        final long ERASE_SECONDS = 20;
-        long start = System.currentTimeMillis();
         int retries = 0;
         do {
-            if (this.updateStatus() == 0) {
+            final int result = this.updateStatus();
+            if (this.isExpired() || Thread.currentThread().isInterrupted()) {
+                // the status request was refused, not answered
+                break;
+            }
+            if (this.isTimedOut()) {
+                // held while the erase goes on, ask again
+                continue;
+            }
+            if (result == 0) {
                 if (this.isStatus(DfuStatus.Status.ERROR_NOTDONE) &&
                         this.isState(DfuStatus.State.DFU_DOWNLOAD_BUSY)) {
                     try {
-                        Thread.sleep(100);
+                        this.sleep(100);
                     } catch (InterruptedException e) {
-                        e.printStackTrace();
+                        Thread.currentThread().interrupt();
                     }
                 }
                 else {
@@ -259,14 +547,17 @@ public class AtmelDevice extends DfuDevice {
                 }
                 log.debug("CMD_ERASE status check %d returned nonzero.", retries);
             }
-            if ((System.currentTimeMillis() - start) / 1000 > ERASE_SECONDS) {
-                break;
-            }
         }
         while (retries < 10);
 
-        if (retries < 10) {
-            log.debug("CMD_ERASE time limit %ds exceeded.", 20);
+        if (this.isExpired()) {
+            log.debug("CMD_ERASE time limit %d ms exceeded.", this.eraseBudget);
+            if (!quiet) {
+                System.err.println("ERROR");
+            }
+        }
+        else if (retries < 10) {
+            log.debug("CMD_ERASE cancelled.");
         }
 
         return -3;
@@ -280,18 +571,18 @@ public class AtmelDevice extends DfuDevice {
         return 0;
     }
 
-    private int readBlock(final BufferIn bufferIn, boolean eeprom) {
-        log.trace("__atmel_read_block( %s, %s, %b )", this.getHandle().hashCode(), bufferIn.hashCode(), eeprom);
+    private int readBlock(final AtmelRange range, final boolean eeprom, final ByteBuffer block) {
+        log.trace(() -> String.format("__atmel_read_block( %s, %s, %b )", this.getHandle().hashCode(), range, eeprom));
 
-        if (!this.isInitialized() || !bufferIn.isInitialized()) {
+        if (!this.isInitialized()) {
             log.debug("ERROR: Invalid arguments, device/buffer pointer is NULL.");
             throw new DeviceNotInitializedException();
         }
-        else if (!bufferIn.getBlockRange().isValid()) {
+        else if (!range.isValid()) {
             log.debug("ERROR: start address is after end address.");
             return -1;
         }
-        else if (bufferIn.getBlockLength() > BufferOut.MAX_TRANSFER_SIZE) {
+        else if (range.getLength() > BufferOut.MAX_TRANSFER_SIZE) {
             log.debug("ERROR: transfer size must not exceed %d", BufferOut.MAX_TRANSFER_SIZE);
             return -1;
         }
@@ -305,15 +596,14 @@ public class AtmelDevice extends DfuDevice {
             command.put((byte)0x00);
         }
 
-        command.putShort((short)bufferIn.getBlockRange().getStart());
-        command.putShort((short)bufferIn.getBlockRange().getEnd());
+        command.putShort((short)range.getStart());
+        command.putShort((short)range.getEnd());
 
         if (this.download(command) != command.capacity()) {
             log.debug("dfu_download failed");
             return -1;
         }
 
-        ByteBuffer block = ByteBuffer.allocateDirect(bufferIn.getBlockLength());
         int result = this.upload(block);
         if (result < 0) {
             log.debug("dfu_upload result: %d", result);
@@ -322,18 +612,20 @@ public class AtmelDevice extends DfuDevice {
                     System.err.println("The device is read protected.");
                 }
                 else {
-                    System.err.println("Unknown error. Try enabling debug.");
+                    log.debug("Unknown error, status %s.", this.getStatus());
+                    this.blockError = "Unknown error. Try enabling debug.";
                 }
             }
             else {
-                System.err.println("Device is unresponsive.");
+                log.debug("Device is unresponsive.");
+                this.blockError = "Device is unresponsive.";
             }
             this.clearStatus();
 
             return result;
         }
 
-        bufferIn.putBlock(block);
+        block.rewind();
 
         return 0;
     }
@@ -341,6 +633,57 @@ public class AtmelDevice extends DfuDevice {
     public int readFlash(final BufferIn bufferIn, final MemoryUnit memorySegment, final boolean quiet) {
         log.trace("atmel_read_flash( %s, %s, %s, %b )", this.getHandle().hashCode(), bufferIn.hashCode(), memorySegment, quiet);
 
+        if (!bufferIn.isInitialized()) {
+            log.debug("ERROR: Invalid arguments, device/buffer pointer is NULL.");
+            throw new DeviceNotInitializedException();
+        }
+
+        return this.readFlash(bufferIn.getDataRange(), bufferIn.getTransferSize(), memorySegment, quiet,
+                new BlockSink() {
+                    @Override
+                    public int putBlock(final AtmelRange range, final ByteBuffer block) {
+                        bufferIn.putBlock(range.getStart(), block);
+                        return 0;
+                    }
+                });
+    }
+
+    /**
+     * Reads a range of memory block by block, handing each block to the
+     * sink as soon as it is uploaded, so that only one block is held at a
+     * time whatever the size of the range.
+     */
+    public int readFlash(final AtmelRange dataRange, final int transferSize, final MemoryUnit memorySegment,
+            final boolean quiet, final BlockSink sink) {
+        if (!this.beginBulk()) {
+            return -1;
+        }
+        this.startDeadline("read", getTransferBudget(dataRange.getLength()));
+        try {
+            return this.timed(DfuMetrics.Phase.READ,
+                    () -> this.readBlocks(dataRange, transferSize, memorySegment, quiet, sink));
+        }
+        finally {
+            this.endDeadline();
+            this.endBulk();
+        }
+    }
+
+    /*
+     * How many milliseconds moving length bytes may take before a device
+     * that stopped answering is given up, rather than after every block
+     * has run through its retries.
+     */
+    private static long getTransferBudget(final long length) {
+        return TRANSFER_BUDGET_BASE + (length / 1024) * TRANSFER_BUDGET_PER_KIB;
+    }
+
+    private int readBlocks(final AtmelRange dataRange, final int transferSize, final MemoryUnit memorySegment,
+            final boolean quiet, final BlockSink sink) {
+        final long started = System.nanoTime();
+        log.trace("atmel_read_flash( %s, %s, %d, %s, %b )", this.getHandle().hashCode(), dataRange, transferSize,
+                memorySegment, quiet);
+
         if (!this.isInitialized()) {
             log.debug("invalid arguments.");
             if (!quiet) {
@@ -366,25 +709,26 @@ public class AtmelDevice extends DfuDevice {
         }
 
         if (!quiet) {
-            if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-                System.err.print(PROGRESS_METER);
-            }
-            System.err.println(String.format("Reading 0x%X bytes...", bufferIn.getDataLength()));
-            if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-                System.err.print(PROGRESS_START);
-            }
+            this.startProgress(DfuMetrics.Phase.READ, dataRange.getLength());
+            System.err.println(String.format("Reading 0x%X bytes...", dataRange.getLength()));
         }
 
         int retval = 0;
         int result;
-        this.progress = 0;
+        long blocks = 0;
         short memoryPage = -1;
-        bufferIn.rewindBlock();
+        ByteBuffer block = null;
+        final boolean eeprom = (memorySegment == MemoryUnit.eeprom);
+        final AtmelRange blockRange = new AtmelRange();
+        if (dataRange.isValid()) {
+            blockRange.set(dataRange.getStart(),
+                    BufferIn.findBlockEnd(dataRange.getStart(), transferSize, dataRange.getEnd()));
+        }
 
         try {
-            while (bufferIn.hasRemainingBlock()) {
-                if (memoryPage != bufferIn.getBlockPage()) {
-                    memoryPage = bufferIn.getBlockPage();
+            while (blockRange.isValid() && dataRange.contains(blockRange)) {
+                if (memoryPage != blockRange.getStartPage()) {
+                    memoryPage = blockRange.getStartPage();
                     result = this.selectPage(memoryPage);
                     if (result != 0) {
                         log.debug("ERROR selecting 64kB page %d.", result);
@@ -393,35 +737,58 @@ public class AtmelDevice extends DfuDevice {
                     }
                 }
 
-                result = this.readBlock(bufferIn, (memorySegment == MemoryUnit.eeprom));
+                // Only the last block of a page or of the range is shorter
+                if ((block == null) || (block.capacity() != blockRange.getLength())) {
+                    block = ByteBuffer.allocateDirect(blockRange.getLength());
+                }
+
+                this.clearBlockError();
+                result = this.readBlock(blockRange, eeprom, block);
+                for (int retries = 1; result != 0 && retries <= BLOCK_RETRIES && this.isRecoverable(); retries++) {
+                    log.debug("Retrying read of block %s (%d/%d) after err %d.",
+                            blockRange, retries, BLOCK_RETRIES, result);
+                    this.getMetrics().countRetry();
+                    if (this.recover(memorySegment, memoryPage, retries) != 0) {
+                        break;
+                    }
+                    this.clearBlockError();
+                    result = this.readBlock(blockRange, eeprom, block);
+                }
                 if (result != 0) {
-                    log.debug("Error reading block %s: err %d.", bufferIn.getBlockRange(), result);
+                    log.debug("Error reading block %s: err %d.", blockRange, result);
                     retval = -5;
                     return retval;
                 }
 
+                if (sink.putBlock(blockRange, block) != 0) {
+                    log.debug("Block %s was not taken.", blockRange);
+                    retval = -6;
+                    return retval;
+                }
+
+                blocks++;
                 if (!quiet) {
-                    printProgress(bufferIn);
+                    this.updateProgress(DfuMetrics.Phase.READ, blockRange.getEnd() + 1 - dataRange.getStart(),
+                            dataRange.getLength(), blocks, started);
                 }
+
+                final int next = blockRange.getEnd() + 1;
+                blockRange.set(next, BufferIn.findBlockEnd(next, transferSize, dataRange.getEnd()));
             }
         }
         finally {
             if (!quiet) {
+                this.endProgress(DfuMetrics.Phase.READ, retval == 0);
                 if (retval == 0) {
-                    if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-                        System.err.print(PROGRESS_END);
-                    }
                     System.err.println("Success");
                 }
                 else {
-                    if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-                        System.err.print(PROGRESS_ERROR);
-                    }
                     System.err.println("ERROR");
                     if (retval == -3) {
                         System.err.println("Memory access error, use debug for more info.");
                     }
                     else if (retval == -5) {
+                        this.printBlockError();
                         System.err.println("Memory read error, use debug for more info.");
                     }
                 }
@@ -432,7 +799,7 @@ public class AtmelDevice extends DfuDevice {
     }
 
     private int checkBlankPage(final int start, final int end) {
-        log.trace("__atmel_blank_page_check( %s, 0x%08x, 0x%08x )", this.getHandle().hashCode(), start, end);
+        log.trace(() -> String.format("__atmel_blank_page_check( %s, 0x%08x, 0x%08x )", this.getHandle().hashCode(), start, end));
 
         if (!this.isInitialized()) {
             log.debug("ERROR: Invalid arguments, device pointer is NULL.");
@@ -498,6 +865,10 @@ public class AtmelDevice extends DfuDevice {
     }
 
     public int checkBlank(final int start, final int end, final boolean quiet) {
+        return this.timed(DfuMetrics.Phase.BLANK_CHECK, () -> this.checkBlankRange(start, end, quiet));
+    }
+
+    private int checkBlankRange(final int start, final int end, final boolean quiet) {
         log.trace("atmel_blank_check( %s, 0x%08X, 0x%08X )", this.getHandle().hashCode(), start, end);
 
         if (!this.isInitialized()) {
@@ -575,6 +946,8 @@ public class AtmelDevice extends DfuDevice {
     public int startAppReset() {
         log.trace("atmel_start_app_reset( %s )", this.getHandle().hashCode());
 
+        this.clearSession();
+
         ByteBuffer command = ByteBuffer.allocateDirect(3)
                 .put(new byte[] { 0x04, 0x03, 0x00 });
 
@@ -594,6 +967,8 @@ public class AtmelDevice extends DfuDevice {
     public int startAppNoReset() {
         log.trace("atmel_start_app_noreset( %s )", this.getHandle().hashCode());
 
+        this.clearSession();
+
         ByteBuffer command = ByteBuffer.allocateDirect(5)
                 .put(new byte[] { 0x04, 0x03, 0x01, 0x00, 0x00 });
 
@@ -634,7 +1009,12 @@ public class AtmelDevice extends DfuDevice {
             System.err.println("Invalid Memory Unit Selection.");
             return -1;
         }
+        else if (unit == this.selectedUnit) {
+            log.debug("%s memory unit already selected.", unit);
+            return 0;
+        }
 
+        this.clearSelection();
         log.debug("Selecting %s memory unit.", unit);
 
         final ByteBuffer command = ByteBuffer.allocateDirect(4)
@@ -658,11 +1038,12 @@ public class AtmelDevice extends DfuDevice {
             return -4;
         }
 
+        this.selectedUnit = unit;
         return 0;
     }
 
     private int selectPage(final short memoryPage) {
-        log.trace("atmel_select_page( %s, %d )", this.getHandle().hashCode(), memoryPage);
+        log.trace(() -> String.format("atmel_select_page( %s, %d )", this.getHandle().hashCode(), memoryPage));
 
         if (!this.isInitialized()) {
             log.debug("ERROR: Invalid arguments, device pointer is NULL.");
@@ -673,7 +1054,12 @@ public class AtmelDevice extends DfuDevice {
             log.debug("Select page not implemented for 8051 device, ignoring.");
             return 0;
         }
+        else if (memoryPage == this.selectedPage) {
+            log.debug("Page %d already selected.", memoryPage);
+            return 0;
+        }
 
+        this.selectedPage = -1;
         log.debug("Selecting page %d, address 0x%X.", memoryPage, PAGE_SIZE * memoryPage);
 
         ByteBuffer command;
@@ -710,9 +1096,43 @@ public class AtmelDevice extends DfuDevice {
             return -4;
         }
 
+        this.selectedPage = memoryPage;
         return 0;
     }
 
+    /*
+     * The bootloader keeps the selected memory unit and page between
+     * requests, so they are only sent again when they change or the
+     * device may have lost them.
+     */
+    private void clearSelection() {
+        this.selectedUnit = null;
+        this.selectedPage = -1;
+    }
+
+    private void clearSession() {
+        this.clearSelection();
+        this.info = null;
+    }
+
+    @Override
+    protected int makeIdle(final boolean initialAbort) {
+        this.clearSelection();
+        return super.makeIdle(initialAbort);
+    }
+
+    @Override
+    public void uninitDevice() {
+        this.clearSession();
+        super.uninitDevice();
+    }
+
+    @Override
+    public void reset() {
+        this.clearSession();
+        super.reset();
+    }
+
     private int prepareBuffer(final BufferOut bufferOut) {
         return 0;
     }
@@ -730,6 +1150,29 @@ public class AtmelDevice extends DfuDevice {
     }
 
     public int flash(final BufferOut bufferOut, final boolean eeprom, final boolean force, final boolean quiet) {
+        return this.flash(bufferOut, eeprom, force, quiet, null);
+    }
+
+    public int flash(final BufferOut bufferOut, final boolean eeprom, final boolean force, final boolean quiet,
+            final FlashJournal journal) {
+        if (!this.beginBulk()) {
+            return -1;
+        }
+        // pages are padded, so allow for up to twice the data
+        this.startDeadline("flash", getTransferBudget(2L * bufferOut.getDataLength()));
+        try {
+            return this.timed(DfuMetrics.Phase.FLASH,
+                    () -> this.flashBlocks(bufferOut, eeprom, force, quiet, journal));
+        }
+        finally {
+            this.endDeadline();
+            this.endBulk();
+        }
+    }
+
+    private int flashBlocks(final BufferOut bufferOut, final boolean eeprom, final boolean force, final boolean quiet,
+            final FlashJournal journal) {
+        final long started = System.nanoTime();
         log.trace("atmel_flash( %s, %s, %b, %b )", this.getHandle().hashCode(), bufferOut.hashCode(), force, quiet);
 
         if (!this.isInitialized() || !bufferOut.isInitialized()) {
@@ -761,6 +1204,20 @@ public class AtmelDevice extends DfuDevice {
                 bufferOut.getDataRange().getLength(), bufferOut.getPageCount(), bufferOut.getPageSize(),
                 bufferOut.getDataRange().getPageCount());
 
+        final MemoryUnit memorySegment = eeprom ? MemoryUnit.eeprom : MemoryUnit.flash;
+        int resumeAddress = bufferOut.getDataRange().getStart();
+        if (journal != null && journal.hasCommittedBlock()) {
+            final AtmelRange lastBlock = journal.getLastBlock();
+            if (this.compareRange(bufferOut, memorySegment, lastBlock) == 0) {
+                resumeAddress = lastBlock.getEnd() + 1;
+            }
+            else {
+                resumeAddress = lastBlock.getStart();
+            }
+            log.debug("Resuming from 0x%X after %s.", resumeAddress, lastBlock);
+        }
+        final boolean resume = (journal != null && journal.hasCommittedBlock());
+
         int result;
         if (!bufferOut.isDataInsideValid()) {
             log.debug("ERROR: Data exists outside of the valid target flash region.");
@@ -776,7 +1233,7 @@ public class AtmelDevice extends DfuDevice {
             }
             return -1;
         }
-        else if (!force) {
+        else if (!force && !resume) {
             result = this.checkBlank(bufferOut.getDataRange(), quiet);
             if (result != 0) {
                 if (!quiet) {
@@ -788,7 +1245,7 @@ public class AtmelDevice extends DfuDevice {
             }
         }
 
-        if (this.selectMemoryUnit(eeprom ? MemoryUnit.eeprom : MemoryUnit.flash) != 0) {
+        if (this.selectMemoryUnit(memorySegment) != 0) {
             log.debug("Error selection memory unit.");
             if (!quiet) {
                 System.err.println("Memory access error, use debug for more info.");
@@ -797,19 +1254,20 @@ public class AtmelDevice extends DfuDevice {
         }
 
         if (!quiet) {
-            if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-                System.err.print(PROGRESS_METER);
+            this.startProgress(DfuMetrics.Phase.FLASH, bufferOut.getDataLength());
+            if (resume) {
+                System.err.println(String.format("Resuming at 0x%X, programming 0x%X bytes...",
+                        resumeAddress, bufferOut.getDataRange().getEnd() - resumeAddress + 1));
             }
-            System.err.println(String.format("Programming 0x%X bytes...", bufferOut.getDataLength()));
-            if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-                System.err.print(PROGRESS_START);
+            else {
+                System.err.println(String.format("Programming 0x%X bytes...", bufferOut.getDataLength()));
             }
         }
 
         int retval = 0;
-        this.progress = 0;
+        long blocks = 0;
         short memoryPage = -1;
-        bufferOut.rewindBlock();
+        bufferOut.seekBlock(resumeAddress);
 
         try {
             while (bufferOut.hasRemainingBlock()) {
@@ -826,35 +1284,51 @@ public class AtmelDevice extends DfuDevice {
                 log.debug("Program data block: %s (p. %d), 0x%X bytes.",
                         bufferOut.getBlockRange(), bufferOut.getBlockPage(), bufferOut.getBlockLength());
 
+                final AtmelRange block = new AtmelRange(bufferOut.getBlockRange());
+                this.clearBlockError();
                 result = this.flashBlock(bufferOut, eeprom);
+                for (int retries = 1; result != 0 && retries <= BLOCK_RETRIES && this.isRecoverable(); retries++) {
+                    log.debug("Retrying block %s (%d/%d) after err %d.", block, retries, BLOCK_RETRIES, result);
+                    this.getMetrics().countRetry();
+                    if (this.recover(memorySegment, memoryPage, retries) != 0) {
+                        break;
+                    }
+                    bufferOut.seekBlock(block.getStart());
+                    this.clearBlockError();
+                    result = this.flashBlock(bufferOut, eeprom);
+                }
                 if (result != 0) {
                     log.debug("Error flashing the block: err %d.", result);
                     retval = -4;
                     return retval;
                 }
 
+                if (journal != null) {
+                    journal.commit(block);
+                }
+
+                blocks++;
                 if (!quiet) {
-                    printProgress(bufferOut);
+                    this.updateProgress(DfuMetrics.Phase.FLASH, bufferOut, blocks, started);
                 }
             }
         }
         finally {
+            if (journal != null) {
+                journal.close();
+            }
             if (!quiet) {
+                this.endProgress(DfuMetrics.Phase.FLASH, retval == 0);
                 if (retval == 0) {
-                    if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-                        System.err.print(PROGRESS_END);
-                    }
                     System.err.println("Success");
                 }
                 else {
-                    if (Log.getGlobalDebug() <= DEBUG_THRESHOLD) {
-                        System.err.print(PROGRESS_ERROR);
-                    }
                     System.err.println("ERROR");
                     if (retval == -3) {
                         System.err.println("Memory access error, use debug for more info.");
                     }
                     else if (retval == -4) {
+                        this.printBlockError();
                         System.err.println("Memory write error, use debug for more info.");
                     }
                 }
@@ -864,8 +1338,66 @@ public class AtmelDevice extends DfuDevice {
         return retval;
     }
 
+    /*
+     * The retries of a block are only logged, what made the last one fail
+     * is reported once the block is given up on.
+     */
+    private void clearBlockError() {
+        this.clearLastError();
+        this.blockError = null;
+    }
+
+    private void printBlockError() {
+        if (this.blockError != null) {
+            System.err.println(this.blockError);
+        }
+    }
+
+    private boolean isRecoverable() {
+        final DfuStatus.Status status = this.getLastStatus();
+        if (status != null && !status.isRecoverable()) {
+            log.debug("Status %s is not recoverable.", status);
+            return false;
+        }
+        final int result = this.getLastResult();
+        if (result < 0 && !isTransientError(result)) {
+            log.debug("Transfer error %d is not recoverable.", result);
+            return false;
+        }
+        return true;
+    }
+
+    private int recover(final MemoryUnit memorySegment, final short memoryPage, final int attempt) {
+        log.trace("atmel_recover( %s, %s, %d, %d )", this.getHandle().hashCode(), memorySegment, memoryPage, attempt);
+
+        try {
+            this.sleep(RETRY_BACKOFF << (attempt - 1));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+
+        if (this.makeIdle(false) != 0) {
+            log.debug("Device did not return to dfuIDLE.");
+            return -2;
+        }
+
+        if (this.selectMemoryUnit(memorySegment) != 0) {
+            log.debug("Error reselecting memory unit.");
+            return -3;
+        }
+
+        if (this.selectPage(memoryPage) != 0) {
+            log.debug("Error reselecting 64kB page %d.", memoryPage);
+            return -4;
+        }
+
+        return 0;
+    }
+
     private ByteBuffer getPopulateFooter(final short vendorId, final short productId, final short bcdFirmware) {
-        log.trace("atmel_flash_populate_footer( %d, %d, %d )", vendorId & 0xffff, productId & 0xffff, bcdFirmware & 0xffff);
+        log.trace(() -> String.format("atmel_flash_populate_footer( %d, %d, %d )", vendorId & 0xffff, productId & 0xffff, bcdFirmware & 0xffff));
 
         // TODO: Calculate the message CRC
         final int crc = 0;
@@ -881,7 +1413,7 @@ public class AtmelDevice extends DfuDevice {
     }
 
     private ByteBuffer getPopulateHeader(final int start, final int end, final boolean eeprom) {
-        log.trace("atmel_flash_populate_header( %d, %d, %b )", start, end, eeprom);
+        log.trace(() -> String.format("atmel_flash_populate_header( %d, %d, %b )", start, end, eeprom));
 
         int controlBlockSize;
         int alignment;
@@ -903,7 +1435,7 @@ public class AtmelDevice extends DfuDevice {
     }
 
     private int flashBlock(final BufferOut bufferOut, final boolean eeprom) {
-        log.trace("__atmel_flash_block( %s, %s, %b )", this.getHandle().hashCode(), bufferOut.hashCode(), eeprom);
+        log.trace(() -> String.format("__atmel_flash_block( %s, %s, %b )", this.getHandle().hashCode(), bufferOut.hashCode(), eeprom));
 
         if (!this.isInitialized() || !bufferOut.isInitialized()) {
             log.debug("ERROR: Invalid arguments, device/buffer pointer is NULL.");
@@ -933,8 +1465,9 @@ public class AtmelDevice extends DfuDevice {
 
         int result = this.download(message);
         if (result != message.capacity()) {
-            if (result == -Errno.EPIPE) {
-                System.err.println("Device is write protected.");
+            if (result == -Errno.EPIPE || result == LibUsb.ERROR_PIPE) {
+                log.debug("Device stalled, it may be write protected.");
+                this.blockError = "Device is write protected.";
                 this.clearStatus();
             }
             else {
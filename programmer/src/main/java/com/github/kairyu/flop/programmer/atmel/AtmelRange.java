@@ -127,8 +127,11 @@ public class AtmelRange {
         return (range.start >= this.start) && (range.end <= this.end);
     }
 
+    /**
+     * Tells whether the two ranges share at least one address.
+     */
     public boolean intersect(final AtmelRange range) {
-        return this.contains(range.start) || this.contains(range.end);
+        return this.isValid() && range.isValid() && (range.start <= this.end) && (range.end >= this.start);
     }
 
     public void inflate(final int value) {
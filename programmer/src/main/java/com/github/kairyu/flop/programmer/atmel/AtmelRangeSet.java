@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of addresses, kept as sorted runs that neither overlap
+ * nor touch, so that set operations cost in the number of runs rather than
+ * in the number of addresses.
+ *
+ * @author Kai Ryu
+ *
+ */
+public final class AtmelRangeSet implements Iterable<AtmelRange> {
+
+    private static final AtmelRangeSet EMPTY = new AtmelRangeSet(new int[0], new int[0], 0);
+
+    private final int[] starts;
+    private final int[] ends;
+    private final int count;
+
+    private AtmelRangeSet(final int[] starts, final int[] ends, final int count) {
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+    }
+
+    public static AtmelRangeSet empty() {
+        return EMPTY;
+    }
+
+    public static AtmelRangeSet of(final AtmelRange range) {
+        if (!range.isValid()) {
+            return EMPTY;
+        }
+        return new AtmelRangeSet(new int[] { range.getStart() }, new int[] { range.getEnd() }, 1);
+    }
+
+    public static AtmelRangeSet of(final int start, final int end) {
+        return of(new AtmelRange(start, end));
+    }
+
+    /**
+     * Returns the runs of set bits within a range of a bitmap.
+     */
+    public static AtmelRangeSet of(final BitSet bits, final AtmelRange range) {
+        if (!range.isValid()) {
+            return EMPTY;
+        }
+        Builder builder = new Builder();
+        int start = bits.nextSetBit(range.getStart());
+        while (start >= 0 && start <= range.getEnd()) {
+            final int end = Math.min(bits.nextClearBit(start) - 1, range.getEnd());
+            builder.add(start, end);
+            start = (end < range.getEnd()) ? bits.nextSetBit(end + 1) : -1;
+        }
+        return builder.build();
+    }
+
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    public int getRunCount() {
+        return this.count;
+    }
+
+    /**
+     * Returns the number of addresses in the set.
+     */
+    public long getLength() {
+        long length = 0;
+        for (int i = 0; i < this.count; i++) {
+            length += (long) this.ends[i] - this.starts[i] + 1;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the smallest range holding the whole set, invalid if empty.
+     */
+    public AtmelRange getBounds() {
+        if (this.count == 0) {
+            return new AtmelRange();
+        }
+        return new AtmelRange(this.starts[0], this.ends[this.count - 1]);
+    }
+
+    public AtmelRange getRun(final int index) {
+        return new AtmelRange(this.starts[index], this.ends[index]);
+    }
+
+    public boolean contains(final int address) {
+        final int index = this.find(address);
+        return (index >= 0) && (address <= this.ends[index]);
+    }
+
+    public boolean contains(final AtmelRange range) {
+        final int index = this.find(range.getStart());
+        return range.isValid() && (index >= 0) && (range.getEnd() <= this.ends[index]);
+    }
+
+    public boolean intersects(final AtmelRange range) {
+        return !this.intersect(of(range)).isEmpty();
+    }
+
+    public AtmelRangeSet union(final AtmelRangeSet other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < this.count || j < other.count) {
+            if (j >= other.count || (i < this.count && this.starts[i] <= other.starts[j])) {
+                builder.add(this.starts[i], this.ends[i]);
+                i++;
+            }
+            else {
+                builder.add(other.starts[j], other.ends[j]);
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    public AtmelRangeSet intersect(final AtmelRangeSet other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < this.count && j < other.count) {
+            final int start = Math.max(this.starts[i], other.starts[j]);
+            final int end = Math.min(this.ends[i], other.ends[j]);
+            if (start <= end) {
+                builder.add(start, end);
+            }
+            if (this.ends[i] < other.ends[j]) {
+                i++;
+            }
+            else {
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    public AtmelRangeSet intersect(final AtmelRange range) {
+        return this.intersect(of(range));
+    }
+
+    public AtmelRangeSet subtract(final AtmelRangeSet other) {
+        Builder builder = new Builder();
+        int j = 0;
+        for (int i = 0; i < this.count; i++) {
+            long start = this.starts[i];
+            final int end = this.ends[i];
+            while (j < other.count && other.ends[j] < start) {
+                j++;
+            }
+            for (int k = j; k < other.count && other.starts[k] <= end && start <= end; k++) {
+                if (other.starts[k] > start) {
+                    builder.add((int) start, other.starts[k] - 1);
+                }
+                start = Math.max(start, (long) other.ends[k] + 1);
+            }
+            if (start <= end) {
+                builder.add((int) start, end);
+            }
+        }
+        return builder.build();
+    }
+
+    public AtmelRangeSet subtract(final AtmelRange range) {
+        return this.subtract(of(range));
+    }
+
+    /**
+     * Widens every run to whole pages of the given size, e.g. to find the
+     * pages that have to be written for the addresses in the set.
+     */
+    public AtmelRangeSet alignToPages(final int pageSize) {
+        return this.alignToPages(pageSize, 0);
+    }
+
+    /**
+     * Same as {@link #alignToPages(int)}, for pages that start at origin
+     * plus a multiple of the page size.
+     */
+    public AtmelRangeSet alignToPages(final int pageSize, final int origin) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size");
+        }
+        Builder builder = new Builder();
+        for (int i = 0; i < this.count; i++) {
+            final int start = this.starts[i] - Math.floorMod(this.starts[i] - origin, pageSize);
+            final long end = (long) this.ends[i] - Math.floorMod(this.ends[i] - origin, pageSize) + pageSize - 1;
+            builder.add(start, (int) Math.min(end, Integer.MAX_VALUE));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Iterator<AtmelRange> iterator() {
+        return new Iterator<AtmelRange>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < AtmelRangeSet.this.count;
+            }
+
+            @Override
+            public AtmelRange next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return AtmelRangeSet.this.getRun(this.index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(final Object object) {
+        if (!(object instanceof AtmelRangeSet)) {
+            return false;
+        }
+        AtmelRangeSet other = (AtmelRangeSet) object;
+        return (this.count == other.count) &&
+                Arrays.equals(Arrays.copyOf(this.starts, this.count), Arrays.copyOf(other.starts, other.count)) &&
+                Arrays.equals(Arrays.copyOf(this.ends, this.count), Arrays.copyOf(other.ends, other.count));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < this.count; i++) {
+            hash = 31 * (31 * hash + this.starts[i]) + this.ends[i];
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        if (this.count == 0) {
+            return "empty";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < this.count; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(this.getRun(i));
+        }
+        return builder.toString();
+    }
+
+    /*
+     * Index of the last run starting at or before address, or -1.
+     */
+    private int find(final int address) {
+        int index = Arrays.binarySearch(this.starts, 0, this.count, address);
+        return (index >= 0) ? index : -index - 2;
+    }
+
+    /**
+     * Collects runs added in order of their start, merging the ones that
+     * overlap or touch.
+     */
+    private static class Builder {
+
+        private int[] starts = new int[4];
+        private int[] ends = new int[4];
+        private int count = 0;
+
+        public void add(final int start, final int end) {
+            if (this.count > 0 && (long) start <= (long) this.ends[this.count - 1] + 1) {
+                this.ends[this.count - 1] = Math.max(this.ends[this.count - 1], end);
+                return;
+            }
+            if (this.count == this.starts.length) {
+                this.starts = Arrays.copyOf(this.starts, this.count * 2);
+                this.ends = Arrays.copyOf(this.ends, this.count * 2);
+            }
+            this.starts[this.count] = start;
+            this.ends[this.count] = end;
+            this.count++;
+        }
+
+        public AtmelRangeSet build() {
+            return (this.count == 0) ? EMPTY : new AtmelRangeSet(this.starts, this.ends, this.count);
+        }
+    }
+}
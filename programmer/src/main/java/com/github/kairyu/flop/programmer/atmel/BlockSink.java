@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the blocks read from the device, in address order.
+ *
+ * @author Kai Ryu
+ *
+ */
+public interface BlockSink {
+
+    /**
+     * Takes the contents of one block. The buffer is reused for the next
+     * block, so it must be consumed before returning.
+     *
+     * @return 0 on success, negative to stop reading
+     */
+    int putBlock(final AtmelRange range, final ByteBuffer block);
+
+}
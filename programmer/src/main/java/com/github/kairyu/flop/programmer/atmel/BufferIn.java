@@ -30,9 +30,17 @@ public class BufferIn extends AtmelBuffer {
 
     @Override
     protected int findBlockEnd(final int start) {
-        int end = start + MAX_TRANSFER_SIZE - 1;
+        return findBlockEnd(start, this.getTransferSize(), this.getDataRange().getEnd());
+    }
+
+    /**
+     * Returns the end of a block read from start, which is one transfer
+     * long unless it reaches a 64 kB page boundary or the last address.
+     */
+    static int findBlockEnd(final int start, final int transferSize, final int last) {
+        int end = start + transferSize - 1;
         if (end / PAGE_SIZE > start / PAGE_SIZE) end = (end / PAGE_SIZE) * PAGE_SIZE - 1;
-        if (end > this.getDataRange().getEnd()) end = this.getDataRange().getEnd();
+        if (end > last) end = last;
         return end;
     }
 
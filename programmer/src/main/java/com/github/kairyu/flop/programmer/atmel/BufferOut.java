@@ -22,6 +22,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
 
 import cz.jaybee.intelhex.IntelHexDataListener;
 import cz.jaybee.intelhex.IntelHexParser;
@@ -95,6 +97,31 @@ public class BufferOut extends AtmelBuffer {
         return this.readHex(is, quiet);
     }
 
+    /**
+     * Copies raw image data into the buffer at the given absolute address,
+     * so an image can be filled chunk by chunk as it arrives.
+     *
+     * @return number of bytes outside the valid range, or a negative value
+     *         on error
+     */
+    public int putBinary(final int address, final byte[] data, final int offset, final int length) {
+        if (this.getTotalSize() <= 0) {
+            log.debug("Must provide valid memory size in bout");
+            return -1;
+        }
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            return -2;
+        }
+
+        int invalidAddressCount = 0;
+        for (int i = 0; i < length; i++) {
+            if (processData(data[offset + i], address + i) != 0) {
+                invalidAddressCount++;
+            }
+        }
+        return invalidAddressCount;
+    }
+
     private int readHex(final InputStream is, final boolean quiet) {
         if (this.getTotalSize() <= 0) {
             log.debug("Must provide valid memory size in bout");
@@ -125,27 +152,73 @@ public class BufferOut extends AtmelBuffer {
         return invalidAddressCount;
     }
 
+    /**
+     * Pads every page that holds data with 0xFF, so that whole pages are
+     * written. Pages count from the start of the valid range.
+     */
     public int prepareBuffer() {
         log.trace("atmel_flash_prep_buffer( %s )", this.hashCode());
-        final int pageSize = this.getPageSize();
-        for (int page: this.getValidRange().getArray(pageSize)) {
-            int i;
-            for (i = 0; i < pageSize; i++) {
-                if (this.isDataValid(page + i)) {
-                    break;
-                }
-            }
-            if (i != pageSize) {
-                for (i = 0; i < pageSize; i++) {
-                    if (!this.isDataValid(page + i)) {
-                        this.putData(page + i, BYTE_MAX);
-                    }
-                }
-            }
+        final AtmelRangeSet data = this.getDataRanges();
+        final AtmelRange valid = this.getValidRange();
+        final AtmelRangeSet pages = data.intersect(valid)
+                .alignToPages(this.getPageSize(), valid.getStart())
+                .intersect(new AtmelRange(valid.getStart(), this.getTotalSize() - 1));
+        for (AtmelRange blank: pages.subtract(data)) {
+            this.fillData(blank, BYTE_MAX);
         }
         return 0;
     }
 
+    /**
+     * Returns a key for the image, which unlike its digest also tells
+     * where the data lies.
+     */
+    public String getImageHash() {
+        final String digest = this.getImageDigest(ImageDigest.Algorithm.SHA_256);
+        if (digest == null) {
+            return null;
+        }
+        final AtmelRange range = this.getDataRange();
+        return String.format("%x-%x-%s", range.getStart(), range.getEnd(), digest);
+    }
+
+    /**
+     * Returns the digest of the data range, with unset bytes read as blank,
+     * which is what reading the same range back from a board gives.
+     */
+    public String getImageDigest(final ImageDigest.Algorithm algorithm) {
+        if (!this.hasData()) {
+            return null;
+        }
+        return this.getImageDigest(algorithm, this.getDataRange());
+    }
+
+    public String getImageDigest(final ImageDigest.Algorithm algorithm, final AtmelRange range) {
+        log.trace("atmel_image_hash( %s, %s, %s )", this.hashCode(), algorithm, range);
+
+        ImageDigest digest;
+        try {
+            digest = new ImageDigest(algorithm, range);
+        }
+        catch (NoSuchAlgorithmException e) {
+            log.debug("%s is not available.", algorithm);
+            return null;
+        }
+
+        final int start = range.getStart();
+        final int end = range.getEnd();
+        byte[] chunk = new byte[MAX_TRANSFER_SIZE];
+        for (int address = start; address <= end; address += chunk.length) {
+            final int length = Math.min(chunk.length, end - address + 1);
+            for (int i = 0; i < length; i++) {
+                chunk[i] = this.isDataValid(address + i) ? this.getData(address + i) : BYTE_MAX;
+            }
+            digest.putBlock(new AtmelRange(address, address + length - 1), ByteBuffer.wrap(chunk, 0, length));
+        }
+
+        return digest.getValue();
+    }
+
     private int processData(final byte value, final int address) {
         if (this.isValidAddress(address)) {
             int relativeAddress = this.getRelativeAddress(address);
@@ -168,21 +241,16 @@ public class BufferOut extends AtmelBuffer {
 
     @Override
     protected int findBlockStart(final int end) {
-        int start = end + 1;
-        for (; start <= this.getDataRange().getEnd(); start++) {
-            if (this.isDataValid(start)) break;
-        }
-        return start;
+        final int last = this.getDataRange().getEnd();
+        final int start = (end < last) ? this.nextDataAddress(end + 1) : -1;
+        return (start < 0 || start > last) ? Math.max(end, last) + 1 : start;
     }
 
     @Override
     protected int findBlockEnd(final int start) {
-        int end = start;
-        for (; end <= this.getDataRange().getEnd(); end++) {
-            if (!this.isDataValid(end)) break;
-            if (end - start + 1 > MAX_TRANSFER_SIZE) break;
-            if (end / PAGE_SIZE > start / PAGE_SIZE) break;
-        }
-        return --end;
+        int end = this.nextBlankAddress(start) - 1;
+        end = Math.min(end, start + this.getTransferSize() - 1);
+        end = Math.min(end, (start / PAGE_SIZE + 1) * PAGE_SIZE - 1);
+        return Math.min(end, this.getDataRange().getEnd());
     }
 }
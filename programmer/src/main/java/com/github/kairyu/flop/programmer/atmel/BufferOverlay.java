@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * @author Kai Ryu
+ *
+ */
+public class BufferOverlay extends BufferOut {
+
+    private final SortedMap<Integer, Byte> patches = new TreeMap<Integer, Byte>();
+
+    public BufferOverlay(final BufferOut template) {
+        if (this.share(template) != 0) {
+            throw new IllegalArgumentException();
+        }
+        // an overlay of an overlay shares the data below both
+        if (template instanceof BufferOverlay) {
+            this.patches.putAll(((BufferOverlay) template).patches);
+        }
+    }
+
+    public int patch(final int address, final byte[] data) {
+        log.trace("atmel_overlay_patch( %s, 0x%X, %d )", this.hashCode(), address, data.length);
+
+        for (int i = 0; i < data.length; i++) {
+            if (!this.isValidAddress(address + i)) {
+                log.debug("Address 0x%X is outside valid range %s.", address + i,
+                        this.getOffsetValidRange());
+                return -1;
+            }
+        }
+
+        final int relativeAddress = this.getRelativeAddress(address);
+        for (int i = 0; i < data.length; i++) {
+            this.putData(relativeAddress + i, data[i]);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public void putData(final int address, final byte data) {
+        this.patches.put(address, data);
+        this.getDataRange().inflate(address);
+    }
+
+    /**
+     * Patches every byte of the range, as the shared data is read-only.
+     */
+    @Override
+    public void fillData(final AtmelRange range, final byte value) {
+        if (!range.isValid()) {
+            return;
+        }
+        for (int address = range.getStart(); address <= range.getEnd(); address++) {
+            this.putData(address, value);
+        }
+    }
+
+    @Override
+    public byte getData(final int address) {
+        Byte data = this.patches.get(address);
+        return (data != null) ? data : super.getData(address);
+    }
+
+    @Override
+    public boolean isDataValid(final int address) {
+        return this.patches.containsKey(address) || super.isDataValid(address);
+    }
+
+    @Override
+    public void setDataInvalid(final int address) {
+        this.patches.remove(address);
+        super.setDataInvalid(address);
+    }
+
+    @Override
+    public void setDataInvalid(final AtmelRange range) {
+        if (range.isValid()) {
+            this.patches.subMap(range.getStart(), range.getEnd() + 1).clear();
+            super.setDataInvalid(range);
+        }
+    }
+
+    @Override
+    public AtmelRangeSet getDataRanges() {
+        AtmelRangeSet ranges = super.getDataRanges();
+        int start = -1;
+        int end = -1;
+        for (int address: this.patches.keySet()) {
+            if (start < 0 || address != end + 1) {
+                if (start >= 0) {
+                    ranges = ranges.union(AtmelRangeSet.of(start, end));
+                }
+                start = address;
+            }
+            end = address;
+        }
+        if (start >= 0) {
+            ranges = ranges.union(AtmelRangeSet.of(start, end));
+        }
+        return ranges;
+    }
+
+    @Override
+    protected int nextDataAddress(final int from) {
+        final int address = super.nextDataAddress(from);
+        final SortedMap<Integer, Byte> tail = this.patches.tailMap(from);
+        if (tail.isEmpty()) {
+            return address;
+        }
+        return (address < 0) ? tail.firstKey() : Math.min(address, tail.firstKey());
+    }
+
+    @Override
+    protected int nextBlankAddress(final int from) {
+        int address = super.nextBlankAddress(from);
+        while (this.patches.containsKey(address)) {
+            address = super.nextBlankAddress(address + 1);
+        }
+        return address;
+    }
+
+    @Override
+    public byte[] getBlock() {
+        final int start = this.getBlockRange().getStart();
+        byte[] block = super.getBlock();
+        for (Map.Entry<Integer, Byte> patch: this.patches.subMap(start, start + block.length).entrySet()) {
+            block[patch.getKey() - start] = patch.getValue();
+        }
+        return block;
+    }
+
+}
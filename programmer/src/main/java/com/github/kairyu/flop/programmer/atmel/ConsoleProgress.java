@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import com.github.kairyu.flop.programmer.Log;
+import com.github.kairyu.flop.programmer.dfu.DfuMetrics;
+
+import java.io.PrintStream;
+
+/**
+ * The command line progress bar.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class ConsoleProgress implements ProgressListener {
+
+    private static final int DEBUG_THRESHOLD = 50;
+    private static final int WIDTH = 32;
+    private static final String PROGRESS_METER = "0%                            100%  ";
+    private static final String PROGRESS_START = "[";
+    private static final String PROGRESS_BAR   = ">";
+    private static final String PROGRESS_END   = "]  ";
+    private static final String PROGRESS_ERROR = " X  ";
+
+    private final PrintStream stream;
+    private boolean enabled = false;
+    private boolean started = false;
+    private int bars = 0;
+
+    public ConsoleProgress(final PrintStream stream) {
+        this.stream = stream;
+    }
+
+    @Override
+    public void phaseStarted(final DfuMetrics.Phase phase, final long total) {
+        // the bar would be broken up by debug output
+        this.enabled = (Log.getGlobalDebug() <= DEBUG_THRESHOLD);
+        this.started = false;
+        this.bars = 0;
+        if (this.enabled) {
+            this.stream.print(PROGRESS_METER);
+        }
+    }
+
+    @Override
+    public void progress(final DfuMetrics.Phase phase, final long done, final long total,
+            final double blocksPerSecond) {
+        if (this.enabled && total > 0) {
+            this.print((int) Math.min(WIDTH, done * WIDTH / total));
+        }
+    }
+
+    @Override
+    public void phaseEnded(final DfuMetrics.Phase phase, final boolean success) {
+        if (this.enabled) {
+            if (success) {
+                this.print(WIDTH);
+                this.stream.print(PROGRESS_END);
+            }
+            else {
+                this.print(this.bars);
+                this.stream.print(PROGRESS_ERROR);
+            }
+            this.stream.flush();
+        }
+        this.enabled = false;
+    }
+
+    private void print(final int bars) {
+        if (!this.started) {
+            this.stream.print(PROGRESS_START);
+            this.started = true;
+        }
+        for (; this.bars < bars; this.bars++) {
+            this.stream.print(PROGRESS_BAR);
+        }
+        this.stream.flush();
+    }
+}
@@ -36,24 +36,24 @@ public class DeviceInfo {
         this.type = type;
     }
 
+    public boolean hasInfo(final Get get) {
+        return this.info.containsKey(get);
+    }
+
     public short getInfo(final Get get) throws ControllerErrorException {
-        switch (get) {
-            case BSB:
-            case SBV:
-            case SSB:
-            case EB:
-            case HSB:
-                if (!type.isType(DeviceType.ADC_8051)) {
-                    throw new ControllerErrorException(
-                            get.getDescription(), DeviceType.ADC_8051.getName());
-                }
-            default:
-                break;
-        }
+        checkInfo(get);
         return this.info.get(get);
     }
 
     public void setInfo(final Get get, final short value) throws ControllerErrorException {
+        checkInfo(get);
+        this.info.put(get, value);
+    }
+
+    /**
+     * Throws if the field does not exist for this type of controller.
+     */
+    public void checkInfo(final Get get) throws ControllerErrorException {
         switch (get) {
             case BSB:
             case SBV:
@@ -67,7 +67,6 @@ public class DeviceInfo {
             default:
                 break;
         }
-        this.info.put(get, value);
     }
 
     public String toString() {
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import com.github.kairyu.flop.programmer.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records the image last programmed into each device, by serial number.
+ *
+ * One history may be used by several jobs at once. Every method holds
+ * the history's lock, and {@link #record} and {@link #forget} reload the
+ * file before changing it and save it after, so entries written by other
+ * jobs since the last load are kept.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class FlashHistory {
+
+    private final Log log = Log.getLog(AtmelDevice.class.getPackage().getName(),
+            DEBUG_THRESHOLD, TRACE_THRESHOLD);
+
+    private static final int DEBUG_THRESHOLD = 50;
+    private static final int TRACE_THRESHOLD = 55;
+    private static final String SEPARATOR = " ";
+
+    private final File file;
+    private final Properties entries = new Properties();
+    private final Lock lock = new ReentrantLock();
+
+    public FlashHistory(final String filename) {
+        this.file = new File(filename);
+    }
+
+    public int load() {
+        log.trace("flash_history_load( %s )", this.file);
+
+        this.lock.lock();
+        try {
+            return this.read();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private int read() {
+        this.entries.clear();
+        if (!this.file.exists()) {
+            log.debug("No flash history at %s.", this.file);
+            return 0;
+        }
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(this.file);
+            this.entries.load(is);
+        }
+        catch (IOException e) {
+            log.debug("Error reading flash history %s: %s", this.file, e.getMessage());
+            return -1;
+        }
+        finally {
+            close(is);
+        }
+
+        return 0;
+    }
+
+    public int save() {
+        log.trace("flash_history_save( %s )", this.file);
+
+        this.lock.lock();
+        try {
+            return this.write();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private int write() {
+        // written aside and renamed over the old one, so an interrupted
+        // save leaves the previous history rather than half of a new one
+        final File temp = new File(this.file.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            this.entries.store(os, "flop flash history");
+            os.close();
+            os = null;
+            Files.move(temp.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            log.debug("Error writing flash history %s: %s", this.file, e.getMessage());
+            close(os);
+            temp.delete();
+            return -1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Tells whether the device was last programmed with the image of the
+     * given hash, which is taken before any serial number is placed in it.
+     */
+    public boolean matches(final String serial, final MemoryUnit unit, final Target target, final String hash) {
+        if (serial == null || hash == null) {
+            return false;
+        }
+
+        final String entry = this.getEntry(serial, unit);
+        log.debug("History of %s: %s", getKey(serial, unit), entry);
+        if (entry == null) {
+            return false;
+        }
+
+        final String[] fields = entry.split(SEPARATOR);
+        return fields.length >= 2 && getValue(target, hash).equals(fields[0] + SEPARATOR + fields[1]);
+    }
+
+    /**
+     * Returns the serial number, in hex digits, that was placed in the
+     * image recorded for the device, or null if there was none.
+     */
+    public String getSerialNumber(final String serial, final MemoryUnit unit) {
+        if (serial == null) {
+            return null;
+        }
+        final String entry = this.getEntry(serial, unit);
+        final String[] fields = (entry != null) ? entry.split(SEPARATOR) : new String[0];
+        return (fields.length > 2) ? fields[2] : null;
+    }
+
+    /**
+     * Records the image programmed into a device and saves the history.
+     */
+    public int record(final String serial, final MemoryUnit unit, final Target target, final String hash,
+            final String serialNumber) {
+        if (serial == null || hash == null) {
+            return 0;
+        }
+        this.lock.lock();
+        try {
+            if (this.read() != 0) {
+                return -1;
+            }
+            this.entries.setProperty(getKey(serial, unit), (serialNumber == null) ? getValue(target, hash) :
+                    getValue(target, hash) + SEPARATOR + serialNumber);
+            return this.write();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the entry of a device and saves the history.
+     */
+    public int forget(final String serial, final MemoryUnit unit) {
+        if (serial == null) {
+            return 0;
+        }
+        this.lock.lock();
+        try {
+            if (this.read() != 0) {
+                return -1;
+            }
+            if (this.entries.remove(getKey(serial, unit)) == null) {
+                return 0;
+            }
+            return this.write();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private String getEntry(final String serial, final MemoryUnit unit) {
+        this.lock.lock();
+        try {
+            return this.entries.getProperty(getKey(serial, unit));
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private static String getKey(final String serial, final MemoryUnit unit) {
+        return serial + "." + unit;
+    }
+
+    private static String getValue(final Target target, final String hash) {
+        return target.getName() + SEPARATOR + hash;
+    }
+
+    private static void close(final Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            }
+            catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+}
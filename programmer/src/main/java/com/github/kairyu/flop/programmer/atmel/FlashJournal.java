@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import com.github.kairyu.flop.programmer.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * @author Kai Ryu
+ *
+ */
+public class FlashJournal {
+
+    private final Log log = Log.getLog(AtmelDevice.class.getPackage().getName(),
+            DEBUG_THRESHOLD, TRACE_THRESHOLD);
+
+    private static final int DEBUG_THRESHOLD = 50;
+    private static final int TRACE_THRESHOLD = 55;
+    private static final String SUFFIX = ".journal";
+    private static final String SERIAL_NUMBER = "serial";
+
+    private final File file;
+    private final AtmelRange lastBlock = new AtmelRange();
+    private String serialNumber = null;
+    private Writer writer = null;
+
+    public FlashJournal(final String directory, final String serial, final MemoryUnit unit, final String hash) {
+        this.file = new File(directory, String.format("%s.%s.%s%s",
+                serial.replaceAll("[^0-9A-Za-z_-]", "_"), unit, hash, SUFFIX));
+    }
+
+    public int load() {
+        log.trace("flash_journal_load( %s )", this.file);
+
+        this.lastBlock.setInvalid();
+        this.serialNumber = null;
+        if (!this.file.exists()) {
+            log.debug("No flash journal at %s.", this.file);
+            return 0;
+        }
+
+        try {
+            List<String> lines = Files.readAllLines(this.file.toPath(), StandardCharsets.US_ASCII);
+            if (!lines.isEmpty()) {
+                String[] fields = lines.get(0).trim().split(" ");
+                if (fields.length == 2 && fields[0].equals(SERIAL_NUMBER)) {
+                    this.serialNumber = fields[1];
+                }
+            }
+            for (int i = lines.size() - 1; i >= 0; i--) {
+                // a torn last line is ignored in favour of the one before it
+                String[] fields = lines.get(i).trim().split(" ");
+                if (fields.length == 2) {
+                    try {
+                        this.lastBlock.set(Integer.decode(fields[0]), Integer.decode(fields[1]));
+                        break;
+                    }
+                    catch (NumberFormatException e) {
+                        log.debug("Ignoring journal line %d.", i + 1);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            log.debug("Error reading flash journal %s: %s", this.file, e.getMessage());
+            return -1;
+        }
+
+        log.debug("Last committed block in %s: %s", this.file, this.lastBlock);
+        return 0;
+    }
+
+    public AtmelRange getLastBlock() {
+        return this.lastBlock;
+    }
+
+    public boolean hasCommittedBlock() {
+        return this.lastBlock.isValid();
+    }
+
+    /**
+     * Returns the serial number, in hex digits, the journaled blocks were
+     * written with, or null if none was placed in the image.
+     */
+    public String getSerialNumber() {
+        return this.serialNumber;
+    }
+
+    /**
+     * Sets the serial number to record before the first block, so that a
+     * resumed flash writes the remaining blocks with the same one.
+     */
+    public void setSerialNumber(final String serialNumber) {
+        this.serialNumber = serialNumber;
+    }
+
+    public int commit(final AtmelRange block) {
+        try {
+            if (this.writer == null) {
+                File directory = this.file.getParentFile();
+                if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                    log.debug("Can't create journal directory %s.", directory);
+                    return -1;
+                }
+                final boolean fresh = !this.file.exists() || this.file.length() == 0;
+                this.writer = new FileWriter(this.file, true);
+                if (fresh && this.serialNumber != null) {
+                    this.writer.write(String.format("%s %s%n", SERIAL_NUMBER, this.serialNumber));
+                }
+            }
+            this.writer.write(String.format("0x%X 0x%X%n", block.getStart(), block.getEnd()));
+            this.writer.flush();
+        }
+        catch (IOException e) {
+            log.debug("Error writing flash journal %s: %s", this.file, e.getMessage());
+            return -1;
+        }
+
+        this.lastBlock.set(block);
+        return 0;
+    }
+
+    public void close() {
+        if (this.writer != null) {
+            try {
+                this.writer.close();
+            }
+            catch (IOException e) {
+                log.debug("Error closing flash journal %s: %s", this.file, e.getMessage());
+            }
+            this.writer = null;
+        }
+    }
+
+    public void clear() {
+        this.close();
+        this.lastBlock.setInvalid();
+        this.serialNumber = null;
+        if (this.file.exists() && !this.file.delete()) {
+            log.debug("Can't delete flash journal %s.", this.file);
+        }
+    }
+
+}
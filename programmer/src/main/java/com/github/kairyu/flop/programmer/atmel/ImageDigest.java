@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * Hashes memory as it is read, without keeping it.
+ *
+ * Only the bytes inside the hashed range are used, so the blocks of a
+ * larger read, such as the one done to validate a flash, can be passed
+ * through unchanged. Nothing but those bytes is hashed, so the digest
+ * matches that of a raw dump of the range, e.g. from sha256sum, and the
+ * range has to be reported next to it.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class ImageDigest implements BlockSink {
+
+    public enum Algorithm {
+
+        SHA_256("sha256"),
+        CRC32C("crc32c");
+
+        private final String name;
+
+        private Algorithm(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public String toString() {
+            return this.getName();
+        }
+
+        public static Algorithm getByName(final String name) {
+            for (Algorithm algorithm: Algorithm.values()) {
+                if (algorithm.name.equals(name)) {
+                    return algorithm;
+                }
+            }
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final AtmelRange range;
+    private final MessageDigest digest;
+    private final CRC32C crc;
+    private int next;
+
+    public ImageDigest(final Algorithm algorithm, final AtmelRange range) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+        this.range = new AtmelRange(range);
+        this.next = range.getStart();
+        if (algorithm == Algorithm.SHA_256) {
+            this.digest = MessageDigest.getInstance("SHA-256");
+            this.crc = null;
+        }
+        else {
+            this.digest = null;
+            this.crc = new CRC32C();
+        }
+    }
+
+    public Algorithm getAlgorithm() {
+        return this.algorithm;
+    }
+
+    public AtmelRange getRange() {
+        return this.range;
+    }
+
+    /**
+     * Tells whether every byte of the range has been hashed.
+     */
+    public boolean isComplete() {
+        return this.next > this.range.getEnd();
+    }
+
+    @Override
+    public int putBlock(final AtmelRange blockRange, final ByteBuffer block) {
+        final int start = Math.max(blockRange.getStart(), this.next);
+        final int end = Math.min(blockRange.getEnd(), this.range.getEnd());
+        if (start > end) {
+            return 0;
+        }
+        if (start != this.next) {
+            // a gap in the range can't be hashed
+            return -1;
+        }
+
+        ByteBuffer slice = block.duplicate();
+        slice.position(slice.position() + start - blockRange.getStart());
+        slice.limit(slice.position() + end - start + 1);
+        if (this.digest != null) {
+            this.digest.update(slice);
+        }
+        else {
+            this.crc.update(slice);
+        }
+        this.next = end + 1;
+        return 0;
+    }
+
+    /**
+     * Returns the digest as lower case hex. Only call once all blocks have
+     * been passed in.
+     */
+    public String getValue() {
+        if (this.digest == null) {
+            return String.format("%08x", this.crc.getValue());
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b: this.digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+}
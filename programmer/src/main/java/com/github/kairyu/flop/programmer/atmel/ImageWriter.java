@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes blocks read from the device to a channel as they arrive, either
+ * raw or as Intel HEX, through a fixed-size output buffer.
+ *
+ * Errors are kept rather than thrown from {@link #putBlock}, and are
+ * reported by {@link #finish}.
+ *
+ * @author Kai Ryu
+ *
+ */
+public abstract class ImageWriter implements BlockSink {
+
+    private static final int OUTPUT_SIZE = 0x10000;
+    private static final byte BYTE_MAX = (byte) 0xff;
+
+    private final WritableByteChannel channel;
+    protected final ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_SIZE);
+    private IOException error = null;
+
+    protected ImageWriter(final WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public static ImageWriter binary(final WritableByteChannel channel) {
+        return new Binary(channel);
+    }
+
+    /**
+     * @param offset    added to every address written, e.g. the user page offset
+     * @param skipBlank leave out records whose bytes are all 0xFF
+     */
+    public static ImageWriter hex(final WritableByteChannel channel, final int offset, final boolean skipBlank) {
+        return new Hex(channel, offset, skipBlank);
+    }
+
+    @Override
+    public int putBlock(final AtmelRange range, final ByteBuffer block) {
+        if (this.error != null) {
+            return -1;
+        }
+        try {
+            this.write(range.getStart(), block);
+            return 0;
+        }
+        catch (IOException e) {
+            this.error = e;
+            return -1;
+        }
+    }
+
+    /**
+     * Writes whatever is still buffered, and throws the first error seen.
+     * The channel is left open.
+     */
+    public void finish() throws IOException {
+        if (this.error == null) {
+            try {
+                this.end();
+                this.drain();
+            }
+            catch (IOException e) {
+                this.error = e;
+            }
+        }
+        if (this.error != null) {
+            throw this.error;
+        }
+    }
+
+    protected abstract void write(final int address, final ByteBuffer block) throws IOException;
+
+    protected void end() throws IOException {
+    }
+
+    /**
+     * Makes room for at least length bytes in the output buffer.
+     */
+    protected void reserve(final int length) throws IOException {
+        if (this.output.remaining() < length) {
+            this.drain();
+        }
+    }
+
+    protected void drain() throws IOException {
+        this.output.flip();
+        while (this.output.hasRemaining()) {
+            this.channel.write(this.output);
+        }
+        this.output.clear();
+    }
+
+    private static class Binary extends ImageWriter {
+
+        private Binary(final WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        protected void write(final int address, final ByteBuffer block) throws IOException {
+            while (block.hasRemaining()) {
+                this.reserve(1);
+                ByteBuffer slice = block.duplicate();
+                slice.limit(slice.position() + Math.min(slice.remaining(), this.output.remaining()));
+                this.output.put(slice);
+                block.position(slice.position());
+            }
+        }
+    }
+
+    private static class Hex extends ImageWriter {
+
+        private static final int RECORD_SIZE = 16;
+        // ':' + count, address, type + data + checksum, as hex digits + newline
+        private static final int MAX_LINE = 1 + 2 * (4 + RECORD_SIZE + 1) + 1;
+        private static final byte[] DIGITS = "0123456789ABCDEF".getBytes();
+
+        private final int offset;
+        private final boolean skipBlank;
+        private int segment = 0;
+        private final byte[] record = new byte[RECORD_SIZE];
+
+        private Hex(final WritableByteChannel channel, final int offset, final boolean skipBlank) {
+            super(channel);
+            this.offset = offset;
+            this.skipBlank = skipBlank;
+        }
+
+        @Override
+        protected void write(final int address, final ByteBuffer block) throws IOException {
+            int current = address + this.offset;
+            while (block.hasRemaining()) {
+                // Records never cross a 16-byte boundary or a 64 KiB segment;
+                // masked rather than %, which is negative above 0x7fffffff
+                final int length = Math.min(block.remaining(), RECORD_SIZE - (current & (RECORD_SIZE - 1)));
+                block.get(this.record, 0, length);
+
+                if (!(this.skipBlank && isBlank(this.record, length))) {
+                    final int upper = current >>> 16;
+                    if (upper != this.segment) {
+                        this.putRecord(0x0000, 0x04, new byte[] { (byte) (upper >> 8), (byte) upper }, 2);
+                        this.segment = upper;
+                    }
+                    this.putRecord(current & 0xffff, 0x00, this.record, length);
+                }
+                current += length;
+            }
+        }
+
+        @Override
+        protected void end() throws IOException {
+            this.putRecord(0x0000, 0x01, this.record, 0);
+        }
+
+        private void putRecord(final int address, final int type, final byte[] data, final int length)
+                throws IOException {
+            this.reserve(MAX_LINE);
+            int checksum = length + (address >> 8) + address + type;
+            this.output.put((byte) ':');
+            this.putByte(length);
+            this.putByte(address >> 8);
+            this.putByte(address);
+            this.putByte(type);
+            for (int i = 0; i < length; i++) {
+                this.putByte(data[i]);
+                checksum += data[i];
+            }
+            this.putByte(-checksum);
+            this.output.put((byte) '\n');
+        }
+
+        private void putByte(final int value) {
+            this.output.put(DIGITS[(value >> 4) & 0x0f]).put(DIGITS[value & 0x0f]);
+        }
+
+        private static boolean isBlank(final byte[] data, final int length) {
+            for (int i = 0; i < length; i++) {
+                if (data[i] != BYTE_MAX) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.kairyu.flop.programmer.atmel;
+
+/**
+ * Rough cost of bootloader operations used to estimate the wall time of
+ * a transfer plan.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class LatencyModel {
+
+    public static final int DEFAULT_TRANSFER_MICROS = 1000;
+    public static final int DEFAULT_BYTE_NANOS      = 1000;
+    public static final int DEFAULT_PROGRAM_MICROS  = 4500;
+    public static final int DEFAULT_ERASE_MILLIS    = 2000;
+
+    private final int transferMicros;
+    private final int byteNanos;
+    private final int programMicros;
+    private final int eraseMillis;
+
+    /**
+     * @param transferMicros fixed round trip of one control transfer
+     * @param byteNanos      time to move one payload byte over the bus
+     * @param programMicros  time the bootloader takes to program 1 KiB
+     * @param eraseMillis    time the bootloader takes for a chip erase
+     */
+    public LatencyModel(final int transferMicros, final int byteNanos,
+            final int programMicros, final int eraseMillis) {
+        this.transferMicros = transferMicros;
+        this.byteNanos = byteNanos;
+        this.programMicros = programMicros;
+        this.eraseMillis = eraseMillis;
+    }
+
+    public LatencyModel() {
+        this(DEFAULT_TRANSFER_MICROS, DEFAULT_BYTE_NANOS, DEFAULT_PROGRAM_MICROS, DEFAULT_ERASE_MILLIS);
+    }
+
+    public long getTransferNanos(final int bytes) {
+        return this.transferMicros * 1000L + (long) bytes * this.byteNanos;
+    }
+
+    public long getProgramNanos(final int bytes) {
+        return (long) bytes * this.programMicros * 1000L / 1024;
+    }
+
+    public long getEraseNanos() {
+        return this.eraseMillis * 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d us/transfer, %d ns/byte, %d us/KiB programmed, %d ms/erase",
+                this.transferMicros, this.byteNanos, this.programMicros, this.eraseMillis);
+    }
+
+}
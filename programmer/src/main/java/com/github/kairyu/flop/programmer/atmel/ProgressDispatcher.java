@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import com.github.kairyu.flop.programmer.dfu.DfuMetrics;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands progress events to a listener on its own thread.
+ *
+ * The transfer loop only stores the latest progress and, at most once per
+ * interval, schedules its delivery, so a slow listener never holds up the
+ * device and intermediate updates are coalesced. Phase events are always
+ * delivered, in order, after the progress that preceded them.
+ *
+ * All dispatchers share one delivery thread, however many devices are
+ * worked on, so a listener should return quickly.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class ProgressDispatcher implements ProgressListener {
+
+    public static final int DEFAULT_UPDATES_PER_SECOND = 10;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "flop-progress");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static class Update {
+        private final DfuMetrics.Phase phase;
+        private final long done;
+        private final long total;
+        private final double blocksPerSecond;
+
+        public Update(final DfuMetrics.Phase phase, final long done, final long total, final double blocksPerSecond) {
+            this.phase = phase;
+            this.done = done;
+            this.total = total;
+            this.blocksPerSecond = blocksPerSecond;
+        }
+    }
+
+    private final ProgressListener listener;
+    private final long intervalNanos;
+    private final AtomicReference<Update> pending = new AtomicReference<Update>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile long lastDelivery = 0;
+
+    public ProgressDispatcher(final ProgressListener listener) {
+        this(listener, DEFAULT_UPDATES_PER_SECOND);
+    }
+
+    public ProgressDispatcher(final ProgressListener listener, final int updatesPerSecond) {
+        if (listener == null || updatesPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid progress listener");
+        }
+        this.listener = listener;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / updatesPerSecond;
+    }
+
+    public ProgressListener getListener() {
+        return this.listener;
+    }
+
+    @Override
+    public void phaseStarted(final DfuMetrics.Phase phase, final long total) {
+        final Update update = this.pending.getAndSet(null);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ProgressDispatcher.this.deliver(update);
+                ProgressDispatcher.this.listener.phaseStarted(phase, total);
+            }
+        });
+    }
+
+    @Override
+    public void progress(final DfuMetrics.Phase phase, final long done, final long total,
+            final double blocksPerSecond) {
+        this.pending.set(new Update(phase, done, total, blocksPerSecond));
+        if (this.scheduled.compareAndSet(false, true)) {
+            final long delay = this.lastDelivery + this.intervalNanos - System.nanoTime();
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ProgressDispatcher.this.scheduled.set(false);
+                    ProgressDispatcher.this.deliver(ProgressDispatcher.this.pending.getAndSet(null));
+                }
+            }, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void phaseEnded(final DfuMetrics.Phase phase, final boolean success) {
+        final Update update = this.pending.getAndSet(null);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ProgressDispatcher.this.deliver(update);
+                ProgressDispatcher.this.listener.phaseEnded(phase, success);
+            }
+        });
+    }
+
+    /**
+     * Waits until the events dispatched so far have been delivered, so that
+     * output following them stays in order.
+     */
+    public void flush() {
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            // an empty task does not fail
+        }
+    }
+
+    /**
+     * Delivers what is left; the shared thread stays for other devices.
+     */
+    public void close() {
+        this.flush();
+    }
+
+    private void deliver(final Update update) {
+        if (update != null) {
+            this.lastDelivery = System.nanoTime();
+            this.listener.progress(update.phase, update.done, update.total, update.blocksPerSecond);
+        }
+    }
+}
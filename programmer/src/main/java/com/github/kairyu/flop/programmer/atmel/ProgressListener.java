@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import com.github.kairyu.flop.programmer.dfu.DfuMetrics;
+
+/**
+ * Receives the progress of flash, read and validate operations.
+ *
+ * Events are delivered from a dispatcher thread rather than the thread
+ * doing the transfers, see {@link ProgressDispatcher}.
+ *
+ * @author Kai Ryu
+ *
+ */
+public interface ProgressListener {
+
+    void phaseStarted(DfuMetrics.Phase phase, long total);
+
+    /**
+     * @param done            bytes transferred so far
+     * @param total           bytes to transfer in this phase
+     * @param blocksPerSecond average block rate since the phase started
+     */
+    void progress(DfuMetrics.Phase phase, long done, long total, double blocksPerSecond);
+
+    void phaseEnded(DfuMetrics.Phase phase, boolean success);
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.kairyu.flop.programmer.atmel;
+
+import com.github.kairyu.flop.programmer.dfu.DfuCommand;
+import com.github.kairyu.flop.programmer.dfu.DfuStatus;
+import com.github.kairyu.flop.programmer.dfu.Transport;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.usb4java.DeviceHandle;
+
+/**
+ * Answers the Atmel DFU bootloader protocol from memory so the flash path
+ * can run without a device, and keeps the resulting transfer plan.
+ *
+ * Memory starts out blank. Every request is accepted, so the plan shows
+ * the cost of a successful run.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class SimulatedBootloader implements Transport {
+
+    private static final int PAGE_SIZE   = 0x10000;
+    private static final int FOOTER_SIZE = 16;
+    private static final int EEPROM_UNIT = 0x100;
+
+    private final DeviceType type;
+    private final LatencyModel latency;
+    private final Map<Integer, byte[]> memory = new HashMap<Integer, byte[]>();
+    private final List<String> operations = new ArrayList<String>();
+
+    private int unit = MemoryUnit.flash.getValue();
+    private int page = 0;
+    private DfuStatus.Status status = DfuStatus.Status.OK;
+    private DfuStatus.State state = DfuStatus.State.DFU_IDLE;
+    private byte[] pendingUpload = null;
+
+    private int transfers = 0;
+    private int statusPolls = 0;
+    private int blocksWritten = 0;
+    private int blocksRead = 0;
+    private int blankChecks = 0;
+    private int pageSwitches = 0;
+    private int erases = 0;
+    private long bytesOut = 0;
+    private long bytesIn = 0;
+    private long estimatedNanos = 0;
+
+    public SimulatedBootloader(final DeviceType type, final LatencyModel latency) {
+        this.type = type;
+        this.latency = latency;
+    }
+
+    @Override
+    public int transferOut(final DeviceHandle handle, final byte request, final short value,
+            final short iface, final ByteBuffer data, final long timeout) {
+        final byte[] payload = toArray(data, (data == null) ? 0 : data.capacity());
+        String description = "";
+        if (request == DfuCommand.DNLOAD.getValue()) {
+            description = this.download(payload);
+        }
+        else if (request == DfuCommand.CLRSTATUS.getValue()) {
+            this.setStatus(DfuStatus.Status.OK);
+        }
+        this.count(request, value, payload.length, 0, description);
+        this.bytesOut += payload.length;
+        return payload.length;
+    }
+
+    @Override
+    public int transferIn(final DeviceHandle handle, final byte request, final short value,
+            final short iface, final ByteBuffer data, final long timeout) {
+        final int length = (data == null) ? 0 : data.capacity();
+        byte[] response = new byte[0];
+        String description = "";
+        if (request == DfuCommand.GETSTATUS.getValue()) {
+            response = new byte[] { this.status.getValue(), 0, 0, 0, this.state.getValue(), 0 };
+            description = this.status.toString();
+            this.statusPolls++;
+        }
+        else if (request == DfuCommand.GETSTATE.getValue()) {
+            response = new byte[] { this.state.getValue() };
+        }
+        else if (request == DfuCommand.UPLOAD.getValue()) {
+            response = (this.pendingUpload != null) ? this.pendingUpload : new byte[length];
+            this.pendingUpload = null;
+        }
+        else if (request == DfuCommand.ABORT.getValue()) {
+            this.setStatus(DfuStatus.Status.OK);
+        }
+
+        final int result = Integer.min(length, response.length);
+        if (result > 0) {
+            ByteBuffer buffer = data.duplicate();
+            buffer.clear();
+            buffer.put(response, 0, result);
+        }
+        this.count(request, value, length, result, description);
+        this.bytesIn += result;
+        return result;
+    }
+
+    @Override
+    public boolean isConnected(final DeviceHandle handle) {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getEstimatedNanos() {
+        return this.estimatedNanos;
+    }
+
+    public void printOperations(final PrintStream stream) {
+        for (String operation: this.operations) {
+            stream.println(operation);
+        }
+    }
+
+    public void printSummary(final PrintStream stream) {
+        stream.println(String.format("%d transfers (%d status polls), 0x%X bytes out, 0x%X bytes in",
+                this.transfers, this.statusPolls, this.bytesOut, this.bytesIn));
+        stream.println(String.format("%d blocks written, %d blocks read, %d blank checks, %d page switches, %d erases",
+                this.blocksWritten, this.blocksRead, this.blankChecks, this.pageSwitches, this.erases));
+        stream.println(String.format("estimated %.3f s (%s)", this.estimatedNanos / 1e9, this.latency));
+    }
+
+    private String download(final byte[] command) {
+        if (command.length >= 6 && command[0] == 0x01) {
+            final int start = getShort(command, 2);
+            final int end = getShort(command, 4);
+            final int length = end - start + 1;
+            final boolean eeprom = command[1] == 0x01;
+            final int offset = command.length - FOOTER_SIZE - length;
+            if (length <= 0 || offset < 6) {
+                this.setStatus(DfuStatus.Status.ERROR_ADDRESS);
+                return "write (malformed)";
+            }
+            System.arraycopy(command, offset, this.getPage(eeprom), start, length);
+            this.blocksWritten++;
+            this.estimatedNanos += this.latency.getProgramNanos(length);
+            return String.format("write 0x%04X-0x%04X (0x%X bytes)", start, end, length);
+        }
+        else if (command.length >= 6 && command[0] == 0x03) {
+            final int start = getShort(command, 2);
+            final int end = getShort(command, 4);
+            if (command[1] == 0x01) {
+                this.blankChecks++;
+                final byte[] memory = this.getPage(false);
+                for (int address = start; address <= end; address++) {
+                    if (memory[address] != (byte)0xff) {
+                        this.setStatus(DfuStatus.Status.ERROR_CHECK_ERASED);
+                        this.pendingUpload = new byte[] { (byte)(address >> 8), (byte)address };
+                        break;
+                    }
+                }
+                return String.format("blank check 0x%04X-0x%04X", start, end);
+            }
+            final byte[] memory = this.getPage(command[1] == 0x02);
+            this.pendingUpload = Arrays.copyOfRange(memory, start, end + 1);
+            this.blocksRead++;
+            return String.format("read 0x%04X-0x%04X (0x%X bytes)", start, end, end - start + 1);
+        }
+        else if (command.length >= 3 && command[0] == 0x04 && command[1] == 0x00) {
+            this.memory.clear();
+            this.erases++;
+            this.estimatedNanos += this.latency.getEraseNanos();
+            return "chip erase";
+        }
+        else if (command.length >= 3 && command[0] == 0x04) {
+            return "start application";
+        }
+        else if (command.length >= 3 && command[0] == 0x05) {
+            this.pendingUpload = new byte[] { 0 };
+            return String.format("read config 0x%02X 0x%02X", command[1], command[2]);
+        }
+        else if (command.length >= 4 && command[0] == 0x06 && command[1] == 0x03) {
+            if (this.type.isType(DeviceType.GRP_AVR32)) {
+                if (command[2] == 0x00) {
+                    this.unit = command[3];
+                    return String.format("select memory unit %d", this.unit);
+                }
+                this.page = getShort(command, 3);
+            }
+            else {
+                this.page = command[2] & 0xff;
+            }
+            this.pageSwitches++;
+            return String.format("select page %d", this.page);
+        }
+        return "";
+    }
+
+    private void count(final byte request, final short value, final int length, final int result,
+            final String description) {
+        this.transfers++;
+        this.estimatedNanos += this.latency.getTransferNanos(Math.max(length, result));
+        this.operations.add(String.format("%6d %-9s 0x%04x %6d  %s",
+                this.transfers, DfuCommand.getNameByValue(request), value & 0xffff, length, description));
+    }
+
+    private void setStatus(final DfuStatus.Status status) {
+        this.status = status;
+        this.state = (status == DfuStatus.Status.OK) ? DfuStatus.State.DFU_IDLE : DfuStatus.State.DFU_ERROR;
+    }
+
+    private byte[] getPage(final boolean eeprom) {
+        final int key = ((eeprom ? EEPROM_UNIT : this.unit) << 16) | this.page;
+        byte[] page = this.memory.get(key);
+        if (page == null) {
+            page = new byte[PAGE_SIZE];
+            Arrays.fill(page, (byte)0xff);
+            this.memory.put(key, page);
+        }
+        return page;
+    }
+
+    private static int getShort(final byte[] data, final int index) {
+        return ((data[index] & 0xff) << 8) | (data[index + 1] & 0xff);
+    }
+
+    private static byte[] toArray(final ByteBuffer data, final int length) {
+        byte[] array = new byte[length];
+        if (length > 0) {
+            ByteBuffer copy = data.duplicate();
+            copy.clear();
+            copy.get(array);
+        }
+        return array;
+    }
+
+}
@@ -17,6 +17,12 @@
 
 package com.github.kairyu.flop.programmer.atmel;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author Kai Ryu
  *
@@ -99,8 +105,46 @@ public enum Target {
     atxmega384c3    (DeviceType.ADC_XMEGA, 0x2FDB, 0x03eb, 0x60000, 0x2000, true,  512, true,  false, 32,  0x1000),
     atxmega16c4     (DeviceType.ADC_XMEGA, 0x2FD8, 0x03eb,  0x4000, 0x1000, true,  256, true,  false, 32,   0x400),
     atxmega32c4     (DeviceType.ADC_XMEGA, 0x2FD9, 0x03eb,  0x8000, 0x1000, true,  256, true,  false, 32,   0x400),
+    // any device may be an XMEGA, which needs the initial abort, and it does no harm to the others
+    auto            (DeviceType.NULL,           0,      0,       0,      0, false,   0, true,  false,  0,       0),
     none            (DeviceType.NULL,           0,      0,       0,      0, false,   0, false, false,  0,       0);
 
+    public static final int NO_SIGNATURE = -1;
+
+    private static final long ERASE_BUDGET_BASE    = 2000;
+    private static final long ERASE_BUDGET_PER_KIB = 40;
+
+    private static final Map<String, Target> byName = new HashMap<String, Target>();
+    private static final Map<Integer, List<Target>> byUsbId = new HashMap<Integer, List<Target>>();
+    private static final Map<Target, Integer> signatures = new HashMap<Target, Integer>();
+
+    static {
+        for (Target target: Target.values()) {
+            byName.put(target.name, target);
+            if (target.deviceType != DeviceType.NULL) {
+                final Integer key = getUsbId(target.vendorId, target.chipId);
+                List<Target> targets = byUsbId.get(key);
+                if (targets == null) {
+                    targets = new ArrayList<Target>();
+                    byUsbId.put(key, targets);
+                }
+                targets.add(target);
+            }
+        }
+
+        // manufacturer, family and product name bytes as read by get
+        setSignature(0x1e9782, at90usb1287, at90usb1286, at90usb1287_4k, at90usb1286_4k);
+        setSignature(0x1e9682, at90usb647, at90usb646);
+        setSignature(0x1e9482, at90usb162);
+        setSignature(0x1e9382, at90usb82);
+        setSignature(0x1e9588, atmega32u6);
+        setSignature(0x1e9587, atmega32u4);
+        setSignature(0x1e958a, atmega32u2);
+        setSignature(0x1e9488, atmega16u4);
+        setSignature(0x1e9489, atmega16u2);
+        setSignature(0x1e9389, atmega8u2);
+    }
+
     private final String name;
     private final DeviceType deviceType;
     private final int chipId;
@@ -169,6 +213,14 @@ public enum Target {
         return this.memorySize;
     }
 
+    /**
+     * Returns how many milliseconds a chip erase may take before the
+     * device is given up, which grows with the size of the flash.
+     */
+    public long getEraseBudget() {
+        return ERASE_BUDGET_BASE + (this.memorySize / 1024) * ERASE_BUDGET_PER_KIB;
+    }
+
     public int getBootloaderSize() {
         return this.bootloaderSize;
     }
@@ -246,13 +298,59 @@ public enum Target {
         return this.getName();
     }
 
+    /**
+     * Returns the signature bytes of this target, or NO_SIGNATURE if they
+     * are not known.
+     */
+    public int getSignature() {
+        final Integer signature = signatures.get(this);
+        return (signature != null) ? signature : NO_SIGNATURE;
+    }
+
+    /**
+     * Tells whether the two targets are programmed the same way, apart from
+     * their names and, optionally, the size of their bootloader.
+     */
+    public boolean isSameLayout(final Target target, final boolean ignoreBootloader) {
+        return (this.deviceType == target.deviceType) &&
+                (this.memorySize == target.memorySize) &&
+                (ignoreBootloader || this.bootloaderSize == target.bootloaderSize) &&
+                (this.bootloaderAtHighMem == target.bootloaderAtHighMem) &&
+                (this.flashPageSize == target.flashPageSize) &&
+                (this.initialAbort == target.initialAbort) &&
+                (this.honorInterfaceClass == target.honorInterfaceClass) &&
+                (this.eepromPageSize == target.eepromPageSize) &&
+                (this.eepromMemorySize == target.eepromMemorySize);
+    }
+
     public static Target getByName(final String name) {
-        for (Target target: Target.values()) {
-            if (target.name.equals(name.trim())) {
-                return target;
-            }
+        final Target target = byName.get(name.trim());
+        if (target == null) {
+            throw new IllegalArgumentException();
+        }
+        return target;
+    }
+
+    /**
+     * Returns the targets whose bootloader enumerates with the given USB
+     * IDs, an empty list if there are none.
+     */
+    public static List<Target> getByUsbId(final int vendorId, final int productId) {
+        final List<Target> targets = byUsbId.get(getUsbId(vendorId, productId));
+        if (targets == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(targets);
+    }
+
+    private static Integer getUsbId(final int vendorId, final int productId) {
+        return ((vendorId & 0xffff) << 16) | (productId & 0xffff);
+    }
+
+    private static void setSignature(final int signature, final Target... targets) {
+        for (Target target: targets) {
+            signatures.put(target, signature);
         }
-        throw new IllegalArgumentException();
     }
 
 }
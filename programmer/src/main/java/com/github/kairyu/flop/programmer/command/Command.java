@@ -24,6 +24,7 @@ package com.github.kairyu.flop.programmer.command;
 public enum Command {
 
     configure(),
+    digest(),
     read(),
     dump(),
     edump("dump-eeprom"),
@@ -34,7 +35,9 @@ public enum Command {
     eflash("flash-eeprom"),
     get(),
     getfuse(),
+    job(),
     launch(),
+    plan(),
     reset(),
     setfuse(),
     setsecure(),
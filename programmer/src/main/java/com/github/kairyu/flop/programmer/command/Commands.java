@@ -22,13 +22,38 @@ import com.github.kairyu.flop.programmer.Error;
 import com.github.kairyu.flop.programmer.Arguments;
 import com.github.kairyu.flop.programmer.atmel.AtmelBuffer;
 import com.github.kairyu.flop.programmer.atmel.AtmelDevice;
+import com.github.kairyu.flop.programmer.atmel.AtmelRange;
+import com.github.kairyu.flop.programmer.atmel.AtmelRangeSet;
+import com.github.kairyu.flop.programmer.atmel.BlockSink;
 import com.github.kairyu.flop.programmer.atmel.BufferIn;
 import com.github.kairyu.flop.programmer.atmel.BufferOut;
-import com.github.kairyu.flop.programmer.atmel.DeviceInfo;
+import com.github.kairyu.flop.programmer.atmel.BufferOverlay;
 import com.github.kairyu.flop.programmer.atmel.DeviceType;
 import com.github.kairyu.flop.programmer.atmel.EraseMode;
+import com.github.kairyu.flop.programmer.atmel.FlashHistory;
+import com.github.kairyu.flop.programmer.atmel.FlashJournal;
+import com.github.kairyu.flop.programmer.atmel.ImageDigest;
+import com.github.kairyu.flop.programmer.atmel.ImageWriter;
 import com.github.kairyu.flop.programmer.atmel.MemoryUnit;
+import com.github.kairyu.flop.programmer.atmel.SimulatedBootloader;
 import com.github.kairyu.flop.programmer.exception.ControllerErrorException;
+import com.github.kairyu.flop.programmer.serial.SerialSource;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Kai Ryu
@@ -38,12 +63,59 @@ public class Commands {
 
     private static final Log log = Log.getLog(Commands.class.getPackage().getName(), 40);
 
+    private static final int SPOT_CHECK_SAMPLES = 3;
+
+    public static final String REPORT_DIGEST_ALGORITHM = "digest_algorithm";
+    public static final String REPORT_IMAGE_DIGEST     = "image_digest";
+    public static final String REPORT_DEVICE_DIGEST    = "device_digest";
+    public static final String REPORT_DIGEST_RANGE     = "digest_range";
+
+    private static class Image {
+        private final BufferOut buffer;
+        private final int invalidAddressCount;
+
+        public Image(final BufferOut buffer, final int invalidAddressCount) {
+            this.buffer = buffer;
+            this.invalidAddressCount = invalidAddressCount;
+        }
+    }
+
+    private static final int MAX_CACHED_IMAGES = 4;
+
+    /*
+     * The images used most recently, so a job that flashes a few images
+     * in turn parses each once, while a long session does not keep every
+     * image it ever saw.
+     */
+    private static final Map<String, Image> images = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Image> eldest) {
+            return this.size() > MAX_CACHED_IMAGES;
+        }
+    };
+    private static final Lock imagesLock = new ReentrantLock();
+
+    /*
+     * Serial sources and flash histories by what they were opened from,
+     * so the jobs of --all draw numbers from one source and update one
+     * history, each of which locks itself.
+     */
+    private static final Map<String, SerialSource> serialSources = new HashMap<String, SerialSource>();
+    private static final Map<String, FlashHistory> histories = new HashMap<String, FlashHistory>();
+    private static final Lock sharedLock = new ReentrantLock();
+
     private static int executeErase(final AtmelDevice device, final Arguments args) {
+        return executeErase(device, args, args.getEraseForce());
+    }
+
+    private static int executeErase(final AtmelDevice device, final Arguments args, final boolean force) {
         final boolean quiet = args.getQuiet();
         final int start = args.getFlashAddressBottom();
         final int end = args.getFlashAddressTop();
 
-        if (!args.getEraseForce()) {
+        if (!force) {
             if (device.checkBlank(start, end, quiet) == 0) {
                 if (!quiet) {
                     System.err.println("Chip already blank, to force erase user --force.");
@@ -70,13 +142,125 @@ public class Commands {
         return 0;
     }
 
-    private static int serializeMemoryImage(final BufferOut bufferOut, final Arguments args) {
-        return 0;
+    private static class SerialPlacement {
+        private final SerialSource source;
+        private final int offset;
+
+        public SerialPlacement(final SerialSource source, final int offset) {
+            this.source = source;
+            this.offset = offset;
+        }
     }
 
+    /*
+     * The source and offset given by --serial, or null if they are
+     * invalid.
+     */
+    private static SerialPlacement getSerialPlacement(final Arguments args) {
+        final String serial = args.getFlashSerial();
+        final int separator = serial.lastIndexOf(':');
+        if (separator <= 0) {
+            System.err.println(String.format("Invalid serial '%s', expected source:offset.", serial));
+            return null;
+        }
+
+        try {
+            return new SerialPlacement(getSerialSource(serial.substring(0, separator), args.getFlashSerialWidth()),
+                    (int)(long)Long.decode(serial.substring(separator + 1)));
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(String.format("Invalid serial '%s': %s", serial, e.getMessage()));
+            return null;
+        }
+    }
+
+    public static SerialSource getSerialSource(final String spec, final int width) {
+        final String key = width + ":" + spec;
+        sharedLock.lock();
+        try {
+            SerialSource source = serialSources.get(key);
+            if (source == null) {
+                source = SerialSource.parse(spec, width);
+                serialSources.put(key, source);
+            }
+            return source;
+        }
+        finally {
+            sharedLock.unlock();
+        }
+    }
+
+    public static FlashHistory getFlashHistory(final String fileName) {
+        final String key = new File(fileName).getAbsolutePath();
+        sharedLock.lock();
+        try {
+            FlashHistory history = histories.get(key);
+            if (history == null) {
+                history = new FlashHistory(fileName);
+                histories.put(key, history);
+            }
+            return history;
+        }
+        finally {
+            sharedLock.unlock();
+        }
+    }
+
+    /**
+     * Opens the serial source and flash history a command uses before any
+     * job of --all runs, so they are shared and an invalid --serial is
+     * reported once.
+     */
+    public static int openShared(final Arguments args) {
+        if (args.getCommand() != Command.flash) {
+            return Error.SUCCESS;
+        }
+        if (args.getFlashSerial() != null && getSerialPlacement(args) == null) {
+            return Error.ARGUMENT_ERROR;
+        }
+        if (args.getFlashSkipIdentical()) {
+            getFlashHistory(args.getFlashHistoryFileName());
+        }
+        return Error.SUCCESS;
+    }
+
+    /*
+     * The template with a serial number, in hex digits, placed in it, the
+     * template itself if no serial number is placed, or null if the
+     * number does not fit.
+     */
+    private static BufferOut serializeMemoryImage(final BufferOut template, final SerialPlacement placement,
+            final String serialNumber) {
+        if (placement == null) {
+            return template;
+        }
+        try {
+            return serializeMemoryImage(template, SerialSource.parseHex(serialNumber), placement.offset);
+        }
+        catch (NumberFormatException e) {
+            log.debug("Invalid serial number '%s'.", serialNumber);
+            return null;
+        }
+    }
+
+    public static BufferOut serializeMemoryImage(final BufferOut template, final byte[] serial, final int offset) {
+        BufferOverlay overlay = new BufferOverlay(template);
+        if (overlay.patch(offset, serial) != 0) {
+            System.err.println(String.format("Serial number at 0x%X is outside target memory.", offset));
+            return null;
+        }
+        log.debug("Serial number of %d bytes placed at 0x%X.", serial.length, offset);
+
+        return overlay;
+    }
+
+    /*
+     * A digest, if given, is fed the blocks as they are read back, so the
+     * hash of the device costs no extra read.
+     */
     private static int executeValidate(final AtmelDevice device, final BufferOut bufferOut,
-            final MemoryUnit memorySegment, final boolean quiet) {
-        BufferIn bufferIn = new BufferIn();
+            final MemoryUnit memorySegment, final boolean quiet, final BlockSink digest) {
+        final BufferIn bufferIn = new BufferIn();
         if (bufferIn.init(bufferOut) != 0) {
             log.debug("ERROR initializing a buffer.");
         }
@@ -84,7 +268,15 @@ public class Commands {
 
         int retval = Error.UNSPECIFIED_ERROR;
         try {
-            int result = device.readFlash(bufferIn, memorySegment, quiet);
+            int result = (digest == null) ? device.readFlash(bufferIn, memorySegment, quiet) :
+                    device.readFlash(bufferIn.getDataRange(), bufferIn.getTransferSize(), memorySegment, quiet,
+                            new BlockSink() {
+                                @Override
+                                public int putBlock(final AtmelRange range, final ByteBuffer block) {
+                                    bufferIn.putBlock(range.getStart(), block.duplicate());
+                                    return digest.putBlock(range, block);
+                                }
+                            });
             if (result != 0) {
                 log.debug("ERROR: could not read memory, err %d.", result);
                 retval = Error.FLASH_READ_ERROR;
@@ -113,6 +305,51 @@ public class Commands {
         return retval;
     }
 
+    /*
+     * Images already parsed in this session, e.g. by an earlier step of a
+     * job, are not parsed again. The parsed buffer is kept as it is and
+     * every caller gets an overlay of it in image[0], so its data is
+     * shared rather than copied and what the caller changes stays its own.
+     */
+    private static int readImage(final BufferOut bufferOut, final String fileName, final boolean quiet,
+            final BufferOut[] image) {
+        image[0] = bufferOut;
+        if (fileName == null || fileName.equals("-")) {
+            return bufferOut.readHexFile(fileName, quiet);
+        }
+
+        final File file = new File(fileName);
+        final String key = String.format("%s:%d:%d:%d:%d:%d", file.getAbsolutePath(), file.length(),
+                file.lastModified(), bufferOut.getTotalSize(), bufferOut.getPageSize(),
+                bufferOut.getOffsetValidRange().getStart());
+        Image cached;
+        imagesLock.lock();
+        try {
+            cached = images.get(key);
+        }
+        finally {
+            imagesLock.unlock();
+        }
+        if (cached != null) {
+            log.debug("Reusing the image parsed from %s.", fileName);
+            image[0] = new BufferOverlay(cached.buffer);
+            return cached.invalidAddressCount;
+        }
+
+        int result = bufferOut.readHexFile(fileName, quiet);
+        if (result >= 0) {
+            imagesLock.lock();
+            try {
+                images.put(key, new Image(bufferOut, result));
+            }
+            finally {
+                imagesLock.unlock();
+            }
+            image[0] = new BufferOverlay(bufferOut);
+        }
+        return result;
+    }
+
     private static void printFlashUsage(final AtmelBuffer buffer) {
         System.err.println(String.format("0x%X bytes written into 0x%X bytes memory (%.02f%%).",
                 buffer.getDataLength(), buffer.getValidLength(), buffer.getUsage() * 100.0));
@@ -160,7 +397,14 @@ public class Commands {
         }
 
         final boolean quiet = args.getQuiet();
-        int result = bufferOut.readHexFile(args.getFlashFileName(), quiet);
+        final BufferOut[] parsed = new BufferOut[1];
+        int result = readImage(bufferOut, args.getFlashFileName(), quiet, parsed);
+        bufferOut = parsed[0];
+        if (bufferOut.setTransferSize(args.getFlashTransferSize()) != 0) {
+            System.err.println(String.format("Transfer size must be between 1 and %d bytes.",
+                    BufferOut.MAX_TRANSFER_SIZE));
+            return Error.ARGUMENT_ERROR;
+        }
         if (result < 0) {
             log.debug("Something went wrong with creating the memory image.");
             return Error.BUFFER_INIT_ERROR;
@@ -177,21 +421,21 @@ public class Commands {
             }
         }
 
-        // TODO: implement serialize_memory_image
-
         if (memoryType == MemoryUnit.flash) {
             bufferOut.getValidRange().set(args.getFlashAddressBottom(), args.getFlashAddressTop());
 
             final boolean suppressBootloader = args.getFlashSuppressBootloaderMem();
-            for (int i = args.getBootloaderBottom(); i <= args.getBootloaderTop(); i++) {
-                if (bufferOut.isDataValid(i)) {
-                    if (suppressBootloader) {
-                        bufferOut.setDataInvalid(i);
-                    } else {
-                        System.err.println("Bootloader and code overlap.");
-                        System.err.println("Use --suppress-bootloader-mem to ignore");
-                        return Error.BUFFER_INIT_ERROR;
+            final AtmelRangeSet overlap = bufferOut.getDataRanges()
+                    .intersect(new AtmelRange(args.getBootloaderBottom(), args.getBootloaderTop()));
+            if (!overlap.isEmpty()) {
+                if (suppressBootloader) {
+                    for (AtmelRange range: overlap) {
+                        bufferOut.setDataInvalid(range);
                     }
+                } else {
+                    System.err.println("Bootloader and code overlap.");
+                    System.err.println("Use --suppress-bootloader-mem to ignore");
+                    return Error.BUFFER_INIT_ERROR;
                 }
             }
         }
@@ -216,14 +460,147 @@ public class Commands {
             // TODO: implement checking data overlap with bootloader
         }
 
+        SerialPlacement placement = null;
+        if (args.getFlashSerial() != null) {
+            placement = getSerialPlacement(args);
+            if (placement == null || bufferOut.prepareBuffer() != 0) {
+                return Error.BUFFER_INIT_ERROR;
+            }
+        }
+
+        // ---------- SKIP IF ALREADY PROGRAMMED ----------
+        // history and journal are keyed on the image before a serial number
+        // is placed in it, the number used is recorded beside the key
+        final String serial = device.getSerialNumber();
+        FlashHistory history = null;
+        String imageHash = null;
+        if (args.getFlashSkipIdentical()) {
+            if (serial == null) {
+                log.debug("Device has no serial number, can't look up flash history.");
+            }
+            else {
+                history = getFlashHistory(args.getFlashHistoryFileName());
+                history.load();
+                imageHash = bufferOut.getImageHash();
+                if (history.matches(serial, memoryType, args.getTarget(), imageHash)) {
+                    final BufferOut image = serializeMemoryImage(bufferOut, placement,
+                            history.getSerialNumber(serial, memoryType));
+                    if (image != null && device.spotCheck(image, memoryType, SPOT_CHECK_SAMPLES) == 0) {
+                        if (!quiet) {
+                            System.err.println(String.format("Device %s already holds this image, skipping.", serial));
+                        }
+                        return Error.SUCCESS;
+                    }
+                    log.debug("Spot check of device %s failed, programming.", serial);
+                }
+                history.forget(serial, memoryType);
+            }
+        }
+
         // ---------- WRITE PROGRAM DATA ----------
+        FlashJournal journal = null;
+        if (args.getFlashResume() && memoryType != MemoryUnit.user) {
+            if (serial == null) {
+                log.debug("Device has no serial number, can't keep a flash journal.");
+            }
+            else {
+                journal = new FlashJournal(args.getFlashJournalDirectory(), serial, memoryType,
+                        (imageHash != null) ? imageHash : bufferOut.getImageHash());
+                journal.load();
+            }
+        }
+
+        // ---------- SERIALIZE MEMORY IMAGE ----------
+        SerialSource.Serial reserved = null;
+        String serialNumber = null;
+        if (placement != null) {
+            if (journal != null && journal.hasCommittedBlock()) {
+                // part of the board already holds the number it was started with
+                serialNumber = journal.getSerialNumber();
+            }
+            if (serialNumber == null) {
+                reserved = placement.source.reserve();
+                if (reserved == null) {
+                    System.err.println("No serial number available.");
+                    return Error.BUFFER_INIT_ERROR;
+                }
+                serialNumber = SerialSource.toHex(reserved.getBytes());
+            }
+            if (journal != null) {
+                journal.setSerialNumber(serialNumber);
+            }
+            bufferOut = serializeMemoryImage(bufferOut, placement, serialNumber);
+            if (bufferOut == null) {
+                if (reserved != null) {
+                    placement.source.release(reserved);
+                }
+                return Error.BUFFER_INIT_ERROR;
+            }
+        }
+
+        final ImageDigest.Algorithm algorithm = args.getDigestAlgorithm();
+        ImageDigest digest = null;
+        if (algorithm != null) {
+            try {
+                digest = new ImageDigest(algorithm, bufferOut.getDataRange());
+            }
+            catch (NoSuchAlgorithmException e) {
+                System.err.println(String.format("%s is not available.", algorithm));
+                return Error.UNSPECIFIED_ERROR;
+            }
+        }
+
+        result = writeImage(device, args, bufferOut, memoryType, journal, digest);
+        if (reserved != null) {
+            // a number is consumed once a board holds it, which a board
+            // left with journaled blocks does until it is resumed
+            if (result == Error.SUCCESS || (journal != null && journal.hasCommittedBlock())) {
+                placement.source.commit(reserved);
+            }
+            else {
+                placement.source.release(reserved);
+            }
+        }
+        if (result != Error.SUCCESS) {
+            return result;
+        }
+
+        // ---------- HASH PROGRAMMED MEMORY ----------
+        if (digest != null) {
+            if (!digest.isComplete()) {
+                // not validated, or the image reaches outside the validated range
+                result = device.readFlash(digest.getRange(), bufferOut.getTransferSize(), memoryType, true, digest);
+                if (result != 0) {
+                    log.debug("ERROR: could not read memory, err %d.", result);
+                    return Error.FLASH_READ_ERROR;
+                }
+            }
+            recordDigest(device, algorithm, digest.getRange(), bufferOut.getImageDigest(algorithm),
+                    digest.getValue());
+        }
+
+        // an image that was not read back is not known to be on the device
+        if (history != null && !args.getFlashSuppressValidation()) {
+            history.record(serial, memoryType, args.getTarget(), imageHash, serialNumber);
+        }
+
+        return Error.SUCCESS;
+    }
+
+    /*
+     * Writes the image and reads it back, feeding the digest if given.
+     */
+    private static int writeImage(final AtmelDevice device, final Arguments args, final BufferOut bufferOut,
+            final MemoryUnit memoryType, final FlashJournal journal, final ImageDigest digest) {
+        final boolean quiet = args.getQuiet();
+        int result;
         if (memoryType == MemoryUnit.user) {
             result = device.user(bufferOut);
         }
         else {
             result = device.flash(bufferOut,
                     (memoryType == MemoryUnit.eeprom),
-                    args.getFlashForce(), quiet);
+                    args.getFlashForce(), quiet, journal);
         }
         if (result != 0) {
             log.debug("Error writing %s data. (err %d)", "memory", result);
@@ -232,9 +609,13 @@ public class Commands {
 
         // ---------- VALIDATE PROGRAM ----------
         if (!args.getFlashSuppressValidation()) {
-            result = executeValidate(device, bufferOut, memoryType, quiet);
+            result = executeValidate(device, bufferOut, memoryType, quiet, digest);
             if (result != 0) {
                 System.err.println("Memory did not validate. Did you erase?");
+                if (journal != null) {
+                    // the journaled blocks can't be trusted any more
+                    journal.clear();
+                }
                 return result;
             }
             else {
@@ -249,30 +630,209 @@ public class Commands {
             }
         }
 
+        if (journal != null) {
+            journal.clear();
+        }
+
         return Error.SUCCESS;
     }
 
-    private static int executeGet(final AtmelDevice device, final Arguments args) {
-        DeviceType type = device.getType();
-        DeviceInfo info = new DeviceInfo(type);
+    /*
+     * Blocks go from the device to the output as they are read, so only
+     * one block and the output buffer are held whatever the memory size.
+     * A file is written under a temporary name and only renamed into place
+     * once the whole read succeeded, so a failed read leaves no partial dump.
+     */
+    private static int executeRead(final AtmelDevice device, final Arguments args) {
+        MemoryUnit memoryType = args.getReadSegment();
+        final AtmelRange range = getReadRange(device, args, memoryType);
+        if (range == null) {
+            return Error.ARGUMENT_ERROR;
+        }
+        final int offset = (memoryType == MemoryUnit.user) ? AtmelDevice.USER_PAGE_OFFSET : 0;
 
-        device.checkSecurity();
+        final String fileName = args.getReadFileName();
+        final boolean toFile = fileName != null && !fileName.equals("-");
+        final File temp = toFile ? new File(fileName + ".tmp") : null;
+        FileChannel channel;
+        try {
+            channel = toFile ?
+                    new FileOutputStream(temp).getChannel() :
+                    new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return Error.ARGUMENT_ERROR;
+        }
 
-        int status = device.readConfig(info);
+        final ImageWriter writer = args.getReadBin() ? ImageWriter.binary(channel) :
+                ImageWriter.hex(channel, offset, !args.getReadForce());
+        int result = device.readFlash(range, AtmelBuffer.MAX_TRANSFER_SIZE, memoryType, args.getQuiet(), writer);
+        int retval = Error.SUCCESS;
+        try {
+            writer.finish();
+        }
+        catch (IOException e) {
+            System.err.println(String.format("Error writing %s: %s", toFile ? fileName : "output",
+                    e.getMessage()));
+            retval = Error.UNSPECIFIED_ERROR;
+        }
+        finally {
+            if (toFile) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    log.debug("Error closing %s: %s", temp, e.getMessage());
+                    retval = Error.UNSPECIFIED_ERROR;
+                }
+            }
+        }
 
-        if (status != 0) {
-            log.debug("Error reading %s config information.", args.getDeviceTypeName());
-            System.err.println(String.format("Error reading %s config information.", args.getDeviceTypeName()));
-            device.securityMessage();
-            return status;
+        if (retval == Error.SUCCESS && result != 0) {
+            log.debug("ERROR: could not read memory, err %d.", result);
+            retval = Error.FLASH_READ_ERROR;
+        }
+
+        if (toFile) {
+            try {
+                if (retval == Error.SUCCESS) {
+                    Files.move(temp.toPath(), new File(fileName).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                else {
+                    Files.deleteIfExists(temp.toPath());
+                }
+            }
+            catch (IOException e) {
+                System.err.println(String.format("Error writing %s: %s", fileName, e.getMessage()));
+                retval = Error.UNSPECIFIED_ERROR;
+            }
+        }
+
+        return retval;
+    }
+
+    /*
+     * The readable part of a memory segment, or null if the device has
+     * none.
+     */
+    private static AtmelRange getReadRange(final AtmelDevice device, final Arguments args,
+            final MemoryUnit memoryType) {
+        switch (memoryType) {
+            case flash:
+                return new AtmelRange(args.getFlashAddressBottom(), args.getFlashAddressTop());
+            case eeprom:
+                if (args.getEepromMemorySize() == 0) {
+                    System.err.println("This device has no eeprom.");
+                    return null;
+                }
+                return new AtmelRange(0, args.getEepromMemorySize() - 1);
+            case user:
+                if (!device.getType().isType(DeviceType.ADC_AVR32)) {
+                    System.err.println("Dump User only implemented for ADC_AVR32 devices.");
+                    return null;
+                }
+                return new AtmelRange(0, args.getFlashPageSize() - 1);
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * The device is hashed as it is read. With an image, only the region
+     * the image covers is hashed, unless --full is given, and the hash of
+     * the image over the same region is reported next to it.
+     */
+    private static int executeDigest(final AtmelDevice device, final Arguments args) {
+        MemoryUnit memoryType = args.getReadSegment();
+        AtmelRange range = getReadRange(device, args, memoryType);
+        if (range == null) {
+            return Error.ARGUMENT_ERROR;
         }
+        final ImageDigest.Algorithm algorithm = args.getDigestAlgorithm();
+        final boolean quiet = args.getQuiet();
+
+        String imageDigest = null;
+        final String fileName = args.getDigestFileName();
+        if (fileName != null) {
+            BufferOut bufferOut = new BufferOut();
+            if (bufferOut.init(range.getEnd() + 1,
+                    (memoryType == MemoryUnit.eeprom) ? args.getEepromPageSize() : args.getFlashPageSize(),
+                    (memoryType == MemoryUnit.user) ? AtmelDevice.USER_PAGE_OFFSET : 0) != 0) {
+                log.debug("ERROR initializing a buffer.");
+                return Error.BUFFER_INIT_ERROR;
+            }
+            final BufferOut[] parsed = new BufferOut[1];
+            final int result = readImage(bufferOut, fileName, quiet, parsed);
+            bufferOut = parsed[0];
+            if (result < 0) {
+                log.debug("Something went wrong with creating the memory image.");
+                return Error.BUFFER_INIT_ERROR;
+            }
+            if (!bufferOut.hasData()) {
+                System.err.println("ERROR: No data in the image.");
+                return Error.BUFFER_INIT_ERROR;
+            }
+            if (!args.getDigestFull()) {
+                range = new AtmelRange(bufferOut.getDataRange());
+            }
+            imageDigest = bufferOut.getImageDigest(algorithm, range);
+        }
+
+        ImageDigest digest;
+        try {
+            digest = new ImageDigest(algorithm, range);
+        }
+        catch (NoSuchAlgorithmException e) {
+            System.err.println(String.format("%s is not available.", algorithm));
+            return Error.UNSPECIFIED_ERROR;
+        }
+
+        int result = device.readFlash(range, AtmelBuffer.MAX_TRANSFER_SIZE, memoryType, quiet, digest);
+        if (result != 0) {
+            log.debug("ERROR: could not read memory, err %d.", result);
+            return Error.FLASH_READ_ERROR;
+        }
+
+        // the digest alone goes to stdout, so it compares with that of a dump
+        final String deviceDigest = digest.getValue();
+        if (!quiet) {
+            System.err.println(String.format("%s of %s:", algorithm, range));
+        }
+        System.out.println(deviceDigest);
+        recordDigest(device, algorithm, range, imageDigest, deviceDigest);
+
+        if (imageDigest != null && !imageDigest.equals(deviceDigest)) {
+            System.err.println(String.format("Device memory %s does not match the image.", range));
+            return Error.VALIDATION_ERROR_IN_REGION;
+        }
+
+        return Error.SUCCESS;
+    }
+
+    private static void recordDigest(final AtmelDevice device, final ImageDigest.Algorithm algorithm,
+            final AtmelRange range, final String imageDigest, final String deviceDigest) {
+        device.getMetrics().setAttribute(REPORT_DIGEST_ALGORITHM, algorithm.getName());
+        device.getMetrics().setAttribute(REPORT_DIGEST_RANGE, range.toString("0x%X").replace(" to ", "-"));
+        device.getMetrics().setAttribute(REPORT_IMAGE_DIGEST, imageDigest);
+        device.getMetrics().setAttribute(REPORT_DEVICE_DIGEST, deviceDigest);
+    }
+
+    private static int executeGet(final AtmelDevice device, final Arguments args) {
+        device.checkSecurity();
 
         Get get = args.getGetName();
         String message = get.getDescription();
         short value = 0;
 
         try {
-            value = info.getInfo(get);
+            device.getDeviceInfo().checkInfo(get);
+            if (get.getCommand(device.getType()) == null) {
+                System.err.println("The requested device info is unavailable.");
+                return -2;
+            }
+            value = device.readInfo(get);
         }
         catch (ControllerErrorException e) {
             log.debug(e.getMessage());
@@ -281,8 +841,10 @@ public class Commands {
         }
 
         if (value < 0) {
-            System.err.println("The requested device info is unavailable.");
-            return -2;
+            log.debug("Error reading %s config information.", args.getDeviceTypeName());
+            System.err.println(String.format("Error reading %s config information.", args.getDeviceTypeName()));
+            device.securityMessage();
+            return value;
         }
 
         boolean quiet = args.getQuiet();
@@ -301,8 +863,59 @@ public class Commands {
         }
     }
 
+    /*
+     * Runs erase and flash against a simulated bootloader, which answers
+     * the same requests a blank device would.
+     */
+    private static int executePlan(final AtmelDevice device, final Arguments args) {
+        SimulatedBootloader bootloader = new SimulatedBootloader(device.getType(), args.getPlanLatencyModel());
+        device.setTransport(bootloader);
+
+        int result = device.initTransport(false);
+        if (result == 0 && args.getPlanErase()) {
+            result = executeErase(device, args, true);
+        }
+        if (result == 0) {
+            result = executeFlash(device, args);
+        }
+
+        if (!args.getQuiet()) {
+            bootloader.printOperations(System.out);
+        }
+        bootloader.printSummary(System.out);
+
+        return result;
+    }
+
+    /*
+     * Runs the steps of a job one after another against the device that is
+     * already open, stopping at the first step that fails.
+     */
+    private static int executeJob(final AtmelDevice device, final Arguments args) {
+        Job job = new Job(args.getJobFileName());
+        if (job.load(args) != 0) {
+            return Error.ARGUMENT_ERROR;
+        }
+
+        final List<Arguments> steps = job.getSteps();
+        for (int i = 0; i < steps.size(); i++) {
+            final Arguments step = steps.get(i);
+            if (!args.getQuiet()) {
+                System.err.println(String.format("Step %d/%d: %s", i + 1, steps.size(), job.getLine(i)));
+            }
+            int result = executeCommand(device, step);
+            if (result != 0) {
+                System.err.println(String.format("Step %d (%s) failed: err %d.", i + 1, step.getCommandName(), result));
+                return result;
+            }
+        }
+
+        return Error.SUCCESS;
+    }
+
     public static int executeCommand(final AtmelDevice device, final Arguments args) {
         device.setType(args.getDeviceType());
+        device.setEraseBudget(args.getTarget().getEraseBudget());
         switch (args.getCommand()) {
             case erase:
                 return executeErase(device, args);
@@ -316,11 +929,18 @@ public class Commands {
                 return executeLaunch(device, args);
             case get:
                 return executeGet(device, args);
+            case plan:
+                return executePlan(device, args);
+            case job:
+                return executeJob(device, args);
+            case read:
+            case dump:
+            case edump:
+            case udump:
+                return executeRead(device, args);
+            case digest:
+                return executeDigest(device, args);
             //case getfuse:
-            //case dump:
-            //case edump:
-            //case udump:
-            //case read:
             //case configure:
             //case setfuse:
             //case setsecure:
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.command;
+
+import com.github.kairyu.flop.programmer.Error;
+import com.github.kairyu.flop.programmer.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one job per device, each on a thread of its own, and joins them as
+ * a unit: a job still running when the scope gives up on it, because the
+ * deadline passed or another job failed, is cancelled, and no job outlives
+ * the scope.
+ *
+ * Jobs spend most of their time waiting, on erase polls, re-enumeration
+ * or a shared link, so they run on virtual threads. The waits of the
+ * device API use locks and sleeps rather than monitors so they do not pin
+ * a carrier; a transfer itself is a native call and holds one while it
+ * lasts.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class DeviceScope implements AutoCloseable {
+
+    private static final Log log = Log.getLog(DeviceScope.class.getPackage().getName(), 40);
+
+    private static final long CLOSE_REPORT_SECONDS = 5;
+
+    private final ExecutorService executor;
+    private final CompletionService<Integer> completion;
+    private final List<Future<Integer>> jobs = new ArrayList<Future<Integer>>();
+    private final boolean failFast;
+    private int joined = 0;
+
+    /**
+     * @param failFast cancel the other jobs as soon as one fails
+     */
+    public DeviceScope(final String name, final boolean failFast) {
+        this.executor = newPerTaskExecutor(name);
+        this.completion = new ExecutorCompletionService<Integer>(this.executor);
+        this.failFast = failFast;
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread for every task.
+     */
+    public static ExecutorService newPerTaskExecutor(final String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+
+    /**
+     * Starts a job, whose result is an error code as returned by the
+     * commands.
+     */
+    public Future<Integer> fork(final Callable<Integer> job) {
+        Future<Integer> future = this.completion.submit(job);
+        this.jobs.add(future);
+        return future;
+    }
+
+    /**
+     * Waits for the jobs forked so far, cancelling those still running
+     * once the timeout expires.
+     *
+     * @param timeout how long to wait, 0 to wait as long as it takes
+     * @return the first error of a job, {@link Error#CANCELLED_ERROR} if
+     *         the timeout expired, 0 if all succeeded
+     */
+    public int join(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int retval = Error.SUCCESS;
+        while (this.joined < this.jobs.size()) {
+            Future<Integer> done;
+            if (timeout > 0) {
+                done = this.completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    log.debug("Deadline passed with %d jobs running.", this.jobs.size() - this.joined);
+                    this.cancel();
+                    return (retval == Error.SUCCESS) ? Error.CANCELLED_ERROR : retval;
+                }
+            }
+            else {
+                done = this.completion.take();
+            }
+            this.joined++;
+
+            final int result = getResult(done);
+            if (result != Error.SUCCESS && retval == Error.SUCCESS) {
+                retval = result;
+                if (this.failFast) {
+                    this.cancel();
+                    return retval;
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the result of a job that is done, or
+     * {@link Error#CANCELLED_ERROR} if it was cancelled.
+     */
+    public static int getResult(final Future<Integer> job) {
+        if (!job.isDone()) {
+            return Error.CANCELLED_ERROR;
+        }
+        try {
+            return job.get();
+        }
+        catch (CancellationException e) {
+            return Error.CANCELLED_ERROR;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Error.CANCELLED_ERROR;
+        }
+        catch (ExecutionException e) {
+            log.debug("Job failed: %s", e.getCause());
+            return Error.UNSPECIFIED_ERROR;
+        }
+    }
+
+    /**
+     * Interrupts the jobs that are still running.
+     */
+    public void cancel() {
+        for (Future<Integer> job: this.jobs) {
+            job.cancel(true);
+        }
+    }
+
+    /**
+     * Cancels what is left and waits for the jobs to finish, so they have
+     * released their devices and written their history, journal and
+     * report before the scope is gone. A job stuck in a transfer returns
+     * once the transfer times out.
+     */
+    @Override
+    public void close() {
+        this.cancel();
+        this.executor.shutdown();
+        try {
+            while (!this.executor.awaitTermination(CLOSE_REPORT_SECONDS, TimeUnit.SECONDS)) {
+                log.debug("Waiting for jobs still running after cancel.");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
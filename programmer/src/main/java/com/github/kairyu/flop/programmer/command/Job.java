@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.command;
+
+import com.github.kairyu.flop.programmer.Arguments;
+import com.github.kairyu.flop.programmer.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of commands run one after another in a single device session.
+ *
+ * Each line of a job file holds one command with its options, written as
+ * they follow the target on the command line, e.g.
+ *
+ * <pre>
+ * # production sequence
+ * erase --force
+ * flash firmware.hex
+ * flash --eeprom --force settings.hex
+ * launch
+ * </pre>
+ *
+ * Blank lines and lines starting with '#' are ignored, and arguments
+ * containing spaces can be quoted.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class Job {
+
+    private static final Log log = Log.getLog(Job.class.getPackage().getName(), 40);
+
+    private final String fileName;
+    private final List<String> lines = new ArrayList<String>();
+    private final List<Arguments> steps = new ArrayList<Arguments>();
+
+    public Job(final String fileName) {
+        this.fileName = fileName;
+    }
+
+    public List<Arguments> getSteps() {
+        return this.steps;
+    }
+
+    public String getLine(final int step) {
+        return this.lines.get(step);
+    }
+
+    /**
+     * Parses every step up front, so a mistake in the file is reported
+     * before anything is done to the device.
+     */
+    public int load(final Arguments job) {
+        log.trace("job_load( %s )", this.fileName);
+
+        this.lines.clear();
+        this.steps.clear();
+
+        List<String> content;
+        try {
+            content = Files.readAllLines(Paths.get(this.fileName), StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            System.err.println(String.format("Error opening %s", this.fileName));
+            return -1;
+        }
+
+        for (int i = 0; i < content.size(); i++) {
+            final String line = content.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            List<String> args = new ArrayList<String>();
+            args.add("--debug");
+            args.add(Integer.toString(job.getDebug()));
+            if (job.getQuiet()) {
+                args.add("--quiet");
+            }
+            args.add(job.getTargetName());
+            if (split(line, args) != 0) {
+                System.err.println(String.format("%s:%d: unterminated quote", this.fileName, i + 1));
+                return -2;
+            }
+
+            Arguments step = new Arguments();
+            if (step.parseArguments(args.toArray(new String[args.size()])) != 0) {
+                System.err.println(String.format("%s:%d: invalid step '%s'", this.fileName, i + 1, line));
+                return -3;
+            }
+            if (step.getCommand() == Command.job || step.getCommand() == Command.plan) {
+                System.err.println(String.format("%s:%d: %s can't be a step of a job",
+                        this.fileName, i + 1, step.getCommandName()));
+                return -3;
+            }
+
+            this.lines.add(line);
+            this.steps.add(step);
+        }
+
+        if (this.steps.isEmpty()) {
+            System.err.println(String.format("%s has no steps", this.fileName));
+            return -4;
+        }
+
+        log.debug("Loaded %d steps from %s.", this.steps.size(), this.fileName);
+        return 0;
+    }
+
+    private static int split(final String line, final List<String> args) {
+        StringBuilder arg = null;
+        boolean quoted = false;
+        for (char c: line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+            }
+            else if (Character.isWhitespace(c) && !quoted) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            }
+            else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                arg.append(c);
+            }
+        }
+        if (quoted) {
+            return -1;
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return 0;
+    }
+}
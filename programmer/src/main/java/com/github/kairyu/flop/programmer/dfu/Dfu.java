@@ -21,6 +21,8 @@ import com.github.kairyu.flop.programmer.Log;
 import com.github.kairyu.flop.programmer.exception.DfuException;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.usb4java.DeviceHandle;
 import org.usb4java.Interface;
@@ -29,7 +31,6 @@ import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 import org.usb4java.Context;
 import org.usb4java.Device;
-import org.usb4java.DeviceList;
 import org.usb4java.DeviceDescriptor;
 import org.usb4java.ConfigDescriptor;
 
@@ -49,10 +50,28 @@ public abstract class Dfu {
     private static final byte USB_CLASS_APP_SPECIFIC = (byte)0xfe;
     private static final byte DFU_SUBCLASS           = (byte)0x01;
 
-    private static final long DFU_TIMEOUT = 20000;
+    /*
+     * Requests without data are answered at once, a block of data may
+     * have to wait for a page to be written.
+     */
+    public static final long DFU_STATUS_TIMEOUT = 1000;
+    public static final long DFU_DATA_TIMEOUT   = 5000;
+    public static final long DFU_INIT_BUDGET    = 5000;
+    /*
+     * The longest a transfer is stretched to, so that a device still
+     * holding a request is asked again rather than waited for all along.
+     */
+    public static final long DFU_STRETCH_LIMIT  = 2000;
     protected static final int DFU_DETACH_TIMEOUT = 1000;
 
+    public static final int ANY_PRODUCT = -1;
+
+    private static final long DFU_REENUMERATE_DELAY = 500;
+
     private Context context = new Context();
+    private boolean sharedContext = false;
+    private UsbSnapshot snapshot = null;
+    private boolean sharedSnapshot = false;
 
     public int init() throws LibUsbException {
         int result = LibUsb.init(context);
@@ -62,8 +81,78 @@ public abstract class Dfu {
         return result;
     }
 
+    /**
+     * Uses a libusb context the caller initialized and will exit itself,
+     * so that many devices pay for initializing libusb once.
+     */
+    public int init(final Context context) {
+        this.context = context;
+        this.sharedContext = true;
+        return LibUsb.SUCCESS;
+    }
+
+    /**
+     * Also looks for devices in a snapshot of that context the caller took
+     * and will free itself, until it no longer finds the device.
+     */
+    public int init(final Context context, final UsbSnapshot snapshot) {
+        this.init(context);
+        this.snapshot = snapshot;
+        this.sharedSnapshot = true;
+        return LibUsb.SUCCESS;
+    }
+
     public void uninit() {
-        LibUsb.exit(this.context);
+        this.freeSnapshot();
+        if (!this.sharedContext) {
+            LibUsb.exit(this.context);
+        }
+    }
+
+    /**
+     * Returns the devices found by the last lookup, or null before the first.
+     */
+    public UsbSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    private void freeSnapshot() {
+        if (this.snapshot != null) {
+            if (!this.sharedSnapshot) {
+                this.snapshot.free();
+            }
+            this.snapshot = null;
+        }
+        this.sharedSnapshot = false;
+    }
+
+    /**
+     * Takes a new snapshot and returns the port paths of the devices
+     * initDevice would consider, without opening any of them.
+     */
+    public List<String> findDevices(final int vendor, final int product) throws LibUsbException {
+        log.trace("dfu_find_devices( %d, %d )", vendor, product);
+
+        this.freeSnapshot();
+        this.snapshot = UsbSnapshot.take(this.context);
+
+        final List<String> paths = new ArrayList<String>();
+        for (UsbSnapshot.Entry entry: this.snapshot.getEntries()) {
+            final DeviceDescriptor descriptor;
+            try {
+                descriptor = entry.getDescriptor();
+            }
+            catch (LibUsbException e) {
+                log.debug("skipping %s: %s", entry.getPortPath(), e.getMessage());
+                continue;
+            }
+            if ((product == ANY_PRODUCT) ?
+                    this.isSupported(descriptor.idVendor() & 0xffff, descriptor.idProduct() & 0xffff) :
+                    (vendor == descriptor.idVendor()) && (product == descriptor.idProduct())) {
+                paths.add(entry.getPortPath());
+            }
+        }
+        return paths;
     }
 
     public void setDebug(final int level) {
@@ -78,102 +167,177 @@ public abstract class Dfu {
             final boolean honorInterfaceClass,
             final boolean initialAbort,
             DeviceHandle handle,
-            byte[] iface)
+            byte[] iface,
+            String[] serial)
+            throws LibUsbException, DfuException {
+        return initDevice(vendor, product, busNumber, deviceAddress, null,
+                honorInterfaceClass, initialAbort, handle, iface, serial, null);
+    }
+
+    /**
+     * Opens the first matching device and puts it in dfuIDLE.
+     *
+     * Devices are looked up in the snapshot of the previous call, which is
+     * only taken again when it no longer finds the device. A device that
+     * had to be reset re-enumerates with a new address, so it is looked
+     * for again at the port path it was found at.
+     *
+     * @param portPath physical location as in {@link UsbSnapshot.Entry#getPortPath}, or null for any
+     * @param port     receives the port path of the opened device, may be null
+     */
+    public Device initDevice(
+            final int vendor,
+            final int product,
+            final int busNumber,
+            final int deviceAddress,
+            final String portPath,
+            final boolean honorInterfaceClass,
+            final boolean initialAbort,
+            DeviceHandle handle,
+            byte[] iface,
+            String[] serial,
+            String[] port)
             throws LibUsbException, DfuException {
-        log.trace("dfu_init_device( %d, %d, %s, %b, %b )", vendor, product, handle.hashCode(),
+        log.trace("dfu_init_device( %d, %d, %s, %s, %b, %b )", vendor, product, portPath, handle.hashCode(),
                 honorInterfaceClass, initialAbort);
         log.debug("dfu_init_device( 0x%08x, 0x%08x )", vendor, product);
 
         int retries = 4;
+        int bus = busNumber;
+        int address = deviceAddress;
+        String path = portPath;
+        boolean refresh = false;
 
         while (retries > 0) {
-            DeviceList list = new DeviceList();
-            int result = LibUsb.getDeviceList(this.context, list);
-            if (result < 0) {
-                throw new LibUsbException("Unable to get device list", result);
+            if (this.isExpired()) {
+                log.debug("init budget spent, %d retries left", retries);
+                break;
             }
-
-            try {
-                int i = 0;
-                for (Device device: list) {
-                    i++;
-                    DeviceDescriptor descriptor = new DeviceDescriptor();
-                    result = LibUsb.getDeviceDescriptor(device, descriptor);
-                    if (result < 0) {
-                        log.debug("failed in LibUsb.getDeviceDescriptor");
-                        throw new LibUsbException("Unable to read device descriptor", result);
+            final boolean cached = (this.snapshot != null) && !refresh;
+            if (!cached) {
+                this.freeSnapshot();
+                this.snapshot = UsbSnapshot.take(this.context);
+            }
+            refresh = false;
+            boolean reset = false;
+
+            int result;
+            int i = 0;
+            for (UsbSnapshot.Entry entry: this.snapshot.getEntries()) {
+                i++;
+                if (!entry.isAt(bus, address, path)) {
+                    continue;
+                }
+                Device device = entry.getDevice();
+                DeviceDescriptor descriptor;
+                try {
+                    descriptor = entry.getDescriptor();
+                }
+                catch (LibUsbException e) {
+                    if (cached) {
+                        // Gone since the snapshot was taken
+                        refresh = true;
+                        break;
                     }
+                    log.debug("failed in LibUsb.getDeviceDescriptor");
+                    throw e;
+                }
+
+                log.debug("%2d: 0x%04x, 0x%04x", i, descriptor.idVendor(), descriptor.idProduct());
+
+                if ((product == ANY_PRODUCT) ?
+                        this.isSupported(descriptor.idVendor() & 0xffff, descriptor.idProduct() & 0xffff) :
+                        (vendor == descriptor.idVendor()) && (product == descriptor.idProduct())) {
+                    log.debug("found device at USB:%d,%d (%s)",
+                            entry.getBusNumber(), entry.getDeviceAddress(), entry.getPortPath());
+
+                    // We found a device that looks like it matches...
+                    // let's try to find the DFU interface, open the device and claim it
+                    try {
+                        iface[0] = findInterface(device, honorInterfaceClass, descriptor.bNumConfigurations());
+                        // The interface is valid
+                        if (iface[0] >= 0) {
+                            // open
+                            result = LibUsb.open(device, handle);
+                            if ((result == LibUsb.ERROR_NO_DEVICE) && cached) {
+                                refresh = true;
+                                break;
+                            }
+                            if (result != LibUsb.SUCCESS) {
+                                throw new LibUsbException("Unable to open device", result);
+                            }
+                            log.debug("opened interface %d...", iface[0]);
 
-                    log.debug("%2d: 0x%04x, 0x%04x", i, descriptor.idVendor(), descriptor.idProduct());
-
-                    if ((vendor == descriptor.idVendor()) &&
-                        (product == descriptor.idProduct()) &&
-                        ((busNumber == 0) ||
-                            (busNumber == LibUsb.getBusNumber(device)) &&
-                            (deviceAddress == LibUsb.getDeviceAddress(device))
-                        )) {
-                        log.debug("found device at USB:%d,%d",
-                                LibUsb.getBusNumber(device), LibUsb.getDeviceAddress(device));
-
-                        // We found a device that looks like it matches...
-                        // let's try to find the DFU interface, open the device and claim it
-                        try {
-                            iface[0] = findInterface(device, honorInterfaceClass, descriptor.bNumConfigurations());
-                            // The interface is valid
-                            if (iface[0] >= 0) {
-                                // open
-                                result = LibUsb.open(device, handle);
+                            serial[0] = readSerialNumber(handle, descriptor.iSerialNumber());
+                            if (port != null) {
+                                port[0] = entry.getPortPath();
+                            }
+
+                            try {
+                                // set configuration
+                                result = LibUsb.setConfiguration(handle, 1);
                                 if (result != LibUsb.SUCCESS) {
-                                    throw new LibUsbException("Unable to open device", result);
+                                    log.debug("Failed to set configuration.");
+                                    throw new LibUsbException("Unable to set configuration", result);
                                 }
-                                log.debug("opened interface %d...", iface[0]);
-
-                                try {
-                                    // set configuration
-                                    result = LibUsb.setConfiguration(handle, 1);
-                                    if (result != LibUsb.SUCCESS) {
-                                        log.debug("Failed to set configuration.");
-                                        throw new LibUsbException("Unable to set configuration", result);
-                                    }
-                                    log.debug("set configuration %d...", 1);
-                                    // claim interface
-                                    result = LibUsb.claimInterface(handle, iface[0]);
-                                    if (result != LibUsb.SUCCESS) {
-                                        log.debug("Failed to claim the DFU interface.");
-                                        throw new LibUsbException("Unable to claim the DFU interface", result);
-                                    }
-                                    log.debug("claimed interface %d...", iface[0]);
-
-                                    result = this.makeIdle(initialAbort);
-                                    if (result == 0) {
-                                        return device;
-                                    }
-                                    else if (result == 1) {
-                                        retries--;
-                                        break;
-                                    }
-
-                                    log.debug("Failed to put the device in dfuIDLE mode.");
-                                    LibUsb.releaseInterface(handle, iface[0]);
-                                    retries = 4;
-                                    throw new DfuException("Failed to put the device in dfuIDLE mode.");
+                                log.debug("set configuration %d...", 1);
+                                // claim interface
+                                result = LibUsb.claimInterface(handle, iface[0]);
+                                if (result != LibUsb.SUCCESS) {
+                                    log.debug("Failed to claim the DFU interface.");
+                                    throw new LibUsbException("Unable to claim the DFU interface", result);
                                 }
-                                catch (LibUsbException e) {
-                                    LibUsb.close(handle);
+                                log.debug("claimed interface %d...", iface[0]);
+
+                                result = this.makeIdle(initialAbort);
+                                if (result == 0) {
+                                    return device;
                                 }
-                                catch (DfuException e) {
+                                else if (result == 1) {
+                                    // The device comes back at a new address on the same port
                                     LibUsb.close(handle);
+                                    bus = 0;
+                                    address = 0;
+                                    path = entry.getPortPath();
+                                    retries--;
+                                    reset = true;
+                                    break;
                                 }
+
+                                log.debug("Failed to put the device in dfuIDLE mode.");
+                                LibUsb.releaseInterface(handle, iface[0]);
+                                retries = 4;
+                                throw new DfuException("Failed to put the device in dfuIDLE mode.");
+                            }
+                            catch (LibUsbException e) {
+                                LibUsb.close(handle);
+                            }
+                            catch (DfuException e) {
+                                LibUsb.close(handle);
                             }
                         }
-                        catch (LibUsbException e) {
-                            throw e;
-                        }
+                    }
+                    catch (LibUsbException e) {
+                        throw e;
                     }
                 }
             }
-            finally {
-                LibUsb.freeDeviceList(list, true);
+
+            if (reset) {
+                try {
+                    Thread.sleep(DFU_REENUMERATE_DELAY);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                refresh = true;
+                continue;
+            }
+            if (refresh || cached) {
+                // Nothing usable in a snapshot taken earlier, look again
+                refresh = true;
+                continue;
             }
 
             break;
@@ -191,6 +355,23 @@ public abstract class Dfu {
         LibUsb.close(handle);
     }
 
+    private String readSerialNumber(final DeviceHandle handle, final byte index) {
+        if (index == 0) {
+            log.debug("device has no serial number string.");
+            return null;
+        }
+
+        StringBuffer buffer = new StringBuffer();
+        int result = LibUsb.getStringDescriptorAscii(handle, index, buffer);
+        if (result < 0) {
+            log.debug("can't read serial number string %d: %d", index, result);
+            return null;
+        }
+        log.debug("serial number: %s", buffer);
+
+        return buffer.toString();
+    }
+
     private byte findInterface(
             final Device device,
             final boolean honorInterfaceClass,
@@ -247,12 +428,29 @@ public abstract class Dfu {
 
     protected abstract int makeIdle(final boolean initialAbort);
 
+    /**
+     * Tells whether a device with these IDs can be opened when initDevice
+     * is called with ANY_PRODUCT.
+     */
+    protected boolean isSupported(final int vendor, final int product) {
+        return false;
+    }
+
+    /**
+     * Tells whether the budget of the running operation is spent, after
+     * which initDevice stops retrying.
+     */
+    protected boolean isExpired() {
+        return false;
+    }
+
     protected static int transferOut(
             final DeviceHandle handle,
             final byte request,
             final short value,
             final short iface,
-            final ByteBuffer data) {
+            final ByteBuffer data,
+            final long timeout) {
         return LibUsb.controlTransfer(
                 handle,
                 (byte)(LibUsb.ENDPOINT_OUT | LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE),
@@ -260,7 +458,7 @@ public abstract class Dfu {
                 value,
                 iface,
                 data,
-                DFU_TIMEOUT);
+                timeout);
     }
 
     protected static int transferIn(
@@ -268,7 +466,8 @@ public abstract class Dfu {
             final byte request,
             final short value,
             final short iface,
-            final ByteBuffer data) {
+            final ByteBuffer data,
+            final long timeout) {
         return LibUsb.controlTransfer(
                 handle,
                 (byte)(LibUsb.ENDPOINT_IN | LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE),
@@ -276,7 +475,27 @@ public abstract class Dfu {
                 value,
                 iface,
                 data,
-                DFU_TIMEOUT);
+                timeout);
+    }
+
+    public static boolean isTransientError(final int result) {
+        switch (result) {
+            // libusb error codes
+            case LibUsb.ERROR_IO:
+            case LibUsb.ERROR_TIMEOUT:
+            case LibUsb.ERROR_OVERFLOW:
+            case LibUsb.ERROR_PIPE:
+            case LibUsb.ERROR_INTERRUPTED:
+            // usbfs error codes
+            case -Errno.EPIPE:
+            case -Errno.ETIMEDOUT:
+            case -Errno.EPROTO:
+            case -Errno.EILSEQ:
+            case -Errno.EREMOTEIO:
+                return true;
+            default:
+                return false;
+        }
     }
 
     public static void resetDevice(final DeviceHandle handle) {
@@ -284,6 +503,10 @@ public abstract class Dfu {
     }
 
     public void msgResponseOutput(final int result) {
+        if (!log.isDebugEnabled()) {
+            return;
+        }
+
         String msg = null;
         if (result >= 0) {
             msg = "No error.";
@@ -21,7 +21,7 @@ package com.github.kairyu.flop.programmer.dfu;
  * @author Kai Ryu
  *
  */
-enum DfuCommand {
+public enum DfuCommand {
 
     DETACH      (0),
     DNLOAD      (1),
@@ -41,4 +41,13 @@ enum DfuCommand {
         return this.value;
     }
 
+    public static String getNameByValue(final byte value) {
+        for (DfuCommand command: DfuCommand.values()) {
+            if (command.value == value) {
+                return command.name();
+            }
+        }
+        return String.format("0x%02x", value);
+    }
+
 }
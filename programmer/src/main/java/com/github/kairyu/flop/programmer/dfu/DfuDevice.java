@@ -22,9 +22,13 @@ import com.github.kairyu.flop.programmer.exception.DfuException;
 import com.github.kairyu.flop.programmer.exception.DeviceNotInitializedException;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
 
 import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
 import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 
 /**
@@ -33,13 +37,54 @@ import org.usb4java.LibUsbException;
  */
 public class DfuDevice extends Dfu {
 
+    /*
+     * The budget of one operation, spent once the clock passes its end.
+     */
+    private static class Deadline {
+        private final String cause;
+        private final long end;
+        private final boolean stretch;
+
+        private Deadline(final String cause, final long budget, final boolean stretch) {
+            this.cause = cause;
+            this.end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+            this.stretch = stretch;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - this.end >= 0;
+        }
+
+        private long getRemaining() {
+            return Math.max(TimeUnit.NANOSECONDS.toMillis(this.end - System.nanoTime()), 1);
+        }
+    }
+
     private final Log log = Log.getLog(Dfu.class.getPackage().getName(),
             DEBUG_THRESHOLD, TRACE_THRESHOLD, MSG_DEBUG_THRESHOLD);
 
     private DeviceHandle handle;
     private DfuStatus status = null;
     private byte iface;
+    private String serialNumber = null;
+    private int vendorId = 0;
+    private int productId = 0;
+    private String portPath = null;
     private short transaction = 0;
+    private int lastResult = 0;
+    private boolean timedOut = false;
+    private DfuStatus.Status lastStatus = null;
+    private final DfuMetrics metrics = new DfuMetrics();
+    private TransferTrace trace = new TransferTrace(TransferTrace.DEFAULT_CAPACITY, 0);
+    private Transport transport = new LibUsbTransport();
+    private UsbScheduler scheduler = null;
+    private String group = null;
+    private int bulkDepth = 0;
+    private long statusTimeout = DFU_STATUS_TIMEOUT;
+    private long dataTimeout = DFU_DATA_TIMEOUT;
+    private volatile Deadline deadline = null;
+    private int deadlineDepth = 0;
+    private String timeoutCause = null;
 
     public DfuDevice() {
         this.handle = new DeviceHandle();
@@ -58,6 +103,206 @@ public class DfuDevice extends Dfu {
         return this.iface;
     }
 
+    public String getSerialNumber() {
+        return this.serialNumber;
+    }
+
+    public int getVendorId() {
+        return this.vendorId;
+    }
+
+    public int getProductId() {
+        return this.productId;
+    }
+
+    /**
+     * Sets the USB id for a transport without a descriptor to read it
+     * from, such as a replay.
+     */
+    public void setUsbId(final int vendorId, final int productId) {
+        this.vendorId = vendorId;
+        this.productId = productId;
+    }
+
+    /**
+     * Returns the port path the device was opened at, which stays the same
+     * when it re-enumerates after a reset.
+     */
+    public String getPortPath() {
+        return this.portPath;
+    }
+
+    public int getLastResult() {
+        return this.lastResult;
+    }
+
+    public DfuStatus.Status getLastStatus() {
+        return this.lastStatus;
+    }
+
+    public DfuMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Runs an operation and adds the time it took to a phase.
+     */
+    protected int timed(final DfuMetrics.Phase phase, final IntSupplier operation) {
+        final long started = this.metrics.start();
+        try {
+            return operation.getAsInt();
+        }
+        finally {
+            this.metrics.stop(phase, started);
+        }
+    }
+
+    public TransferTrace getTrace() {
+        return this.trace;
+    }
+
+    public void setTrace(final TransferTrace trace) {
+        this.trace = trace;
+    }
+
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    public void setTransport(final Transport transport) {
+        this.transport = transport;
+    }
+
+    public UsbScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Makes the transfer-bound phases of this device wait for a permit of
+     * the link it shares with the other devices of the scheduler.
+     */
+    public void setScheduler(final UsbScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns the link this device shares, see {@link UsbScheduler#getGroup}.
+     */
+    public String getGroup() {
+        return this.group;
+    }
+
+    /**
+     * Starts a phase that moves bulk data. Phases may nest, only the
+     * outermost one waits for a permit.
+     *
+     * @return false if interrupted while waiting
+     */
+    protected boolean beginBulk() {
+        if (this.scheduler == null || this.group == null || this.bulkDepth++ > 0) {
+            return true;
+        }
+        try {
+            this.scheduler.acquire(this.group);
+            return true;
+        }
+        catch (InterruptedException e) {
+            this.bulkDepth--;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    protected void endBulk() {
+        if (this.scheduler == null || this.group == null) {
+            return;
+        }
+        if (--this.bulkDepth == 0) {
+            this.scheduler.release(this.group);
+        }
+    }
+
+    public void clearLastError() {
+        this.lastResult = 0;
+        this.lastStatus = null;
+        this.timeoutCause = null;
+    }
+
+    /**
+     * Sets how long, in milliseconds, a request without data and a block
+     * of data may take before the transfer fails.
+     */
+    public void setTimeouts(final long statusTimeout, final long dataTimeout) {
+        if (statusTimeout <= 0 || dataTimeout <= 0) {
+            throw new IllegalArgumentException("Invalid transfer timeout");
+        }
+        this.statusTimeout = statusTimeout;
+        this.dataTimeout = dataTimeout;
+    }
+
+    /**
+     * Returns why the last operation that ran out of its budget was given
+     * up, or null if none did since clearLastError.
+     */
+    public String getTimeoutCause() {
+        return this.timeoutCause;
+    }
+
+    /**
+     * Gives an operation a budget of milliseconds. Once it is spent,
+     * every further transfer fails at once with
+     * LibUsb.ERROR_TIMEOUT, so a hung device is given up within one
+     * transfer timeout instead of after all the retries of the operation.
+     * Operations may nest, only the outermost budget counts.
+     */
+    protected void startDeadline(final String operation, final long budget) {
+        this.startDeadline(operation, budget, false);
+    }
+
+    /**
+     * Same as {@link #startDeadline(String, long)}. With stretch, a
+     * transfer may take whatever is left of the budget if that is longer
+     * than its timeout, up to DFU_STRETCH_LIMIT, for a device that holds a
+     * request while it works, as some do while erasing. See
+     * {@link #isTimedOut()} for a request held longer than that.
+     */
+    protected void startDeadline(final String operation, final long budget, final boolean stretch) {
+        if (this.deadlineDepth++ > 0) {
+            return;
+        }
+        this.deadline = new Deadline(String.format("%s did not finish within %d ms", operation, budget),
+                budget, stretch);
+    }
+
+    protected void endDeadline() {
+        if (--this.deadlineDepth > 0) {
+            return;
+        }
+        final Deadline deadline = this.deadline;
+        this.deadline = null;
+        if (deadline != null) {
+            if (deadline.isExpired()) {
+                log.debug("Deadline: %s.", deadline.cause);
+                this.timeoutCause = deadline.cause;
+            }
+        }
+    }
+
+    @Override
+    protected boolean isExpired() {
+        final Deadline deadline = this.deadline;
+        return (deadline != null) && deadline.isExpired();
+    }
+
+    /**
+     * Tells whether the last transfer ran into its timeout, rather than
+     * being refused or failing otherwise. With the budget not spent yet,
+     * the device may still be holding the request.
+     */
+    protected boolean isTimedOut() {
+        return this.timedOut;
+    }
+
     public int detach(final int timeout) throws DfuException {
         log.trace("dfu_detach( %s, %d )", this.handle.hashCode(), timeout);
 
@@ -75,18 +320,13 @@ public class DfuDevice extends Dfu {
 
     public int download(final ByteBuffer data) throws DfuException {
         data.rewind();
-        log.trace("dfu_download( %s, %d, %s )", this.handle.hashCode(), data.capacity(), data);
+        log.trace(() -> String.format("dfu_download( %s, %d, %s )", this.handle.hashCode(), data.capacity(), data));
 
         if (!this.isInitialized()) {
             log.debug("Invalid parameter");
             throw new DeviceNotInitializedException();
         }
 
-        while (data.hasRemaining()) {
-            log.msgDebug("Message: m[%d] = 0x%02x", data.position(), data.get());
-        }
-        data.rewind();
-
         int result = this.transferOut(DfuCommand.DNLOAD, transaction++, data);
 
         super.msgResponseOutput(result);
@@ -96,7 +336,7 @@ public class DfuDevice extends Dfu {
 
     public int upload(final ByteBuffer data) throws DfuException {
         data.rewind();
-        log.trace("dfu_upload( %s, %d, %s )", this.handle.hashCode(), data.capacity(), data);
+        log.trace(() -> String.format("dfu_upload( %s, %d, %s )", this.handle.hashCode(), data.capacity(), data));
 
         if (!this.isInitialized()) {
             log.debug("Invalid parameter");
@@ -111,7 +351,7 @@ public class DfuDevice extends Dfu {
     }
 
     private int getStatus(DfuStatus status) throws DfuException {
-        log.trace("dfu_get_status( %s, %s )", this.handle.hashCode(), status.hashCode());
+        log.trace(() -> String.format("dfu_get_status( %s, %s )", this.handle.hashCode(), status.hashCode()));
 
         if (!this.isInitialized()) {
             log.debug("Invalid parameter");
@@ -119,6 +359,7 @@ public class DfuDevice extends Dfu {
         }
 
         ByteBuffer buffer = ByteBuffer.allocateDirect(DfuStatus.getBufferSize());
+        this.metrics.countStatusPoll();
         int result = this.transferIn(DfuCommand.GETSTATUS, 0, buffer);
 
         if (result == buffer.capacity()) {
@@ -137,7 +378,11 @@ public class DfuDevice extends Dfu {
     public int updateStatus() throws DfuException {
         this.status = null;
         this.status = new DfuStatus();
-        return getStatus(this.status);
+        int result = getStatus(this.status);
+        if (result == 0) {
+            this.lastStatus = this.status.getStatus();
+        }
+        return result;
     }
 
     public DfuStatus.Status getStatus() {
@@ -222,12 +467,41 @@ public class DfuDevice extends Dfu {
             final boolean honorInterfaceClass,
             final boolean initialAbort)
             throws LibUsbException, DfuException {
+        return initDevice(vendor, product, busNumber, deviceAddress, null, honorInterfaceClass, initialAbort);
+    }
+
+    public Device initDevice(
+            final int vendor,
+            final int product,
+            final int busNumber,
+            final int deviceAddress,
+            final String portPath,
+            final boolean honorInterfaceClass,
+            final boolean initialAbort)
+            throws LibUsbException, DfuException {
         Device device = null;
+        final long started = this.metrics.start();
+        this.startDeadline("opening the device", DFU_INIT_BUDGET);
         try {
             byte[] iface = { 0 };
-            device = super.initDevice(vendor, product, busNumber, deviceAddress,
-                    honorInterfaceClass, initialAbort, this.handle, iface);
+            String[] serial = { null };
+            String[] port = { null };
+            device = super.initDevice(vendor, product, busNumber, deviceAddress, portPath,
+                    honorInterfaceClass, initialAbort, this.handle, iface, serial, port);
             this.iface = iface[0];
+            this.serialNumber = serial[0];
+            this.portPath = port[0];
+            this.group = (device != null && this.getSnapshot() != null) ?
+                    UsbScheduler.getGroup(this.getSnapshot(), this.portPath) : null;
+            if (device != null) {
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                if (LibUsb.getDeviceDescriptor(device, descriptor) == LibUsb.SUCCESS) {
+                    this.vendorId = descriptor.idVendor() & 0xffff;
+                    this.productId = descriptor.idProduct() & 0xffff;
+                }
+                Log.setContext((this.serialNumber != null) ? this.serialNumber :
+                        String.format("%03d:%03d", LibUsb.getBusNumber(device), LibUsb.getDeviceAddress(device)));
+            }
         }
         catch (LibUsbException e) {
             throw e;
@@ -235,16 +509,39 @@ public class DfuDevice extends Dfu {
         catch (DfuException e) {
             throw e;
         }
+        finally {
+            this.endDeadline();
+            this.metrics.stop(DfuMetrics.Phase.INIT, started);
+        }
 
         return device;
     }
 
+    /**
+     * Brings a device served by a transport without a USB handle, such as
+     * a replay, into dfuIDLE the same way initDevice does for a real one.
+     */
+    public int initTransport(final boolean initialAbort) throws DfuException {
+        final long started = this.metrics.start();
+        this.startDeadline("opening the device", DFU_INIT_BUDGET);
+        try {
+            return this.makeIdle(initialAbort);
+        }
+        finally {
+            this.endDeadline();
+            this.metrics.stop(DfuMetrics.Phase.INIT, started);
+        }
+    }
+
     public void uninitDevice() throws DfuException {
-        super.uninitDevice(this.getHandle(), this.getInterface());
+        if (this.getHandle().getPointer() != 0) {
+            super.uninitDevice(this.getHandle(), this.getInterface());
+        }
+        Log.setContext(null);
     }
 
     public boolean isInitialized() {
-        return (this.getHandle().getPointer() != 0);
+        return this.transport.isConnected(this.getHandle());
     }
 
     protected int makeIdle(final boolean initialAbort) throws DfuException {
@@ -258,6 +555,7 @@ public class DfuDevice extends Dfu {
             DfuStatus status = new DfuStatus();
             if (this.getStatus(status) != 0) {
                 this.clearStatus();
+                retries--;
                 continue;
             }
 
@@ -306,14 +604,79 @@ public class DfuDevice extends Dfu {
     }
 
     public void reset() {
-        resetDevice(this.getHandle());
+        if (this.getHandle().getPointer() != 0) {
+            resetDevice(this.getHandle());
+        }
+    }
+
+    protected void sleep(final long millis) throws InterruptedException {
+        final long started = System.nanoTime();
+        try {
+            Thread.sleep(millis);
+        }
+        finally {
+            this.metrics.countSleep(System.nanoTime() - started);
+        }
+    }
+
+    /*
+     * A cancelled job, or one out of budget, stops at its next transfer
+     * rather than after the whole operation; transfers already under way
+     * run to their timeout.
+     */
+    private int checkCancelled() {
+        this.timedOut = false;
+        if (Thread.currentThread().isInterrupted()) {
+            this.lastResult = LibUsb.ERROR_INTERRUPTED;
+        }
+        else if (this.isExpired()) {
+            this.lastResult = LibUsb.ERROR_TIMEOUT;
+        }
+        else {
+            return 0;
+        }
+        return this.lastResult;
+    }
+
+    private long getTimeout(final DfuCommand command) {
+        final long timeout = (command == DfuCommand.DNLOAD || command == DfuCommand.UPLOAD) ?
+                this.dataTimeout : this.statusTimeout;
+        final Deadline deadline = this.deadline;
+        return (deadline != null && deadline.stretch) ?
+                Math.max(timeout, Math.min(deadline.getRemaining(), DFU_STRETCH_LIMIT)) : timeout;
     }
 
     public int transferOut(final DfuCommand command, final int value, final ByteBuffer data) {
-        return transferOut(this.getHandle(), command.getValue(), (short) value, this.getInterface(), data);
+        final int cancelled = this.checkCancelled();
+        if (cancelled != 0) {
+            return cancelled;
+        }
+        final long started = this.trace.start();
+        int result = this.transport.transferOut(this.getHandle(), command.getValue(), (short) value,
+                this.getInterface(), data, this.getTimeout(command));
+        this.trace.record(TransferRecord.DIRECTION_OUT, command.getValue(), (short) value, data, result, started);
+        this.metrics.countTransferOut(result);
+        this.timedOut = (result == LibUsb.ERROR_TIMEOUT);
+        if (result < 0) {
+            this.lastResult = result;
+        }
+        return result;
     }
 
     public int transferIn(final DfuCommand command, final int value, final ByteBuffer data) {
-        return transferIn(this.getHandle(), command.getValue(), (short) value, this.getInterface(), data);
+        final int cancelled = this.checkCancelled();
+        if (cancelled != 0) {
+            return cancelled;
+        }
+        final long started = this.trace.start();
+        int result = this.transport.transferIn(this.getHandle(), command.getValue(), (short) value,
+                this.getInterface(), data, this.getTimeout(command));
+        this.trace.record(TransferRecord.DIRECTION_IN, command.getValue(), (short) value, data, result, started);
+        this.metrics.countTransferIn(result);
+        this.timedOut = (result == LibUsb.ERROR_TIMEOUT);
+        if (result < 0) {
+            this.lastResult = result;
+        }
+        return result;
     }
 }
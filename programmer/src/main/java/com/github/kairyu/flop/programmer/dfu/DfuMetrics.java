@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.dfu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Timing and transfer counters collected for one device session.
+ *
+ * Phases are timed with a monotonic clock and are inclusive, so a blank
+ * check run from within a flash is counted in both phases.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class DfuMetrics {
+
+    public enum Phase {
+
+        INIT("init"),
+        BLANK_CHECK("blank_check"),
+        ERASE("erase"),
+        FLASH("flash"),
+        READ("read"),
+        VALIDATE("validate");
+
+        private final String name;
+
+        private Phase(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+    }
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final int[] phaseCounts = new int[Phase.values().length];
+    private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    private long created = System.currentTimeMillis();
+    private long started = System.nanoTime();
+    private long stopped = 0;
+    private long controlTransfers = 0;
+    private long bytesOut = 0;
+    private long bytesIn = 0;
+    private long statusPolls = 0;
+    private long retries = 0;
+    private long sleepNanos = 0;
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void stop(final Phase phase, final long start) {
+        this.phaseNanos[phase.ordinal()] += System.nanoTime() - start;
+        this.phaseCounts[phase.ordinal()]++;
+    }
+
+    public long getPhaseNanos(final Phase phase) {
+        return this.phaseNanos[phase.ordinal()];
+    }
+
+    public int getPhaseCount(final Phase phase) {
+        return this.phaseCounts[phase.ordinal()];
+    }
+
+    public void countTransferOut(final int result) {
+        this.controlTransfers++;
+        if (result > 0) {
+            this.bytesOut += result;
+        }
+    }
+
+    public void countTransferIn(final int result) {
+        this.controlTransfers++;
+        if (result > 0) {
+            this.bytesIn += result;
+        }
+    }
+
+    public void countStatusPoll() {
+        this.statusPolls++;
+    }
+
+    public void countRetry() {
+        this.retries++;
+    }
+
+    public void countSleep(final long nanos) {
+        this.sleepNanos += nanos;
+    }
+
+    public long getControlTransfers() {
+        return this.controlTransfers;
+    }
+
+    public long getBytesOut() {
+        return this.bytesOut;
+    }
+
+    public long getBytesIn() {
+        return this.bytesIn;
+    }
+
+    public long getStatusPolls() {
+        return this.statusPolls;
+    }
+
+    public long getRetries() {
+        return this.retries;
+    }
+
+    public long getSleepNanos() {
+        return this.sleepNanos;
+    }
+
+    public long getElapsedNanos() {
+        return ((this.stopped != 0) ? this.stopped : System.nanoTime()) - this.started;
+    }
+
+    /**
+     * Returns the counters as they are now, to be passed to
+     * {@link #since} later.
+     */
+    public DfuMetrics copy() {
+        DfuMetrics copy = new DfuMetrics();
+        copy.add(this, 1);
+        copy.attributes.putAll(this.attributes);
+        copy.created = this.created;
+        copy.started = this.started;
+        copy.stopped = System.nanoTime();
+        return copy;
+    }
+
+    /**
+     * Returns what was counted between a copy and now, e.g. for one
+     * operation of a device that stays open for several.
+     */
+    public DfuMetrics since(final DfuMetrics mark) {
+        DfuMetrics delta = new DfuMetrics();
+        delta.add(this, 1);
+        delta.add(mark, -1);
+        delta.attributes.putAll(this.attributes);
+        delta.created = mark.created + (mark.stopped - mark.started) / 1000000;
+        delta.started = mark.stopped;
+        delta.stopped = (this.stopped != 0) ? this.stopped : System.nanoTime();
+        return delta;
+    }
+
+    private void add(final DfuMetrics metrics, final int sign) {
+        for (int i = 0; i < this.phaseNanos.length; i++) {
+            this.phaseNanos[i] += sign * metrics.phaseNanos[i];
+            this.phaseCounts[i] += sign * metrics.phaseCounts[i];
+        }
+        this.controlTransfers += sign * metrics.controlTransfers;
+        this.bytesOut += sign * metrics.bytesOut;
+        this.bytesIn += sign * metrics.bytesIn;
+        this.statusPolls += sign * metrics.statusPolls;
+        this.retries += sign * metrics.retries;
+        this.sleepNanos += sign * metrics.sleepNanos;
+    }
+
+    public void setAttribute(final String name, final Object value) {
+        this.attributes.put(name, (value == null) ? "" : value);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        map.put("timestamp", format.format(new Date(this.created)));
+        map.putAll(this.attributes);
+        map.put("total_ms", millis(this.getElapsedNanos()));
+        for (Phase phase : Phase.values()) {
+            map.put(phase.getName() + "_ms", millis(this.getPhaseNanos(phase)));
+            map.put(phase.getName() + "_count", this.getPhaseCount(phase));
+        }
+        map.put("control_transfers", this.controlTransfers);
+        map.put("bytes_out", this.bytesOut);
+        map.put("bytes_in", this.bytesIn);
+        map.put("status_polls", this.statusPolls);
+        map.put("retries", this.retries);
+        map.put("sleep_ms", millis(this.sleepNanos));
+        return map;
+    }
+
+    /**
+     * Appends this session to a report file, as CSV if the file name ends
+     * with ".csv" and as one JSON object per line otherwise.
+     *
+     * A CSV row follows the header of the file it is appended to, so
+     * sessions that set their attributes in a different order, or set
+     * fewer, still line up, a column the session lacks being left empty.
+     * A session with values the header has no column for widens the
+     * header, and the rows already in the file get empty cells for them.
+     */
+    public void writeReport(final String fileName) throws IOException {
+        File file = new File(fileName);
+        boolean csv = fileName.toLowerCase().endsWith(".csv");
+        Map<String, Object> map = this.toMap();
+        List<List<String>> rows = (csv && file.exists()) ? readRows(file) : new ArrayList<List<String>>();
+        boolean header = rows.isEmpty();
+        List<String> columns = header ? new ArrayList<String>(map.keySet()) : rows.get(0);
+        if (!header && !columns.containsAll(map.keySet())) {
+            for (String key : map.keySet()) {
+                if (!columns.contains(key)) {
+                    columns.add(key);
+                }
+            }
+            rewriteReport(file, rows, toRow(columns, map));
+            return;
+        }
+        PrintWriter writer = new PrintWriter(new FileWriter(file, !header || !csv));
+        try {
+            if (csv) {
+                if (header) {
+                    writer.println(join(columns.toArray()));
+                }
+                writer.println(join(toRow(columns, map)));
+            }
+            else {
+                StringBuilder builder = new StringBuilder("{");
+                for (Map.Entry<String, Object> entry : map.entrySet()) {
+                    if (builder.length() > 1) {
+                        builder.append(", ");
+                    }
+                    builder.append(quote(entry.getKey())).append(": ");
+                    if (entry.getValue() instanceof Number) {
+                        builder.append(entry.getValue());
+                    }
+                    else {
+                        builder.append(quote(entry.getValue().toString()));
+                    }
+                }
+                writer.println(builder.append("}").toString());
+            }
+        }
+        finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Unable to write report to " + fileName);
+        }
+    }
+
+    private static Object[] toRow(final List<String> columns, final Map<String, Object> map) {
+        Object[] row = new Object[columns.size()];
+        for (int i = 0; i < row.length; i++) {
+            Object value = map.get(columns.get(i));
+            row[i] = (value == null) ? "" : value;
+        }
+        return row;
+    }
+
+    /*
+     * Writes the widened header, the rows so far padded to it and the new
+     * row aside, and renames them over the old report, so that a failed
+     * write leaves the report as it was.
+     */
+    private static void rewriteReport(final File file, final List<List<String>> rows, final Object[] row)
+            throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final int width = rows.get(0).size();
+        PrintWriter writer = new PrintWriter(new FileWriter(temp));
+        try {
+            for (List<String> cells : rows) {
+                while (cells.size() < width) {
+                    cells.add("");
+                }
+                writer.println(join(cells.toArray()));
+            }
+            writer.println(join(row));
+        }
+        finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            temp.delete();
+            throw new IOException("Unable to write report to " + file);
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Splits a CSV file into its records, header first. Quoted fields may
+     * hold commas, doubled quotes and line breaks.
+     */
+    private static List<List<String>> readRows(final File file) throws IOException {
+        List<List<String>> rows = new ArrayList<List<String>>();
+        List<String> row = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (quoted) {
+                    if (c != '"') {
+                        field.append((char) c);
+                        continue;
+                    }
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        field.append('"');
+                    }
+                    else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                }
+                else if (c == '"') {
+                    quoted = true;
+                }
+                else if (c == ',') {
+                    row.add(field.toString());
+                    field.setLength(0);
+                }
+                else if (c == '\n') {
+                    row.add(field.toString());
+                    field.setLength(0);
+                    rows.add(row);
+                    row = new ArrayList<String>();
+                }
+                else if (c != '\r') {
+                    field.append((char) c);
+                }
+            }
+            if (field.length() > 0 || !row.isEmpty()) {
+                row.add(field.toString());
+                rows.add(row);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    private static Double millis(final long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private static String join(final Object[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            String value = values[i].toString();
+            if (i > 0) {
+                builder.append(',');
+            }
+            if (value.matches("(?s).*[,\"\\r\\n].*")) {
+                builder.append('"').append(value.replace("\"", "\"\"")).append('"');
+            }
+            else {
+                builder.append(value);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String quote(final String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
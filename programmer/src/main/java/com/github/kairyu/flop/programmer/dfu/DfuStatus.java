@@ -58,6 +58,20 @@ public class DfuStatus {
             return value;
         }
 
+        public boolean isRecoverable() {
+            switch (this) {
+                case ERROR_TARGET:
+                case ERROR_FILE:
+                case ERROR_CHECK_ERASED:
+                case ERROR_ADDRESS:
+                case ERROR_FIRMWARE:
+                case ERROR_VENDOR:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
         public static Status getByValue(byte value) {
             for (Status s: Status.values()) {
                 if (s.value == value) {
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.kairyu.flop.programmer.dfu;
+
+import java.nio.ByteBuffer;
+
+import org.usb4java.DeviceHandle;
+
+/**
+ * Sends requests to the device through libusb.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class LibUsbTransport implements Transport {
+
+    @Override
+    public int transferOut(final DeviceHandle handle, final byte request, final short value,
+            final short iface, final ByteBuffer data, final long timeout) {
+        return Dfu.transferOut(handle, request, value, iface, data, timeout);
+    }
+
+    @Override
+    public int transferIn(final DeviceHandle handle, final byte request, final short value,
+            final short iface, final ByteBuffer data, final long timeout) {
+        return Dfu.transferIn(handle, request, value, iface, data, timeout);
+    }
+
+    @Override
+    public boolean isConnected(final DeviceHandle handle) {
+        return (handle.getPointer() != 0);
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
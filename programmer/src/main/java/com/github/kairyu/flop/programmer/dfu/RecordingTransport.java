@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.kairyu.flop.programmer.dfu;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.usb4java.DeviceHandle;
+
+/**
+ * Passes requests on to another transport and saves every transfer, with
+ * its timing and complete payload, for {@link ReplayTransport}.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class RecordingTransport implements Transport {
+
+    private final Transport transport;
+    private final DataOutputStream out;
+    private final long epochNanos = System.nanoTime();
+    private long index = 0;
+    private IOException error = null;
+    private final Lock lock = new ReentrantLock();
+
+    public RecordingTransport(final Transport transport, final String fileName) throws IOException {
+        this.transport = transport;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+        TransferRecord.writeHeader(this.out, System.currentTimeMillis(), -1);
+    }
+
+    @Override
+    public int transferOut(final DeviceHandle handle, final byte request, final short value,
+            final short iface, final ByteBuffer data, final long timeout) {
+        this.lock.lock();
+        try {
+            final long start = System.nanoTime();
+            final int result = this.transport.transferOut(handle, request, value, iface, data, timeout);
+            this.record(TransferRecord.DIRECTION_OUT, request, value, data, result, start);
+            return result;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int transferIn(final DeviceHandle handle, final byte request, final short value,
+            final short iface, final ByteBuffer data, final long timeout) {
+        this.lock.lock();
+        try {
+            final long start = System.nanoTime();
+            final int result = this.transport.transferIn(handle, request, value, iface, data, timeout);
+            this.record(TransferRecord.DIRECTION_IN, request, value, data, result, start);
+            return result;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isConnected(final DeviceHandle handle) {
+        return this.transport.isConnected(handle);
+    }
+
+    /**
+     * Closes the recording, reporting any write error that happened while
+     * transfers were being recorded.
+     */
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            this.transport.close();
+            try {
+                this.out.close();
+            }
+            catch (IOException e) {
+                if (this.error == null) {
+                    this.error = e;
+                }
+            }
+            if (this.error != null) {
+                throw this.error;
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the USB id of the recorded device, which a replay has no
+     * descriptor to read it from.
+     */
+    public void recordDevice(final int vendorId, final int productId) {
+        this.lock.lock();
+        try {
+            final ByteBuffer id = ByteBuffer.allocate(4).putShort((short) vendorId).putShort((short) productId);
+            this.record(TransferRecord.DIRECTION_OUT, TransferRecord.REQUEST_DEVICE, (short) 0, id, 0,
+                    System.nanoTime());
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void record(final byte direction, final byte request, final short value,
+            final ByteBuffer data, final int result, final long start) {
+        final long duration = System.nanoTime() - start;
+        final int length = (data == null) ? 0 : data.capacity();
+        final byte[] payload = new byte[(direction == TransferRecord.DIRECTION_IN) ?
+                Integer.min(Math.max(result, 0), length) : length];
+        if (payload.length > 0) {
+            ByteBuffer copy = data.duplicate();
+            copy.clear();
+            copy.get(payload);
+        }
+
+        if (this.error != null) {
+            return;
+        }
+        try {
+            new TransferRecord(this.index++, start - this.epochNanos, duration,
+                    direction, request, value, length, result, payload).write(this.out);
+        }
+        catch (IOException e) {
+            this.error = e;
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.kairyu.flop.programmer.dfu;
+
+import com.github.kairyu.flop.programmer.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+
+/**
+ * Serves the responses saved by {@link RecordingTransport} in place of a
+ * device, optionally with the recorded latencies, and counts every
+ * request that does not match the recording.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class ReplayTransport implements Transport {
+
+    private final Log log = Log.getLog(Dfu.class.getPackage().getName(), Dfu.DEBUG_THRESHOLD);
+
+    private final List<TransferRecord> records = new ArrayList<TransferRecord>();
+    private final boolean delay;
+    private int position = 0;
+    private int deviations = 0;
+    private String firstDeviation = null;
+    private int vendorId = 0;
+    private int productId = 0;
+    private final Lock lock = new ReentrantLock();
+
+    public ReplayTransport(final String fileName, final boolean delay) throws IOException {
+        this.delay = delay;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        try {
+            TransferRecord.readHeader(in, fileName);
+            TransferRecord record;
+            while ((record = TransferRecord.read(in)) != null) {
+                if (record.getRequest() == TransferRecord.REQUEST_DEVICE) {
+                    final ByteBuffer id = ByteBuffer.wrap(record.getPayload());
+                    this.vendorId = id.getShort() & 0xffff;
+                    this.productId = id.getShort() & 0xffff;
+                }
+                else {
+                    this.records.add(record);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public int transferOut(final DeviceHandle handle, final byte request, final short value,
+            final short iface, final ByteBuffer data, final long timeout) {
+        this.lock.lock();
+        try {
+            return this.replay(TransferRecord.DIRECTION_OUT, request, value, data);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int transferIn(final DeviceHandle handle, final byte request, final short value,
+            final short iface, final ByteBuffer data, final long timeout) {
+        this.lock.lock();
+        try {
+            return this.replay(TransferRecord.DIRECTION_IN, request, value, data);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isConnected(final DeviceHandle handle) {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Returns the USB vendor id of the recorded device, 0 if the recording
+     * does not hold it.
+     */
+    public int getVendorId() {
+        return this.vendorId;
+    }
+
+    public int getProductId() {
+        return this.productId;
+    }
+
+    public int getRecordedCount() {
+        return this.records.size();
+    }
+
+    public int getReplayedCount() {
+        return this.position;
+    }
+
+    /**
+     * Returns the number of requests that differed from the recording,
+     * counting recorded transfers that were never requested as one more.
+     */
+    public int getDeviations() {
+        this.lock.lock();
+        try {
+            return this.deviations + ((this.position < this.records.size()) ? 1 : 0);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    public String getFirstDeviation() {
+        this.lock.lock();
+        try {
+            if (this.firstDeviation == null && this.position < this.records.size()) {
+                return String.format("%d recorded transfers were not requested, starting with #%d",
+                        this.records.size() - this.position, this.records.get(this.position).getIndex());
+            }
+            return this.firstDeviation;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private int replay(final byte direction, final byte request, final short value, final ByteBuffer data) {
+        final int length = (data == null) ? 0 : data.capacity();
+        byte[] payload = new byte[0];
+        if (direction == TransferRecord.DIRECTION_OUT && length > 0) {
+            payload = new byte[length];
+            ByteBuffer copy = data.duplicate();
+            copy.clear();
+            copy.get(payload);
+        }
+        final TransferRecord actual = new TransferRecord(this.position, 0, 0,
+                direction, request, value, length, 0, payload);
+
+        if (this.position >= this.records.size()) {
+            this.deviate(String.format("transfer #%d was not recorded: %s", this.position, actual));
+            this.position++;
+            return LibUsb.ERROR_NO_DEVICE;
+        }
+
+        final TransferRecord expected = this.records.get(this.position++);
+        if (!expected.isSameRequest(actual)) {
+            this.deviate(String.format("transfer #%d differs from the recording%n  expected: %s%n  actual:   %s",
+                    expected.getIndex(), expected, actual));
+        }
+
+        if (this.delay) {
+            try {
+                Thread.sleep(expected.getDuration() / 1000000, (int) (expected.getDuration() % 1000000));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return LibUsb.ERROR_INTERRUPTED;
+            }
+        }
+
+        if (direction == TransferRecord.DIRECTION_IN && data != null) {
+            ByteBuffer response = data.duplicate();
+            response.clear();
+            response.put(expected.getPayload(), 0, Integer.min(expected.getPayload().length, length));
+        }
+
+        return expected.getResult();
+    }
+
+    private void deviate(final String message) {
+        log.debug("replay: %s", message);
+        if (this.firstDeviation == null) {
+            this.firstDeviation = message;
+        }
+        this.deviations++;
+    }
+
+}
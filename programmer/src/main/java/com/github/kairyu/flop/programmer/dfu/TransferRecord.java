@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.dfu;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One control transfer as stored in trace and recording files.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class TransferRecord {
+
+    public static final byte DIRECTION_OUT = 0;
+    public static final byte DIRECTION_IN  = 1;
+
+    /**
+     * Not a DFU request: marks the record that holds the USB vendor and
+     * product id of a recorded device rather than a transfer.
+     */
+    public static final byte REQUEST_DEVICE = (byte) 0xff;
+
+    static final long MAGIC = 0x464c4f5054524331L; // "FLOPTRC1"
+    static final int HEADER_SIZE = 36;
+    static final int CAPTURED_OFFSET = 30;
+
+    private final long index;
+    private final long start;
+    private final long duration;
+    private final byte direction;
+    private final byte request;
+    private final short value;
+    private final int length;
+    private final int result;
+    private final byte[] payload;
+
+    public TransferRecord(final long index, final long start, final long duration,
+            final byte direction, final byte request, final short value,
+            final int length, final int result, final byte[] payload) {
+        this.index = index;
+        this.start = start;
+        this.duration = duration;
+        this.direction = direction;
+        this.request = request;
+        this.value = value;
+        this.length = length;
+        this.result = result;
+        this.payload = payload;
+    }
+
+    public long getIndex() {
+        return this.index;
+    }
+
+    public long getStart() {
+        return this.start;
+    }
+
+    public long getDuration() {
+        return this.duration;
+    }
+
+    public byte getDirection() {
+        return this.direction;
+    }
+
+    public byte getRequest() {
+        return this.request;
+    }
+
+    public short getValue() {
+        return this.value;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    public int getResult() {
+        return this.result;
+    }
+
+    public byte[] getPayload() {
+        return this.payload;
+    }
+
+    /**
+     * Compares the request side of two transfers: direction, request,
+     * value, length and, for OUT transfers, the payload bytes held by both.
+     */
+    public boolean isSameRequest(final TransferRecord other) {
+        if (this.direction != other.direction || this.request != other.request
+                || this.value != other.value || this.length != other.length) {
+            return false;
+        }
+        if (this.direction == DIRECTION_OUT) {
+            final int common = Integer.min(this.payload.length, other.payload.length);
+            return Arrays.equals(Arrays.copyOf(this.payload, common), Arrays.copyOf(other.payload, common));
+        }
+        return true;
+    }
+
+    public void write(final DataOutputStream out) throws IOException {
+        out.writeLong(this.index);
+        out.writeLong(this.start);
+        out.writeLong(this.duration);
+        out.writeByte(this.direction);
+        out.writeByte(this.request);
+        out.writeShort(this.value);
+        out.writeShort(this.length);
+        out.writeShort(this.payload.length);
+        out.writeInt(this.result);
+        out.write(this.payload);
+    }
+
+    /**
+     * Returns the next record, or null at the end of the stream.
+     */
+    public static TransferRecord read(final DataInputStream in) throws IOException {
+        final long index;
+        try {
+            index = in.readLong();
+        }
+        catch (EOFException e) {
+            return null;
+        }
+        final long start = in.readLong();
+        final long duration = in.readLong();
+        final byte direction = in.readByte();
+        final byte request = in.readByte();
+        final short value = in.readShort();
+        final int length = in.readShort() & 0xffff;
+        final byte[] payload = new byte[in.readShort() & 0xffff];
+        final int result = in.readInt();
+        in.readFully(payload);
+        return new TransferRecord(index, start, duration, direction, request, value, length, result, payload);
+    }
+
+    static void writeHeader(final DataOutputStream out, final long epochMillis, final int payloadCapacity)
+            throws IOException {
+        out.writeLong(MAGIC);
+        out.writeLong(epochMillis);
+        out.writeInt(payloadCapacity);
+    }
+
+    /**
+     * Checks the file header and returns the wall clock time the file
+     * was started at.
+     */
+    static long readHeader(final DataInputStream in, final String fileName) throws IOException {
+        if (in.readLong() != MAGIC) {
+            throw new IOException(fileName + " is not a transfer trace");
+        }
+        final long epochMillis = in.readLong();
+        in.readInt();
+        return epochMillis;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("%12d %12d %12d %-3s %-9s 0x%04x %6d %6d ",
+                this.index, this.start / 1000, this.duration / 1000,
+                (this.direction == DIRECTION_IN) ? "IN" : "OUT",
+                DfuCommand.getNameByValue(this.request), this.value & 0xffff, this.length, this.result));
+        for (byte b: this.payload) {
+            builder.append(String.format("%02x", b));
+        }
+        final int expected = (this.direction == DIRECTION_IN) ? this.result : this.length;
+        if (this.payload.length < expected) {
+            builder.append("...");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.dfu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of the most recent control transfers.
+ *
+ * Writers claim a slot with a single atomic increment and publish it by
+ * stamping the slot with its sequence number, so recording never takes a
+ * lock and can stay enabled while flashing. A dump skips slots that are
+ * being rewritten.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class TransferTrace {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final long WRITING = -1;
+
+    private final int capacity;
+    private final int mask;
+    private final int payloadCapacity;
+    private final int slotSize;
+    private final byte[] slots;
+    private final AtomicLongArray stamps;
+    private final AtomicLong sequence = new AtomicLong();
+    private final long epochMillis = System.currentTimeMillis();
+    private final long epochNanos = System.nanoTime();
+
+    /**
+     * @param capacity        number of records kept, rounded up to a power of two
+     * @param payloadCapacity number of payload bytes copied per record, 0 for none
+     */
+    public TransferTrace(final int capacity, final int payloadCapacity) {
+        if (capacity <= 0 || payloadCapacity < 0) {
+            throw new IllegalArgumentException("Invalid trace size");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = this.capacity - 1;
+        this.payloadCapacity = payloadCapacity;
+        this.slotSize = TransferRecord.HEADER_SIZE + payloadCapacity;
+        this.slots = new byte[this.capacity * this.slotSize];
+        this.stamps = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            this.stamps.set(i, WRITING);
+        }
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public long getCount() {
+        return this.sequence.get();
+    }
+
+    /**
+     * Returns the timestamp to pass to {@link #record} once the transfer
+     * has completed.
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void record(final byte direction, final byte request, final short value,
+            final ByteBuffer data, final int result, final long start) {
+        final long end = System.nanoTime();
+        final long index = this.sequence.getAndIncrement();
+        final int slot = (int) (index & this.mask);
+        final int length = (data == null) ? 0 : data.capacity();
+        int captured = 0;
+        if (data != null && this.payloadCapacity > 0) {
+            captured = Integer.min(this.payloadCapacity,
+                    (direction == TransferRecord.DIRECTION_IN) ? Math.max(result, 0) : length);
+        }
+
+        this.stamps.set(slot, WRITING);
+        ByteBuffer record = ByteBuffer.wrap(this.slots, slot * this.slotSize, this.slotSize);
+        record.putLong(index)
+                .putLong(start - this.epochNanos)
+                .putLong(end - start)
+                .put(direction)
+                .put(request)
+                .putShort(value)
+                .putShort((short) length)
+                .putShort((short) captured)
+                .putInt(result);
+        if (captured > 0) {
+            ByteBuffer payload = data.duplicate();
+            payload.clear().limit(captured);
+            payload.get(this.slots, slot * this.slotSize + TransferRecord.HEADER_SIZE, captured);
+        }
+        this.stamps.set(slot, index);
+    }
+
+    /**
+     * Writes the records still held in the ring, oldest first.
+     */
+    public int dump(final String fileName) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+        int count = 0;
+        try {
+            TransferRecord.writeHeader(out, this.epochMillis, this.payloadCapacity);
+
+            final byte[] copy = new byte[this.slotSize];
+            final long last = this.sequence.get();
+            for (long index = Math.max(0, last - this.capacity); index < last; index++) {
+                final int slot = (int) (index & this.mask);
+                if (this.stamps.get(slot) != index) {
+                    continue;
+                }
+                System.arraycopy(this.slots, slot * this.slotSize, copy, 0, this.slotSize);
+                if (this.stamps.get(slot) != index) {
+                    continue;
+                }
+                final int captured = ByteBuffer.wrap(copy, TransferRecord.CAPTURED_OFFSET, 2).getShort() & 0xffff;
+                out.write(copy, 0, TransferRecord.HEADER_SIZE + captured);
+                count++;
+            }
+        }
+        finally {
+            out.close();
+        }
+        return count;
+    }
+
+    /**
+     * Pretty-prints a file written by {@link #dump} or by a recording.
+     */
+    public static int print(final String fileName, final PrintStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        int count = 0;
+        try {
+            stream.println(String.format("# trace started at %tF %<tT.%<tL", TransferRecord.readHeader(in, fileName)));
+            stream.println("#   sequence     time(us) duration(us) dir request    value length result payload");
+
+            TransferRecord record;
+            while ((record = TransferRecord.read(in)) != null) {
+                stream.println(record);
+                count++;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.kairyu.flop.programmer.dfu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.usb4java.DeviceHandle;
+
+/**
+ * Carries DFU class requests to a device.
+ *
+ * @author Kai Ryu
+ *
+ */
+public interface Transport {
+
+    /**
+     * Sends a request and its data. A transfer that takes longer than
+     * timeout milliseconds fails with LibUsb.ERROR_TIMEOUT.
+     *
+     * @return the number of bytes sent, or a negative LibUsb error
+     */
+    int transferOut(DeviceHandle handle, byte request, short value, short iface, ByteBuffer data, long timeout);
+
+    /**
+     * Sends a request and reads its answer into data, with the same
+     * timeout as {@link #transferOut}.
+     *
+     * @return the number of bytes read, or a negative LibUsb error
+     */
+    int transferIn(DeviceHandle handle, byte request, short value, short iface, ByteBuffer data, long timeout);
+
+    boolean isConnected(DeviceHandle handle);
+
+    void close() throws IOException;
+
+}
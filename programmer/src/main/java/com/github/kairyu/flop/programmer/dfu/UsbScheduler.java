@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.dfu;
+
+import com.github.kairyu.flop.programmer.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Limits how many devices move bulk data at once over the same link.
+ *
+ * Full speed DFU devices that hang off the same high speed hub share its
+ * transaction translator, one per hub or one per port for a multi-TT hub,
+ * and devices behind a full speed hub share its upstream link. Flashing
+ * more of them at once than the link carries only makes each one slower,
+ * so transfer-bound phases take a permit of their group first. Phases
+ * that mostly wait, like erasing or enumeration, don't.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class UsbScheduler {
+
+    private final Log log = Log.getLog(Dfu.class.getPackage().getName(),
+            Dfu.DEBUG_THRESHOLD, Dfu.TRACE_THRESHOLD, Dfu.MSG_DEBUG_THRESHOLD);
+
+    public static final int DEFAULT_BULK_PER_GROUP = 1;
+
+    private static final byte HUB_PROTOCOL_MULTI_TT = 2;
+
+    private final int bulkPerGroup;
+    private final ConcurrentMap<String, Semaphore> groups = new ConcurrentHashMap<String, Semaphore>();
+
+    public UsbScheduler(final int bulkPerGroup) {
+        if (bulkPerGroup <= 0) {
+            throw new IllegalArgumentException("Invalid number of transfers per group");
+        }
+        this.bulkPerGroup = bulkPerGroup;
+    }
+
+    public int getBulkPerGroup() {
+        return this.bulkPerGroup;
+    }
+
+    /**
+     * Names the link the device at portPath shares with other devices.
+     */
+    public static String getGroup(final UsbSnapshot snapshot, final String portPath) {
+        UsbSnapshot.Entry entry = snapshot.getEntry(portPath);
+        if (entry == null) {
+            return portPath;
+        }
+        if (entry.isHighSpeed()) {
+            return "bus " + entry.getBusNumber();
+        }
+
+        // Walk up until a high speed hub, whose TT serves this branch, or
+        // up to the root port the full speed branch is plugged into
+        String link = portPath;
+        while (true) {
+            final String parentPath = entry.getParentPath();
+            final UsbSnapshot.Entry parent = (parentPath == null) ? null : snapshot.getEntry(parentPath);
+            if (parent == null || parent.getParentPath() == null) {
+                return "port " + link;
+            }
+            if (parent.isHighSpeed()) {
+                return isMultiTT(parent) ? "tt " + parentPath + ":" + entry.getPortNumber() : "tt " + parentPath;
+            }
+            link = parentPath;
+            entry = parent;
+        }
+    }
+
+    private static boolean isMultiTT(final UsbSnapshot.Entry hub) {
+        try {
+            final DeviceDescriptor descriptor = hub.getDescriptor();
+            return (descriptor.bDeviceClass() == LibUsb.CLASS_HUB) &&
+                    (descriptor.bDeviceProtocol() == HUB_PROTOCOL_MULTI_TT);
+        }
+        catch (LibUsbException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Waits for a permit to move bulk data over the group's link.
+     */
+    public void acquire(final String group) throws InterruptedException {
+        Semaphore permits = this.getPermits(group);
+        if (!permits.tryAcquire()) {
+            log.debug("Waiting for %s.", group);
+            permits.acquire();
+        }
+    }
+
+    public void release(final String group) {
+        this.getPermits(group).release();
+    }
+
+    private Semaphore getPermits(final String group) {
+        Semaphore permits = this.groups.get(group);
+        if (permits == null) {
+            permits = new Semaphore(this.bulkPerGroup, true);
+            Semaphore existing = this.groups.putIfAbsent(group, permits);
+            if (existing != null) {
+                permits = existing;
+            }
+        }
+        return permits;
+    }
+}
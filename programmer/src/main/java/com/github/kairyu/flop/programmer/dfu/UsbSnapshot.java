@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.dfu;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceList;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * The devices seen by one enumeration of the USB buses.
+ *
+ * Each device is referenced until the snapshot is freed, so the same
+ * snapshot can be searched again for later steps and devices. Bus, address
+ * and port path come from the enumeration itself; the device descriptor is
+ * only read the first time an entry that passed those filters asks for it.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class UsbSnapshot {
+
+    private static final int MAX_PORT_DEPTH = 7;
+
+    public static class Entry {
+
+        private final Device device;
+        private final int busNumber;
+        private final int deviceAddress;
+        private final String portPath;
+        private final int speed;
+        private DeviceDescriptor descriptor = null;
+
+        private Entry(final Device device) {
+            this.device = device;
+            this.busNumber = LibUsb.getBusNumber(device);
+            this.deviceAddress = LibUsb.getDeviceAddress(device);
+            this.portPath = readPortPath(device, this.busNumber);
+            this.speed = LibUsb.getDeviceSpeed(device);
+        }
+
+        public Device getDevice() {
+            return this.device;
+        }
+
+        public int getBusNumber() {
+            return this.busNumber;
+        }
+
+        public int getDeviceAddress() {
+            return this.deviceAddress;
+        }
+
+        /**
+         * Returns the physical location of the device as bus-port.port...,
+         * the way sysfs names it, e.g. 1-2.4.
+         */
+        public String getPortPath() {
+            return this.portPath;
+        }
+
+        /**
+         * Returns the port path of the hub the device is plugged into, or
+         * null for a root hub.
+         */
+        public String getParentPath() {
+            final int dot = this.portPath.lastIndexOf('.');
+            if (dot >= 0) {
+                return this.portPath.substring(0, dot);
+            }
+            final int dash = this.portPath.indexOf('-');
+            return (dash >= 0) ? this.portPath.substring(0, dash) : null;
+        }
+
+        /**
+         * Returns the number of the hub port the device is plugged into, or
+         * 0 for a root hub.
+         */
+        public int getPortNumber() {
+            final int separator = Math.max(this.portPath.lastIndexOf('.'), this.portPath.indexOf('-'));
+            return (separator >= 0) ? Integer.parseInt(this.portPath.substring(separator + 1)) : 0;
+        }
+
+        /**
+         * Returns one of the LibUsb.SPEED_* constants.
+         */
+        public int getSpeed() {
+            return this.speed;
+        }
+
+        public boolean isHighSpeed() {
+            return (this.speed == LibUsb.SPEED_HIGH) || (this.speed == LibUsb.SPEED_SUPER);
+        }
+
+        public DeviceDescriptor getDescriptor() throws LibUsbException {
+            if (this.descriptor == null) {
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                int result = LibUsb.getDeviceDescriptor(this.device, descriptor);
+                if (result < 0) {
+                    throw new LibUsbException("Unable to read device descriptor", result);
+                }
+                this.descriptor = descriptor;
+            }
+            return this.descriptor;
+        }
+
+        /**
+         * Tells whether the device is at the given location. A bus number of
+         * 0 and a null port path match any device.
+         */
+        public boolean isAt(final int busNumber, final int deviceAddress, final String portPath) {
+            if ((busNumber != 0) &&
+                    ((busNumber != this.busNumber) || (deviceAddress != this.deviceAddress))) {
+                return false;
+            }
+            return (portPath == null) || portPath.equals(this.portPath);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%03d:%03d (%s)", this.busNumber, this.deviceAddress, this.portPath);
+        }
+
+        private static String readPortPath(final Device device, final int busNumber) {
+            ByteBuffer ports = ByteBuffer.allocateDirect(MAX_PORT_DEPTH);
+            int count = LibUsb.getPortNumbers(device, ports);
+            StringBuilder builder = new StringBuilder();
+            builder.append(busNumber);
+            for (int i = 0; i < count; i++) {
+                builder.append((i == 0) ? '-' : '.').append(ports.get(i) & 0xff);
+            }
+            return builder.toString();
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private UsbSnapshot(final List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public static UsbSnapshot take(final Context context) throws LibUsbException {
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(context, list);
+        if (result < 0) {
+            throw new LibUsbException("Unable to get device list", result);
+        }
+
+        List<Entry> entries = new ArrayList<Entry>(result);
+        try {
+            for (Device device: list) {
+                entries.add(new Entry(LibUsb.refDevice(device)));
+            }
+        }
+        finally {
+            LibUsb.freeDeviceList(list, true);
+        }
+        return new UsbSnapshot(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return this.entries;
+    }
+
+    public Entry getEntry(final String portPath) {
+        for (Entry entry: this.entries) {
+            if (entry.getPortPath().equals(portPath)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public void free() {
+        for (Entry entry: this.entries) {
+            LibUsb.unrefDevice(entry.getDevice());
+        }
+    }
+}
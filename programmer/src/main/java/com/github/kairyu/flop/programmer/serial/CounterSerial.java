@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Numbers counted up from the value in a file, which holds the next
+ * number to use.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class CounterSerial extends SerialSource {
+
+    private final File file;
+    private final int width;
+    private final long step;
+
+    public CounterSerial(final String filename, final int width, final long step) {
+        if (step == 0) {
+            throw new NumberFormatException("step must not be zero");
+        }
+        this.file = new File(filename);
+        this.width = width;
+        this.step = step;
+    }
+
+    @Override
+    protected long first() throws IOException {
+        final String text = new String(Files.readAllBytes(this.file.toPath()), StandardCharsets.US_ASCII);
+        try {
+            return Long.decode(text.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException(String.format("serial counter %s does not hold a number", this.file));
+        }
+    }
+
+    @Override
+    protected byte[] get(final long position) {
+        log.debug("Serial number %d from counter %s.", position, this.file);
+        return toBytes(position, this.width);
+    }
+
+    @Override
+    protected long step() {
+        return this.step;
+    }
+
+    @Override
+    protected void store(final long position) throws IOException {
+        Files.write(this.file.toPath(), String.format("%d%n", position).getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Numbers from the rows of a list, with a cursor file beside it holding
+ * the index of the next row to use.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class CsvSerial extends SerialSource {
+
+    private static final String CURSOR_SUFFIX = ".next";
+
+    private final File cursor;
+    private final List<String> rows = new ArrayList<String>();
+
+    public CsvSerial(final String filename) {
+        this.cursor = new File(filename + CURSOR_SUFFIX);
+        try {
+            for (String line: Files.readAllLines(new File(filename).toPath(), StandardCharsets.US_ASCII)) {
+                if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                    this.rows.add(line);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(String.format("can't read serial list %s", filename));
+        }
+    }
+
+    @Override
+    protected long first() throws IOException {
+        if (!this.cursor.exists()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(new String(Files.readAllBytes(this.cursor.toPath()), StandardCharsets.US_ASCII).trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException(String.format("serial list cursor %s does not hold a number", this.cursor));
+        }
+    }
+
+    @Override
+    protected byte[] get(final long position) {
+        if (position >= this.rows.size()) {
+            log.debug("Serial list exhausted after %d rows.", this.rows.size());
+            return null;
+        }
+
+        // the serial number is the last column, anything before it is free for bookkeeping
+        final String[] columns = this.rows.get((int) position).split(",");
+        log.debug("Serial number '%s' from row %d.", columns[columns.length - 1].trim(), position);
+        try {
+            return parseHex(columns[columns.length - 1]);
+        }
+        catch (NumberFormatException e) {
+            log.debug("Row %d does not hold hex digits.", position);
+            return null;
+        }
+    }
+
+    @Override
+    protected long step() {
+        return 1;
+    }
+
+    @Override
+    protected void store(final long position) throws IOException {
+        Files.write(this.cursor.toPath(), String.format("%d%n", position).getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
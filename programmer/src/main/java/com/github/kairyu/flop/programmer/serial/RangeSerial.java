@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.serial;
+
+/**
+ * Numbers from first to last, which start over with every run.
+ *
+ * @author Kai Ryu
+ *
+ */
+public class RangeSerial extends SerialSource {
+
+    private final long first;
+    private final long last;
+    private final long step;
+    private final int width;
+
+    public RangeSerial(final long first, final long last, final long step, final int width) {
+        if (step == 0) {
+            throw new NumberFormatException("step must not be zero");
+        }
+        this.first = first;
+        this.last = last;
+        this.step = step;
+        this.width = width;
+    }
+
+    @Override
+    protected long first() {
+        return this.first;
+    }
+
+    @Override
+    protected byte[] get(final long position) {
+        if ((this.step > 0 && position > this.last) || (this.step < 0 && position < this.last)) {
+            log.debug("Serial range exhausted at %d.", position);
+            return null;
+        }
+        log.debug("Serial number %d from range.", position);
+        return toBytes(position, this.width);
+    }
+
+    @Override
+    protected long step() {
+        return this.step;
+    }
+
+    @Override
+    protected void store(final long position) {
+        // nothing persists between runs
+    }
+
+}
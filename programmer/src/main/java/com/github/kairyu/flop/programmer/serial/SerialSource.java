@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.serial;
+
+import com.github.kairyu.flop.programmer.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out serial numbers in order. A number is reserved for a board
+ * before it is programmed and only consumed once the board is known to
+ * hold it; a number released because programming failed is handed out
+ * again before any new one. The source is safe to share between the jobs
+ * of one run.
+ *
+ * Numbers are addressed by a position, which the subclasses map to the
+ * number itself and persist as the first position not yet consumed.
+ *
+ * @author Kai Ryu
+ *
+ */
+public abstract class SerialSource {
+
+    protected final Log log = Log.getLog(SerialSource.class.getPackage().getName(),
+            DEBUG_THRESHOLD, TRACE_THRESHOLD);
+
+    protected static final int DEBUG_THRESHOLD = 50;
+    protected static final int TRACE_THRESHOLD = 55;
+    private static final String SEPARATOR = ":";
+
+    public static final class Serial {
+        private final long position;
+        private final byte[] bytes;
+
+        private Serial(final long position, final byte[] bytes) {
+            this.position = position;
+            this.bytes = bytes;
+        }
+
+        public byte[] getBytes() {
+            return this.bytes.clone();
+        }
+    }
+
+    private final Lock lock = new ReentrantLock();
+    private final Deque<Serial> released = new ArrayDeque<Serial>();
+    private boolean started = false;
+    private long next;
+    private long stored;
+
+    /**
+     * Returns the persisted position of the first number not consumed yet.
+     */
+    protected abstract long first() throws IOException;
+
+    /**
+     * Returns the number at a position, or null if there is none.
+     */
+    protected abstract byte[] get(long position);
+
+    protected abstract long step();
+
+    /**
+     * Persists the position of the first number not consumed yet.
+     */
+    protected abstract void store(long position) throws IOException;
+
+    /**
+     * Returns the next free number, or null if the source is exhausted or
+     * can't be read. The number is not handed out again until it is
+     * released.
+     */
+    public Serial reserve() {
+        this.lock.lock();
+        try {
+            if (!this.started) {
+                this.next = this.first();
+                this.stored = this.next;
+                this.started = true;
+            }
+            if (!this.released.isEmpty()) {
+                return this.released.poll();
+            }
+            final byte[] bytes = this.get(this.next);
+            if (bytes == null) {
+                return null;
+            }
+            final Serial serial = new Serial(this.next, bytes);
+            this.next += this.step();
+            return serial;
+        }
+        catch (IOException e) {
+            log.debug("Error reading serial source: %s", e.getMessage());
+            return null;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Consumes a reserved number, once the board holding it is programmed.
+     * A number reserved before it and never committed is skipped by later
+     * runs rather than handed out twice.
+     */
+    public int commit(final Serial serial) {
+        this.lock.lock();
+        try {
+            final long position = serial.position + this.step();
+            if ((position - this.stored) * Long.signum(this.step()) > 0) {
+                this.store(position);
+                this.stored = position;
+            }
+            return 0;
+        }
+        catch (IOException e) {
+            log.debug("Error updating serial source: %s", e.getMessage());
+            return -1;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gives a reserved number back, to be handed out again first.
+     */
+    public void release(final Serial serial) {
+        this.lock.lock();
+        try {
+            this.released.add(serial);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    public static SerialSource parse(final String spec, final int width) {
+        final String[] fields = spec.split(SEPARATOR);
+        try {
+            if (fields[0].equals("counter") && fields.length >= 2) {
+                final long step = (fields.length > 2) ? Long.decode(fields[2]) : 1;
+                return new CounterSerial(fields[1], width, step);
+            }
+            else if (fields[0].equals("csv") && fields.length == 2) {
+                return new CsvSerial(fields[1]);
+            }
+            else if (fields[0].equals("range") && fields.length >= 3) {
+                final long step = (fields.length > 3) ? Long.decode(fields[3]) : 1;
+                return new RangeSerial(Long.decode(fields[1]), Long.decode(fields[2]), step, width);
+            }
+            else if (fields.length == 1) {
+                return new FixedSerial(fields[0]);
+            }
+        }
+        catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException(String.format("invalid serial source '%s'", spec));
+    }
+
+    protected static byte[] toBytes(final long value, final int width) {
+        byte[] bytes = new byte[width];
+        for (int i = 0; i < width; i++) {
+            bytes[width - 1 - i] = (byte)(value >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    public static byte[] parseHex(final String hexdigits) {
+        final String digits = hexdigits.trim().replaceAll("[-.:\\s]", "");
+        if (digits.isEmpty() || digits.length() % 2 != 0) {
+            throw new NumberFormatException(hexdigits);
+        }
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    public static String toHex(final byte[] bytes) {
+        StringBuilder builder = new StringBuilder(2 * bytes.length);
+        for (byte b: bytes) {
+            builder.append(String.format("%02X", b & 0xFF));
+        }
+        return builder.toString();
+    }
+
+}
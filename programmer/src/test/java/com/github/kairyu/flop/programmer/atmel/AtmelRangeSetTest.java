@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.Test;
+
+public class AtmelRangeSetTest {
+
+    private static AtmelRangeSet set(final int... bounds) {
+        AtmelRangeSet set = AtmelRangeSet.empty();
+        for (int i = 0; i < bounds.length; i += 2) {
+            set = set.union(AtmelRangeSet.of(bounds[i], bounds[i + 1]));
+        }
+        return set;
+    }
+
+    @Test
+    public void mergesTouchingRuns() {
+        final AtmelRangeSet set = set(0, 9, 10, 19, 30, 39, 15, 25);
+        assertEquals(2, set.getRunCount());
+        assertEquals(25, set.getRun(0).getEnd());
+        assertEquals(30, set.getRun(1).getStart());
+        assertEquals(36, set.getLength());
+    }
+
+    @Test
+    public void treatsInvalidRangesAsEmpty() {
+        assertTrue(AtmelRangeSet.of(new AtmelRange()).isEmpty());
+        assertFalse(AtmelRangeSet.empty().getBounds().isValid());
+    }
+
+    @Test
+    public void findsAddresses() {
+        final AtmelRangeSet set = set(10, 19, 30, 39);
+        assertFalse(set.contains(9));
+        assertTrue(set.contains(10));
+        assertTrue(set.contains(39));
+        assertFalse(set.contains(25));
+        assertTrue(set.contains(new AtmelRange(30, 35)));
+        assertFalse(set.contains(new AtmelRange(15, 35)));
+        assertTrue(set.intersects(new AtmelRange(15, 25)));
+        assertFalse(set.intersects(new AtmelRange(20, 29)));
+    }
+
+    @Test
+    public void intersectsAndSubtracts() {
+        final AtmelRangeSet set = set(0, 99);
+        assertEquals(set(10, 19, 50, 59), set.intersect(set(10, 19, 50, 59, 200, 299)));
+        assertEquals(set(0, 9, 20, 49, 60, 99), set.subtract(set(10, 19, 50, 59)));
+        assertEquals(AtmelRangeSet.empty(), set.subtract(new AtmelRange(0, 99)));
+    }
+
+    @Test
+    public void handlesTheTopOfTheAddressSpace() {
+        final AtmelRangeSet set = set(Integer.MAX_VALUE - 9, Integer.MAX_VALUE);
+        assertEquals(set(Integer.MAX_VALUE - 9, Integer.MAX_VALUE - 5),
+                set.subtract(new AtmelRange(Integer.MAX_VALUE - 4, Integer.MAX_VALUE)));
+        assertEquals(set(Integer.MAX_VALUE - 15, Integer.MAX_VALUE), set.alignToPages(16));
+    }
+
+    @Test
+    public void alignsToPages() {
+        assertEquals(set(0, 127, 256, 511), set(5, 6, 300, 400).alignToPages(128));
+        assertEquals(set(0x40, 0xbf, 0x240, 0x2bf), set(0x50, 0x60, 0x280, 0x281).alignToPages(0x80, 0x40));
+    }
+
+    @Test
+    public void readsRunsOfABitmap() {
+        final BitSet bits = new BitSet();
+        bits.set(2, 5);
+        bits.set(8, 12);
+        assertEquals(set(2, 4, 8, 9), AtmelRangeSet.of(bits, new AtmelRange(0, 9)));
+        assertEquals(set(3, 4), AtmelRangeSet.of(bits, new AtmelRange(3, 6)));
+    }
+}
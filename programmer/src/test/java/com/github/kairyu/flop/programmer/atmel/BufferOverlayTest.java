@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferOverlayTest {
+
+    private BufferOut template;
+
+    @Before
+    public void setUp() {
+        this.template = new BufferOut();
+        assertEquals(0, this.template.init(1024, 128, 0));
+        for (int address = 0x100; address < 0x110; address++) {
+            this.template.putData(address, (byte) address);
+        }
+    }
+
+    @Test
+    public void patchesOverTheTemplate() {
+        final BufferOverlay overlay = new BufferOverlay(this.template);
+        assertEquals(0, overlay.patch(0x104, new byte[] { 0x55, 0x66 }));
+        assertEquals(0x55, overlay.getData(0x104));
+        assertEquals(0x66, overlay.getData(0x105));
+        assertEquals(0x06, overlay.getData(0x106));
+        assertEquals(0x04, this.template.getData(0x104));
+        assertEquals(0, overlay.patch(0x200, new byte[] { 1 }));
+        assertTrue(overlay.isDataValid(0x200));
+        assertFalse(this.template.isDataValid(0x200));
+    }
+
+    @Test
+    public void rejectsPatchesOutsideTheValidRange() {
+        final BufferOverlay overlay = new BufferOverlay(this.template);
+        assertEquals(-1, overlay.patch(1023, new byte[] { 1, 2 }));
+        assertFalse(overlay.isDataValid(1023));
+    }
+
+    @Test
+    public void keepsMarksApartFromTheTemplate() {
+        final BufferOverlay overlay = new BufferOverlay(this.template);
+        overlay.setDataInvalid(0x100);
+        overlay.setDataInvalid(new AtmelRange(0x108, 0x10f));
+        assertFalse(overlay.isDataValid(0x100));
+        assertFalse(overlay.isDataValid(0x10f));
+        assertTrue(this.template.isDataValid(0x100));
+        assertTrue(this.template.isDataValid(0x10f));
+
+        overlay.fillData(new AtmelRange(0x300, 0x30f), (byte) 0x11);
+        assertTrue(overlay.isDataValid(0x300));
+        assertEquals(0x11, overlay.getData(0x30f));
+        assertFalse(this.template.isDataValid(0x300));
+    }
+
+    @Test
+    public void invalidatesPatches() {
+        final BufferOverlay overlay = new BufferOverlay(this.template);
+        assertEquals(0, overlay.patch(0x200, new byte[] { 1, 2, 3 }));
+        overlay.setDataInvalid(new AtmelRange(0x200, 0x201));
+        assertFalse(overlay.isDataValid(0x200));
+        assertFalse(overlay.isDataValid(0x201));
+        assertTrue(overlay.isDataValid(0x202));
+    }
+
+    @Test
+    public void padsPagesFromTheValidRange() {
+        this.template.getValidRange().set(0x40, 1023);
+        final BufferOverlay overlay = new BufferOverlay(this.template);
+        assertEquals(0, overlay.patch(0x2c0, new byte[] { 1 }));
+        assertEquals(0, overlay.prepareBuffer());
+        assertEquals(AtmelRangeSet.of(0xc0, 0x13f).union(AtmelRangeSet.of(0x2c0, 0x33f)), overlay.getDataRanges());
+        assertFalse(this.template.isDataValid(0xc0));
+
+        final BufferOut plain = new BufferOut();
+        assertEquals(0, plain.init(1024, 128, 0));
+        plain.getValidRange().set(0x40, 1023);
+        for (int address = 0x100; address < 0x110; address++) {
+            plain.putData(address, (byte) address);
+        }
+        plain.putData(0x2c0, (byte) 1);
+        assertEquals(0, plain.prepareBuffer());
+        assertEquals(plain.getDataRanges(), overlay.getDataRanges());
+    }
+
+    @Test
+    public void keepsThePatchesOfAnOverlayBelow() {
+        final BufferOverlay below = new BufferOverlay(this.template);
+        assertEquals(0, below.patch(0x200, new byte[] { 1 }));
+        final BufferOverlay overlay = new BufferOverlay(below);
+        assertEquals(0, overlay.patch(0x201, new byte[] { 2 }));
+        assertEquals(1, overlay.getData(0x200));
+        assertEquals(0x05, overlay.getData(0x105));
+        assertEquals(AtmelRangeSet.of(0x100, 0x10f).union(AtmelRangeSet.of(0x200, 0x201)), overlay.getDataRanges());
+        assertFalse(below.isDataValid(0x201));
+    }
+}
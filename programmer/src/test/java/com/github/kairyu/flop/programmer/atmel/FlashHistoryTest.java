@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FlashHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String fileName() {
+        return new File(this.folder.getRoot(), "history").getPath();
+    }
+
+    @Test
+    public void matchesARecordedImage() {
+        final FlashHistory history = new FlashHistory(this.fileName());
+        assertEquals(0, history.load());
+        assertEquals(0, history.record("A1", MemoryUnit.flash, Target.atmega32u4, "hash", "00FF"));
+
+        final FlashHistory loaded = new FlashHistory(this.fileName());
+        assertEquals(0, loaded.load());
+        assertTrue(loaded.matches("A1", MemoryUnit.flash, Target.atmega32u4, "hash"));
+        assertFalse(loaded.matches("A1", MemoryUnit.flash, Target.atmega32u4, "other"));
+        assertFalse(loaded.matches("A1", MemoryUnit.eeprom, Target.atmega32u4, "hash"));
+        assertFalse(loaded.matches("A1", MemoryUnit.flash, Target.atmega16u4, "hash"));
+        assertEquals("00FF", loaded.getSerialNumber("A1", MemoryUnit.flash));
+    }
+
+    @Test
+    public void recordsWithoutASerialNumber() {
+        final FlashHistory history = new FlashHistory(this.fileName());
+        assertEquals(0, history.record("A1", MemoryUnit.flash, Target.atmega32u4, "hash", null));
+        assertTrue(history.matches("A1", MemoryUnit.flash, Target.atmega32u4, "hash"));
+        assertNull(history.getSerialNumber("A1", MemoryUnit.flash));
+    }
+
+    @Test
+    public void forgetsADevice() {
+        final FlashHistory history = new FlashHistory(this.fileName());
+        assertEquals(0, history.record("A1", MemoryUnit.flash, Target.atmega32u4, "hash", null));
+        assertEquals(0, history.forget("A1", MemoryUnit.flash));
+
+        final FlashHistory loaded = new FlashHistory(this.fileName());
+        assertEquals(0, loaded.load());
+        assertFalse(loaded.matches("A1", MemoryUnit.flash, Target.atmega32u4, "hash"));
+    }
+
+    @Test
+    public void keepsEntriesWrittenSinceTheLastLoad() {
+        final FlashHistory first = new FlashHistory(this.fileName());
+        final FlashHistory second = new FlashHistory(this.fileName());
+        assertEquals(0, first.load());
+        assertEquals(0, second.load());
+        assertEquals(0, first.record("A1", MemoryUnit.flash, Target.atmega32u4, "one", null));
+        assertEquals(0, second.record("B2", MemoryUnit.flash, Target.atmega32u4, "two", null));
+
+        final FlashHistory loaded = new FlashHistory(this.fileName());
+        assertEquals(0, loaded.load());
+        assertTrue(loaded.matches("A1", MemoryUnit.flash, Target.atmega32u4, "one"));
+        assertTrue(loaded.matches("B2", MemoryUnit.flash, Target.atmega32u4, "two"));
+    }
+
+    @Test
+    public void ignoresDevicesWithoutSerial() {
+        final FlashHistory history = new FlashHistory(this.fileName());
+        assertEquals(0, history.record(null, MemoryUnit.flash, Target.atmega32u4, "hash", null));
+        assertFalse(history.matches(null, MemoryUnit.flash, Target.atmega32u4, "hash"));
+        assertFalse(new File(this.fileName()).exists());
+    }
+}
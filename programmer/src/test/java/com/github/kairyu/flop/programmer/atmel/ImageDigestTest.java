@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+import org.junit.Test;
+
+public class ImageDigestTest {
+
+    private static final byte[] DATA = new byte[300];
+
+    static {
+        for (int i = 0; i < DATA.length; i++) {
+            DATA[i] = (byte) (i * 7);
+        }
+    }
+
+    private static String sha256(final byte[] data, final int offset, final int length)
+            throws NoSuchAlgorithmException {
+        StringBuilder hash = new StringBuilder();
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(data, offset, length);
+        for (byte b: digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    @Test
+    public void hashesOnlyTheBytes() throws NoSuchAlgorithmException {
+        final ImageDigest digest = new ImageDigest(ImageDigest.Algorithm.SHA_256, new AtmelRange(0x1000, 0x1000 + 299));
+        assertEquals(0, digest.putBlock(new AtmelRange(0x1000, 0x1000 + 299), ByteBuffer.wrap(DATA)));
+        assertTrue(digest.isComplete());
+        assertEquals(sha256(DATA, 0, DATA.length), digest.getValue());
+    }
+
+    @Test
+    public void hashesTheRangeOutOfLargerBlocks() throws NoSuchAlgorithmException {
+        final ImageDigest digest = new ImageDigest(ImageDigest.Algorithm.SHA_256, new AtmelRange(10, 209));
+        assertEquals(0, digest.putBlock(new AtmelRange(0, 99), ByteBuffer.wrap(DATA, 0, 100)));
+        assertFalse(digest.isComplete());
+        assertEquals(0, digest.putBlock(new AtmelRange(100, 299), ByteBuffer.wrap(DATA, 100, 200)));
+        assertTrue(digest.isComplete());
+        assertEquals(sha256(DATA, 10, 200), digest.getValue());
+    }
+
+    @Test
+    public void rejectsGaps() throws NoSuchAlgorithmException {
+        final ImageDigest digest = new ImageDigest(ImageDigest.Algorithm.SHA_256, new AtmelRange(0, 299));
+        assertEquals(0, digest.putBlock(new AtmelRange(0, 99), ByteBuffer.wrap(DATA, 0, 100)));
+        assertEquals(-1, digest.putBlock(new AtmelRange(200, 299), ByteBuffer.wrap(DATA, 200, 100)));
+    }
+
+    @Test
+    public void computesCrc32c() throws NoSuchAlgorithmException {
+        final ImageDigest digest = new ImageDigest(ImageDigest.Algorithm.CRC32C, new AtmelRange(0, 299));
+        assertEquals(0, digest.putBlock(new AtmelRange(0, 299), ByteBuffer.wrap(DATA)));
+        final CRC32C crc = new CRC32C();
+        crc.update(DATA, 0, DATA.length);
+        assertEquals(String.format("%08x", crc.getValue()), digest.getValue());
+    }
+
+    @Test
+    public void looksUpAlgorithmsByName() {
+        assertEquals(ImageDigest.Algorithm.SHA_256, ImageDigest.Algorithm.getByName("sha256"));
+        assertEquals(ImageDigest.Algorithm.CRC32C, ImageDigest.Algorithm.getByName("crc32c"));
+    }
+}
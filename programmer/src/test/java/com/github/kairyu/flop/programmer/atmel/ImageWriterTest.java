@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ImageWriterTest {
+
+    private static String hex(final int offset, final boolean skipBlank, final int address, final byte... data)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ImageWriter writer = ImageWriter.hex(Channels.newChannel(bytes), offset, skipBlank);
+        assertEquals(0, writer.putBlock(new AtmelRange(address, address + data.length - 1), ByteBuffer.wrap(data)));
+        writer.finish();
+        return bytes.toString("US-ASCII");
+    }
+
+    @Test
+    public void writesDataAndEndRecords() throws IOException {
+        assertEquals(":0400000001020304F2\n:00000001FF\n", hex(0, false, 0, (byte) 1, (byte) 2, (byte) 3, (byte) 4));
+    }
+
+    @Test
+    public void splitsRecordsOnSixteenByteBoundaries() throws IOException {
+        assertEquals(":02000E000102ED\n:020010000304E7\n:00000001FF\n",
+                hex(0, false, 0x0e, (byte) 1, (byte) 2, (byte) 3, (byte) 4));
+    }
+
+    @Test
+    public void writesSegmentRecordsForNegativeOffsets() throws IOException {
+        assertEquals(":020000048080FA\n:02000E000102ED\n:020010000304E7\n:00000001FF\n",
+                hex(AtmelDevice.USER_PAGE_OFFSET, false, 0x0e, (byte) 1, (byte) 2, (byte) 3, (byte) 4));
+    }
+
+    @Test
+    public void skipsBlankRecords() throws IOException {
+        final byte[] data = new byte[32];
+        Arrays.fill(data, (byte) 0xff);
+        data[20] = 0;
+        assertEquals(":10001000FFFFFFFF00FFFFFFFFFFFFFFFFFFFFFFEF\n:00000001FF\n", hex(0, true, 0, data));
+    }
+
+    @Test
+    public void writesBinaryUnchanged() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ImageWriter writer = ImageWriter.binary(Channels.newChannel(bytes));
+        final byte[] data = { 1, 2, 3 };
+        assertEquals(0, writer.putBlock(new AtmelRange(0, 2), ByteBuffer.wrap(data)));
+        writer.finish();
+        assertEquals(3, bytes.size());
+        assertEquals(3, bytes.toByteArray()[2]);
+    }
+}
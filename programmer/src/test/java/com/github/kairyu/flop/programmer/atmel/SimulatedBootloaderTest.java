@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.atmel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+import com.github.kairyu.flop.programmer.dfu.Dfu;
+import com.github.kairyu.flop.programmer.dfu.DfuCommand;
+import com.github.kairyu.flop.programmer.dfu.Transport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+
+public class SimulatedBootloaderTest {
+
+    private static final Target TARGET = Target.atmega32u4;
+
+    private AtmelDevice device;
+    private SimulatedBootloader bootloader;
+
+    /*
+     * Passes the transfers on to the simulated bootloader.
+     */
+    private class Forwarding implements Transport {
+        @Override
+        public int transferOut(final DeviceHandle handle, final byte request, final short value,
+                final short iface, final ByteBuffer data, final long timeout) {
+            return SimulatedBootloaderTest.this.bootloader.transferOut(handle, request, value, iface, data, timeout);
+        }
+
+        @Override
+        public int transferIn(final DeviceHandle handle, final byte request, final short value,
+                final short iface, final ByteBuffer data, final long timeout) {
+            return SimulatedBootloaderTest.this.bootloader.transferIn(handle, request, value, iface, data, timeout);
+        }
+
+        @Override
+        public boolean isConnected(final DeviceHandle handle) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        this.device = new AtmelDevice();
+        this.bootloader = new SimulatedBootloader(TARGET.getDeviceType(), new LatencyModel());
+        this.device.setTransport(this.bootloader);
+        this.device.setType(TARGET.getDeviceType());
+        this.device.setEraseBudget(TARGET.getEraseBudget());
+        assertEquals(0, this.device.initTransport(false));
+    }
+
+    private static BufferOut newImage() {
+        BufferOut image = new BufferOut();
+        assertEquals(0, image.init(TARGET.getMemoryAddressTop() + 1, TARGET.getFlashPageSize(), 0));
+        image.getValidRange().set(TARGET.getFlashAddressBottom(), TARGET.getFlashAddressTop());
+        return image;
+    }
+
+    private String operations() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        this.bootloader.printOperations(new PrintStream(bytes, true));
+        return bytes.toString();
+    }
+
+    @Test
+    public void flashesAndReadsBack() {
+        final BufferOut image = newImage();
+        for (int address = 0x100; address < 0x300; address++) {
+            image.putData(address, (byte) address);
+        }
+        assertEquals(0, this.device.flash(image, false, false, true));
+
+        final BufferIn readBack = new BufferIn();
+        assertEquals(0, readBack.init(image));
+        readBack.getDataRange().set(image.getValidRange());
+        assertEquals(0, this.device.readFlash(readBack, MemoryUnit.flash, true));
+        assertEquals(0, this.device.validateBuffer(readBack, image, true));
+        assertTrue(this.operations().contains("write 0x0100-0x02FF"));
+    }
+
+    @Test
+    public void writesWholePages() {
+        final BufferOut image = newImage();
+        image.putData(0x181, (byte) 0x12);
+        assertEquals(0, this.device.flash(image, false, false, true));
+        assertTrue(this.operations().contains(String.format("write 0x%04X-0x%04X",
+                0x180 - 0x180 % TARGET.getFlashPageSize(),
+                0x180 - 0x180 % TARGET.getFlashPageSize() + TARGET.getFlashPageSize() - 1)));
+    }
+
+    @Test
+    public void erasesToBlank() {
+        final BufferOut image = newImage();
+        image.putData(0x10, (byte) 0);
+        assertEquals(0, this.device.flash(image, false, false, true));
+        final int start = TARGET.getFlashAddressBottom();
+        final int end = TARGET.getFlashAddressTop();
+        assertNotEquals(0, this.device.checkBlank(start, end, true));
+
+        assertEquals(0, this.device.eraseFlash(EraseMode.ERASE_BLOCK_ALL, true));
+        assertEquals(0, this.device.checkBlank(start, end, true));
+        assertTrue(this.operations().contains("chip erase"));
+    }
+
+    @Test
+    public void refusesToOverwriteWithoutForce() {
+        final BufferOut image = newImage();
+        image.putData(0x10, (byte) 0);
+        assertEquals(0, this.device.flash(image, false, false, true));
+        assertNotEquals(0, this.device.flash(image, false, false, true));
+        assertEquals(0, this.device.flash(image, false, true, true));
+    }
+
+    @Test
+    public void givesEraseStatusRequestsTheRestOfTheBudget() {
+        // the longest timeout of the requests that read from the device
+        final long[] longest = { 0 };
+        this.device.setTransport(new Forwarding() {
+            @Override
+            public int transferIn(final DeviceHandle handle, final byte request, final short value,
+                    final short iface, final ByteBuffer data, final long timeout) {
+                longest[0] = Math.max(longest[0], timeout);
+                return super.transferIn(handle, request, value, iface, data, timeout);
+            }
+        });
+
+        assertEquals(0, this.device.eraseFlash(EraseMode.ERASE_BLOCK_ALL, true));
+        assertTrue(longest[0] > Dfu.DFU_STATUS_TIMEOUT);
+        assertTrue(longest[0] <= Math.min(TARGET.getEraseBudget(), Dfu.DFU_STRETCH_LIMIT));
+
+        longest[0] = 0;
+        assertEquals(0, this.device.checkBlank(TARGET.getFlashAddressBottom(), TARGET.getFlashAddressTop(), true));
+        assertTrue(longest[0] <= Dfu.DFU_DATA_TIMEOUT);
+    }
+
+    @Test
+    public void keepsPollingAnEraseHeldPastTheStretchLimit() {
+        // the erase request and the first status requests time out
+        final int[] held = { 0 };
+        this.device.setTransport(new Forwarding() {
+            @Override
+            public int transferOut(final DeviceHandle handle, final byte request, final short value,
+                    final short iface, final ByteBuffer data, final long timeout) {
+                final int result = super.transferOut(handle, request, value, iface, data, timeout);
+                if (request == DfuCommand.DNLOAD.getValue() && data.get(0) == 0x04) {
+                    held[0] = 3;
+                    return LibUsb.ERROR_TIMEOUT;
+                }
+                return result;
+            }
+
+            @Override
+            public int transferIn(final DeviceHandle handle, final byte request, final short value,
+                    final short iface, final ByteBuffer data, final long timeout) {
+                if (request == DfuCommand.GETSTATUS.getValue() && held[0] > 0) {
+                    held[0]--;
+                    return LibUsb.ERROR_TIMEOUT;
+                }
+                return super.transferIn(handle, request, value, iface, data, timeout);
+            }
+        });
+
+        assertEquals(0, this.device.eraseFlash(EraseMode.ERASE_BLOCK_ALL, true));
+        assertEquals(0, held[0]);
+        assertTrue(this.operations().contains("chip erase"));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.kairyu.flop.programmer.dfu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DfuMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DfuMetrics newMetrics(final String serial) {
+        DfuMetrics metrics = new DfuMetrics();
+        metrics.setAttribute("serial", serial);
+        return metrics;
+    }
+
+    private static List<String> lines(final File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void followsAQuotedHeader() throws IOException {
+        File file = this.folder.newFile("report.csv");
+        newMetrics("a,b").writeReport(file.getPath());
+        String header = lines(file).get(0);
+        Files.write(file.toPath(), ("\"note, free\"," + header + "\n").getBytes(StandardCharsets.UTF_8));
+
+        newMetrics("c").writeReport(file.getPath());
+        List<String> lines = lines(file);
+        assertEquals(2, lines.size());
+        assertEquals("c", lines.get(1).split(",")[2]);
+    }
+
+    @Test
+    public void widensTheHeaderForNewValues() throws IOException {
+        File file = this.folder.newFile("report.csv");
+        newMetrics("a,b").writeReport(file.getPath());
+        DfuMetrics metrics = newMetrics("c");
+        metrics.setAttribute("result", -3);
+        metrics.writeReport(file.getPath());
+
+        List<String> lines = lines(file);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).endsWith(",result"));
+        assertTrue(lines.get(1).contains(",\"a,b\","));
+        assertTrue(lines.get(1).endsWith(","));
+        assertTrue(lines.get(2).contains(",c,"));
+        assertTrue(lines.get(2).endsWith(",-3"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015  Kai Ryu <kai1103@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.kairyu.flop.programmer.serial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SerialSourceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File counter(final String value) throws IOException {
+        final File file = this.folder.newFile("counter");
+        Files.write(file.toPath(), value.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+    }
+
+    @Test
+    public void countsFromTheFile() throws IOException {
+        final File file = this.counter("0x10\n");
+        final SerialSource source = SerialSource.parse("counter:" + file, 2);
+        final SerialSource.Serial serial = source.reserve();
+        assertArrayEquals(new byte[] { 0x00, 0x10 }, serial.getBytes());
+        assertEquals("0x10", read(file));
+        assertEquals(0, source.commit(serial));
+        assertEquals("17", read(file));
+    }
+
+    @Test
+    public void handsOutReleasedNumbersFirst() throws IOException {
+        final SerialSource source = SerialSource.parse("counter:" + this.counter("5"), 1);
+        final SerialSource.Serial first = source.reserve();
+        final SerialSource.Serial second = source.reserve();
+        source.release(first);
+        assertArrayEquals(first.getBytes(), source.reserve().getBytes());
+        assertArrayEquals(new byte[] { 7 }, source.reserve().getBytes());
+        assertArrayEquals(new byte[] { 6 }, second.getBytes());
+    }
+
+    @Test
+    public void neverStoresAnEarlierPosition() throws IOException {
+        final File file = this.counter("100");
+        final SerialSource source = SerialSource.parse("counter:" + file + ":-1", 1);
+        final SerialSource.Serial first = source.reserve();
+        final SerialSource.Serial second = source.reserve();
+        assertEquals(0, source.commit(second));
+        assertEquals("98", read(file));
+        assertEquals(0, source.commit(first));
+        assertEquals("98", read(file));
+    }
+
+    @Test
+    public void stopsAtTheEndOfARange() {
+        final SerialSource source = SerialSource.parse("range:1:2", 1);
+        assertArrayEquals(new byte[] { 1 }, source.reserve().getBytes());
+        assertArrayEquals(new byte[] { 2 }, source.reserve().getBytes());
+        assertNull(source.reserve());
+    }
+
+    @Test
+    public void returnsNullForAMissingCounter() {
+        assertNull(SerialSource.parse("counter:" + new File(this.folder.getRoot(), "none"), 1).reserve());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAZeroStep() {
+        SerialSource.parse("range:1:2:0", 1);
+    }
+
+    @Test
+    public void convertsHex() {
+        assertArrayEquals(new byte[] { 0x01, (byte) 0xab }, SerialSource.parseHex("01:AB"));
+        assertEquals("01AB", SerialSource.toHex(new byte[] { 0x01, (byte) 0xab }));
+    }
+
+    @Test
+    public void sharesOneCounterBetweenJobs() throws Exception {
+        final File file = this.counter("0");
+        final SerialSource source = SerialSource.parse("counter:" + file, 4);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<List<String>>> jobs = new ArrayList<Future<List<String>>>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                jobs.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        List<String> numbers = new ArrayList<String>();
+                        for (int j = 0; j < 50; j++) {
+                            final SerialSource.Serial serial = source.reserve();
+                            numbers.add(SerialSource.toHex(serial.getBytes()));
+                            source.commit(serial);
+                        }
+                        return numbers;
+                    }
+                }));
+            }
+            final Set<String> numbers = new HashSet<String>();
+            for (Future<List<String>> job: jobs) {
+                numbers.addAll(job.get());
+            }
+            assertEquals(400, numbers.size());
+            assertTrue(numbers.contains("0000018F"));
+            assertEquals("400", read(file));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}